@@ -0,0 +1,409 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An alternative to {@link ImageFunction#toImage(int, int)} that doesn't evaluate every pixel.
+ * Instead, it samples the corners and center of each block of pixels, and if they're all within
+ * {@link #threshold()} of one another, fills in the rest of the block by interpolating between the
+ * corners. Otherwise, it splits the block into quarters and tries again, down to small blocks that
+ * it renders pixel by pixel.
+ *
+ * <p>Most of our images are smooth fields with sharp features in just a few places, so most blocks
+ * get filled in from a handful of samples. The catch is that a feature that falls entirely between
+ * the samples gets lost. In strict mode, a block is only interpolated if the function can also
+ * prove that it's continuous across the block (see {@link ImageFunction#isContinuousOver(double,
+ * double, double, double)}), so the edges from <code>floor</code>, <code>sign</code>, <code>wrap
+ * </code>, and the like come out exactly as they would from <code>toImage</code>.
+ */
+final class AdaptiveRenderer {
+  /** The threshold, in steps of an 8-bit color channel, if nobody asks for something else. */
+  static final int DEFAULT_THRESHOLD = 4;
+
+  // Blocks are never interpolated across more than this many pixels, which keeps small features
+  // from hiding between the samples of a big block.
+  private static final int MAX_BLOCK = 16;
+
+  // Blocks spanning fewer than this many pixels each way are rendered pixel by pixel, as a tile,
+  // rather than divided any further.
+  private static final int MIN_BLOCK = 4;
+
+  // What we know about each pixel of a tile, in TileArena.SAMPLED.
+  private static final int UNKNOWN = 0;
+  private static final int INTERPOLATED = 1;
+  private static final int PENDING = 2; // to be evaluated in the next batch
+  private static final int EVALUATED = 3;
+
+  private final int threshold;
+  private final boolean strict;
+
+  /**
+   * Makes a renderer that interpolates across blocks whose samples differ by at most <code>
+   * threshold</code> steps in any 8-bit color channel, and in <code>strict</code> mode, only if the
+   * function is provably continuous across the block.
+   *
+   * @throws IllegalArgumentException if the threshold is negative
+   */
+  AdaptiveRenderer(int threshold, boolean strict) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("negative threshold: " + threshold);
+    }
+    this.threshold = threshold;
+    this.strict = strict;
+  }
+
+  /** How far apart, in steps of an 8-bit color channel, samples may be and still interpolate. */
+  int threshold() {
+    return threshold;
+  }
+
+  /** Whether blocks are only interpolated where the function is provably continuous. */
+  boolean isStrict() {
+    return strict;
+  }
+
+  /** What {@link #render(ImageFunction, int, int)} returns. */
+  static final class Result {
+    /** The image, from {@link RasterPool}. */
+    final BufferedImage image;
+
+    /** How many pixels were actually evaluated, rather than interpolated. */
+    final long evaluated;
+
+    private Result(BufferedImage image, long evaluated) {
+      this.image = image;
+      this.evaluated = evaluated;
+    }
+
+    /** The fraction of the pixels of the image that were actually evaluated. */
+    double fractionEvaluated() {
+      var pixels = (long) image.getWidth() * image.getHeight();
+      return pixels == 0 ? 0.0 : evaluated / (double) pixels;
+    }
+  }
+
+  /**
+   * Renders the given function at the given resolution, with the same coordinates for every pixel
+   * as {@link ImageFunction#toImage(int, int)}. Pixels that are evaluated come out exactly as they
+   * would there; the rest are interpolated.
+   */
+  Result render(ImageFunction function, int xsize, int ysize) {
+    return render(function, xsize, ysize, CancellationToken.NONE);
+  }
+
+  /**
+   * Like {@link #render(ImageFunction, int, int)}, but gives up if <code>token</code> is cancelled.
+   *
+   * @throws CancellationException if the token was cancelled before the render was done
+   */
+  Result render(ImageFunction function, int xsize, int ysize, CancellationToken token) {
+    return render(function, xsize, ysize, Viewport.DEFAULT, token);
+  }
+
+  /**
+   * Like {@link #render(ImageFunction, int, int, CancellationToken)}, but showing the given part of
+   * the plane (see {@link Viewport}), with the same coordinates for every pixel as {@link
+   * ImageFunction#toImage(int, int, Viewport, CancellationToken)}.
+   *
+   * @throws CancellationException if the token was cancelled before the render was done
+   */
+  Result render(
+      ImageFunction function, int xsize, int ysize, Viewport viewport, CancellationToken token) {
+    var image = RasterPool.acquire(xsize, ysize);
+    var output = RasterPool.pixels(image);
+    var evaluated = new LongAdder();
+
+    try {
+      TileScheduler.forEachTile(
+          xsize,
+          ysize,
+          ImageFunction.TILE_SIZE,
+          token,
+          (xstart, ystart, width, height) -> {
+            var tile =
+                new Tile(function, viewport, output, xsize, ysize, xstart, ystart, width, height);
+            tile.render();
+            evaluated.add(tile.evaluated);
+          });
+    } catch (CancellationException e) {
+      RasterPool.release(image);
+      throw e;
+    }
+
+    return new Result(image, evaluated.sum());
+  }
+
+  // Engineering note: the quadtree works on the pixel grid, so every sample is a pixel we'd have
+  // rendered anyway, at exactly the same coordinates, and the samples at the corners of a block
+  // are shared with its neighbors. Each tile keeps track of which of its pixels have been
+  // evaluated, so no pixel is ever evaluated twice, and interpolation never overwrites a real
+  // sample. Evaluating samples one at a time, though, costs several times as much per pixel as
+  // renderBatch(), which is fast because it works on lots of pixels at once. So we work through
+  // the quadtree a level at a time: first we gather up the samples that every block on the level
+  // needs and evaluate them in one batch, then we decide what to do with each block, and then we
+  // evaluate every pixel of the blocks too small to divide, again in one batch.
+
+  /** The state of the quadtree over one tile of the image. */
+  private final class Tile {
+    private final ImageFunction function;
+    private final Viewport viewport;
+    private final int[] output;
+    private final int xsize;
+    private final int ysize;
+    private final int xstart;
+    private final int ystart;
+    private final int width;
+    private final int height;
+    private final int[] sampled;
+    private final int[] pending;
+    private int numPending = 0;
+    private long evaluated = 0;
+
+    // the blocks on the current level, and the next one, as (x0, y0, x1, y1), inclusive
+    private int[] blocks = new int[64];
+    private int numBlocks = 0;
+    private int[] next = new int[64];
+    private int numNext = 0;
+
+    Tile(
+        ImageFunction function,
+        Viewport viewport,
+        int[] output,
+        int xsize,
+        int ysize,
+        int xstart,
+        int ystart,
+        int width,
+        int height) {
+      this.function = function;
+      this.viewport = viewport;
+      this.output = output;
+      this.xsize = xsize;
+      this.ysize = ysize;
+      this.xstart = xstart;
+      this.ystart = ystart;
+      this.width = width;
+      this.height = height;
+      this.sampled = TileArena.get().intBuffer(TileArena.SAMPLED, width * height);
+      this.pending = new int[width * height];
+      Arrays.fill(sampled, 0, width * height, UNKNOWN);
+    }
+
+    private double x(int px) {
+      return viewport.x(px, xsize);
+    }
+
+    private double y(int py) {
+      return viewport.y(py, ysize);
+    }
+
+    /** Fills in every pixel of the tile, one way or another. */
+    void render() {
+      // start with blocks small enough to interpolate, sharing their edges
+      var xend = xstart + width - 1;
+      var yend = ystart + height - 1;
+      for (var y0 = ystart; ; y0 += MAX_BLOCK) {
+        var y1 = Math.min(y0 + MAX_BLOCK, yend);
+        for (var x0 = xstart; ; x0 += MAX_BLOCK) {
+          var x1 = Math.min(x0 + MAX_BLOCK, xend);
+          addNext(x0, y0, x1, y1);
+          if (x1 == xend) {
+            break;
+          }
+        }
+        if (y1 == yend) {
+          break;
+        }
+      }
+
+      while (numNext > 0) {
+        var swap = blocks;
+        blocks = next;
+        numBlocks = numNext;
+        next = swap;
+        numNext = 0;
+
+        for (var b = 0; b < 4 * numBlocks; b += 4) {
+          if (!isSmall(b)) {
+            var x0 = blocks[b];
+            var y0 = blocks[b + 1];
+            var x1 = blocks[b + 2];
+            var y1 = blocks[b + 3];
+            request(x0, y0);
+            request(x1, y0);
+            request(x0, y1);
+            request(x1, y1);
+            request((x0 + x1) / 2, (y0 + y1) / 2);
+          }
+        }
+        evaluatePending();
+
+        for (var b = 0; b < 4 * numBlocks; b += 4) {
+          var x0 = blocks[b];
+          var y0 = blocks[b + 1];
+          var x1 = blocks[b + 2];
+          var y1 = blocks[b + 3];
+          if (isSmall(b)) {
+            for (var py = y0; py <= y1; py++) {
+              for (var px = x0; px <= x1; px++) {
+                request(px, py);
+              }
+            }
+            continue;
+          }
+
+          var c00 = color(x0, y0);
+          var c10 = color(x1, y0);
+          var c01 = color(x0, y1);
+          var c11 = color(x1, y1);
+          var center = color((x0 + x1) / 2, (y0 + y1) / 2);
+          if (spread(c00, c10, c01, c11, center) <= threshold
+              && (!strict || function.isContinuousOver(x(x0), x(x1), y(y1), y(y0)))) {
+            interpolate(x0, y0, x1, y1, c00, c10, c01, c11);
+            continue;
+          }
+
+          // only split the dimensions that are still big enough to be worth it
+          var xm = (x0 + x1) / 2;
+          var ym = (y0 + y1) / 2;
+          var splitX = x1 - x0 >= MIN_BLOCK;
+          var splitY = y1 - y0 >= MIN_BLOCK;
+          if (splitX && splitY) {
+            addNext(x0, y0, xm, ym);
+            addNext(xm, y0, x1, ym);
+            addNext(x0, ym, xm, y1);
+            addNext(xm, ym, x1, y1);
+          } else if (splitX) {
+            addNext(x0, y0, xm, y1);
+            addNext(xm, y0, x1, y1);
+          } else {
+            addNext(x0, y0, x1, ym);
+            addNext(x0, ym, x1, y1);
+          }
+        }
+        evaluatePending();
+      }
+    }
+
+    private boolean isSmall(int b) {
+      return blocks[b + 2] - blocks[b] < MIN_BLOCK && blocks[b + 3] - blocks[b + 1] < MIN_BLOCK;
+    }
+
+    private void addNext(int x0, int y0, int x1, int y1) {
+      if (4 * numNext + 4 > next.length) {
+        next = Arrays.copyOf(next, 2 * next.length);
+      }
+      next[4 * numNext] = x0;
+      next[4 * numNext + 1] = y0;
+      next[4 * numNext + 2] = x1;
+      next[4 * numNext + 3] = y1;
+      numNext++;
+    }
+
+    /** Asks for a pixel to be evaluated in the next batch, unless it already has been. */
+    private void request(int px, int py) {
+      var i = (py - ystart) * width + (px - xstart);
+      if (sampled[i] == UNKNOWN || sampled[i] == INTERPOLATED) {
+        sampled[i] = PENDING;
+        pending[numPending++] = i;
+      }
+    }
+
+    /** The color of a pixel that's been evaluated. */
+    private int color(int px, int py) {
+      return output[py * xsize + px];
+    }
+
+    /** Evaluates every pixel that's been asked for, all at once. */
+    private void evaluatePending() {
+      var n = numPending;
+      if (n == 0) {
+        return;
+      }
+      var arena = TileArena.get();
+      var xs = arena.buffer(TileArena.XS, n);
+      var ys = arena.buffer(TileArena.YS, n);
+      var colors = arena.buffer(TileArena.OUTPUT, 3 * n);
+      for (var k = 0; k < n; k++) {
+        xs[k] = x(xstart + pending[k] % width);
+        ys[k] = y(ystart + pending[k] / width);
+      }
+      function.renderBatch(xs, ys, n, colors);
+
+      for (var k = 0; k < n; k++) {
+        var i = pending[k];
+        output[(ystart + i / width) * xsize + xstart + i % width] =
+            RgbColor.toRgb(colors[k], colors[n + k], colors[2 * n + k]);
+        sampled[i] = EVALUATED;
+      }
+      evaluated += n;
+      numPending = 0;
+    }
+
+    /**
+     * Fills in every pixel of a block that nobody has evaluated or asked for, bilinearly from the
+     * corners.
+     */
+    private void interpolate(int x0, int y0, int x1, int y1, int c00, int c10, int c01, int c11) {
+      var dx = Math.max(1, x1 - x0);
+      var dy = Math.max(1, y1 - y0);
+      for (var py = y0; py <= y1; py++) {
+        var fy = (py - y0) / (double) dy;
+        for (var px = x0; px <= x1; px++) {
+          var s = (py - ystart) * width + (px - xstart);
+          if (sampled[s] == PENDING || sampled[s] == EVALUATED) {
+            continue;
+          }
+          var fx = (px - x0) / (double) dx;
+          var color = 0xFF000000;
+          for (var shift = 0; shift < 24; shift += 8) {
+            var top = lerp(channel(c00, shift), channel(c10, shift), fx);
+            var bottom = lerp(channel(c01, shift), channel(c11, shift), fx);
+            color |= ((int) Math.round(lerp(top, bottom, fy))) << shift;
+          }
+          output[py * xsize + px] = color;
+          sampled[s] = INTERPOLATED;
+        }
+      }
+    }
+  }
+
+  private static int channel(int color, int shift) {
+    return (color >> shift) & 0xFF;
+  }
+
+  private static double lerp(double a, double b, double t) {
+    return a + (b - a) * t;
+  }
+
+  /** The most that any 8-bit channel varies across the given colors. */
+  private static int spread(int c1, int c2, int c3, int c4, int c5) {
+    var result = 0;
+    for (var shift = 0; shift < 24; shift += 8) {
+      var a = channel(c1, shift);
+      var b = channel(c2, shift);
+      var c = channel(c3, shift);
+      var d = channel(c4, shift);
+      var e = channel(c5, shift);
+      var min = Math.min(Math.min(Math.min(a, b), Math.min(c, d)), e);
+      var max = Math.max(Math.max(Math.max(a, b), Math.max(c, d)), e);
+      result = Math.max(result, max - min);
+    }
+    return result;
+  }
+}
@@ -22,6 +22,8 @@ import io.vavr.collection.Map;
 import io.vavr.collection.Seq;
 import java.util.function.BiFunction;
 import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.UnaryOperator;
 
 /**
@@ -43,8 +45,12 @@ import java.util.function.UnaryOperator;
  * <p>We have a large number of helper methods to create alleles. They all take a lambda of some
  * form. For example, {@link #oneChild(String, UnaryOperator)} takes a function from double to
  * double, and adapts that function to operate piecewise on the red, green, and blue values in a
- * {@link RgbColor}. If you need to deal with the RgbColor instances directly, we have helpers like
- * {@link #oneChildRgb(String, UnaryOperator)}.
+ * {@link RgbColor}. Variants like {@link #oneChildDouble(String, DoubleUnaryOperator)} do the same
+ * with primitive functional interfaces, avoiding the cost of boxing every double. If you need to
+ * deal with the RgbColor instances directly, we have helpers like {@link #oneChildRgb(String,
+ * UnaryOperator)}. And if you want to avoid allocating RgbColor instances at all, helpers like
+ * {@link #oneChildInPlace(String, InPlaceOperator)} take a lambda that works in place on a stack of
+ * colors, stored as doubles in an array.
  *
  * <p>Once built, the only thing you can really do with an Allele is to assemble it via {@link
  * #assemble(Seq)} or {@link #assemble(ImageFunction...)} with other Alleles to yield an {@link
@@ -62,111 +68,120 @@ public interface Allele {
   /** Convenient mapping from name to individual genes. */
   Map<String, Allele> INTRINSIC_ALLELE_MAP =
       List.of(
-              oneChild("sine", Math::sin),
-              oneChild("cosine", Math::cos),
-              oneChild("arctan", Math::atan),
-              oneChild("tanh", Math::tanh),
-              oneChild("exp", Math::exp),
-              oneChild("log", Math::log),
-              oneChild("negate", x -> -x),
+              oneChildDouble("sine", Math::sin),
+              oneChildDouble("cosine", Math::cos),
+              oneChildDouble("arctan", Math::atan),
+              oneChildDouble("tanh", Math::tanh),
+              oneChildDouble("exp", Math::exp),
+              oneChildDouble("log", Math::log),
+              oneChildDouble("negate", x -> -x),
 
               // some decidedly non-linear functions: these can lead to visually interesting results
-              oneChild("abs", Math::abs),
-              twoChild("max", Math::max),
-              twoChild("min", Math::min),
+              oneChildDouble("abs", Math::abs),
+              twoChildDouble("max", Math::max),
+              twoChildDouble("min", Math::min),
 
               // like Math::signum, but without the zero in the middle
-              oneChild("sign", x -> x < 0.0 ? -1.0 : 1.0),
-              oneChild("clamp-negative", x -> x < 0.0 ? 0.0 : x),
-              oneChild("clamp-positive", x -> x > 0.0 ? 0.0 : x),
-              oneChild("floor", Math::floor),
-              oneChild("ceiling", Math::ceil),
-              oneChild(
-                  "wrap",
-                  x -> {
-                    var y = x / 2 + 0.5;
-                    var z = y - Math.floor(y);
-                    return z * 2 - 1;
-                  }),
-              oneChild(
-                  "clip",
-                  x -> {
-                    if (x > 1.0) {
-                      return 1.0;
-                    } else if (x < -1.0) {
-                      return -1.0;
-                    } else {
-                      return x;
-                    }
-                  }),
-              oneChild("mantissa", Allele::getMantissa),
+              oneChildDouble("sign", Allele::sign),
+              oneChildDouble("clamp-negative", Allele::clampNegative),
+              oneChildDouble("clamp-positive", Allele::clampPositive),
+              oneChildDouble("floor", Math::floor),
+              oneChildDouble("ceiling", Math::ceil),
+              oneChildDouble("wrap", Allele::wrap),
+              oneChildDouble("clip", Allele::clip),
+              oneChildDouble("mantissa", Allele::getMantissa),
 
               // Here's the official spec from the ITU for JPEG:
               // (http://www.itu.int/rec/T-REC-T.871)
               // Y = Min( Max( 0, Round( 0.299 * R + 0.587 * G + 0.114 * B ) ), 255 )
               // CB = Min(Max(0,Round(( −0.299*R −0.587*G +0.886*B )/1.772 +128 )),255)
               // CR = Min(Max(0,Round(( 0.701*R −0.587*G −0.114*B )/1.402 +128 )),255)
-              oneChildRgb(
+              oneChildInPlace(
                   "rgb-to-ycrcb",
-                  in ->
-                      color(
-                          .299 * in.r + .587 * in.g + .114 * in.b,
-                          .701 / 1.402 * in.r - .587 / 1.402 * in.g - .114 / 1.402 * in.b,
-                          -.299 / 1.772 * in.r - .587 / 1.772 * in.g + .886 / 1.772 * in.b)),
+                  (s, i) -> {
+                    var r = s[i];
+                    var g = s[i + 1];
+                    var b = s[i + 2];
+                    store(
+                        s,
+                        i,
+                        .299 * r + .587 * g + .114 * b,
+                        .701 / 1.402 * r - .587 / 1.402 * g - .114 / 1.402 * b,
+                        -.299 / 1.772 * r - .587 / 1.772 * g + .886 / 1.772 * b);
+                  }),
 
               // More ITU official specs:
               // R = Min(Max(0,Round(Y +1.402*(CR −128) )),255)
               // G = Min(Max(0,Round(Y−(0.114*1.772*(CB −128)+0.299*1.402*(CR −128))/0.587)),255)
               // B = Min(Max(0,Round(Y +1.772*(CB −128) )),255)
 
-              oneChildRgb(
+              oneChildInPlace(
                   "ycrcb-to-rgb",
-                  in ->
-                      color(
-                          in.r + 1.402 * in.g,
-                          in.r - .299 * 1.402 / .587 * in.g - .114 * 1.772 / .587 * in.b,
-                          in.r + 1.772 * in.b)),
-              oneChildRgb(
+                  (s, i) -> {
+                    var r = s[i];
+                    var g = s[i + 1];
+                    var b = s[i + 2];
+                    store(
+                        s,
+                        i,
+                        r + 1.402 * g,
+                        r - .299 * 1.402 / .587 * g - .114 * 1.772 / .587 * b,
+                        r + 1.772 * b);
+                  }),
+              oneChildInPlace(
                   "grey-perlin",
-                  in -> {
+                  (s, i) -> {
                     // single RGB as coordinates for the noise function
-                    var noiseVal = simplexNoise.eval(in.r, in.g, in.b);
-                    return color(noiseVal, noiseVal, noiseVal); // greyscale output
+                    var noiseVal = simplexNoise.eval(s[i], s[i + 1], s[i + 2]);
+                    store(s, i, noiseVal, noiseVal, noiseVal); // greyscale output
                   }),
 
               // this will call the noise function three times, piecewise
-              threeChild("color-perlin", simplexNoise::eval),
+              threeChildDouble("color-perlin", simplexNoise::eval),
+
+              // like grey-perlin, but in four dimensions, with the red channel of the second
+              // child as the fourth; an animation uses this with t to make grey-perlin move
+              twoChildInPlace(
+                  "grey-perlin-4d",
+                  (s, i) -> {
+                    var noiseVal = simplexNoise.eval(s[i], s[i + 1], s[i + 2], s[i + 3]);
+                    store(s, i, noiseVal, noiseVal, noiseVal);
+                  }),
 
               // red channel --> all channels
-              oneChildRgb("red-channel", in -> color(in.r, in.r, in.r)),
+              oneChildInPlace("red-channel", (s, i) -> store(s, i, s[i], s[i], s[i])),
               // green channel --> all channels
-              oneChildRgb("green-channel", in -> color(in.g, in.g, in.g)),
+              oneChildInPlace("green-channel", (s, i) -> store(s, i, s[i + 1], s[i + 1], s[i + 1])),
               // blue channel --> all channels
-              oneChildRgb("blue-channel", in -> color(in.b, in.b, in.b)),
+              oneChildInPlace("blue-channel", (s, i) -> store(s, i, s[i + 2], s[i + 2], s[i + 2])),
 
               // red from input1, green from input2, blue from input3
-              threeChildRgb("color-mix", (in1, in2, in3) -> color(in1.r, in2.g, in3.b)),
-              twoChild("arctan2", Math::atan2),
-              twoChild("div", (x, y) -> (y == 0.0) ? 0 : x / y),
-              twoChild("mul", (x, y) -> x * y),
-              twoChild("add", (x, y) -> x + y),
-              twoChild("sub", (x, y) -> x - y),
-              twoChildRgb(
-                  "inner-product", (c1, c2) -> color(c1.r * c2.r, c1.g * c2.g, c1.b * c2.b)),
-              threeChild("dissolve", (x, y, t) -> (1.0 - t) * x + t * y),
-              zeroChild("x", (x, y) -> color(x, x, x)),
-              zeroChild("y", (x, y) -> color(y, y, y)),
-              zeroChild("0xy", (x, y) -> color(0, x, y)),
-              zeroChild("0yx", (x, y) -> color(0, y, x)),
-              zeroChild("x0y", (x, y) -> color(x, 0, y)),
-              zeroChild("y0x", (x, y) -> color(y, 0, x)),
-              zeroChild("xy0", (x, y) -> color(x, y, 0)),
-              zeroChild("yx0", (x, y) -> color(y, x, 0)),
-              zeroChild("black", (x, y) -> color(-1, -1, -1)),
-              zeroChild("white", (x, y) -> color(1, 1, 1)),
-              zeroChild("red", (x, y) -> color(1, -1, -1)),
-              zeroChild("green", (x, y) -> color(-1, 1, -1)),
-              zeroChild("blue", (x, y) -> color(-1, -1, 1)))
+              threeChildInPlace("color-mix", (s, i) -> store(s, i, s[i], s[i + 4], s[i + 8])),
+              twoChildDouble("arctan2", Math::atan2),
+              twoChildDouble("div", Allele::divide),
+              twoChildDouble("mul", (x, y) -> x * y),
+              twoChildDouble("add", (x, y) -> x + y),
+              twoChildDouble("sub", (x, y) -> x - y),
+              twoChildInPlace(
+                  "inner-product",
+                  (s, i) -> store(s, i, s[i] * s[i + 3], s[i + 1] * s[i + 4], s[i + 2] * s[i + 5])),
+              threeChildDouble("dissolve", Allele::dissolve),
+              zeroChildInPlace("x", (x, y, s, i) -> store(s, i, x, x, x)),
+              zeroChildInPlace("y", (x, y, s, i) -> store(s, i, y, y, y)),
+              zeroChildInPlace("0xy", (x, y, s, i) -> store(s, i, 0, x, y)),
+              zeroChildInPlace("0yx", (x, y, s, i) -> store(s, i, 0, y, x)),
+              zeroChildInPlace("x0y", (x, y, s, i) -> store(s, i, x, 0, y)),
+              zeroChildInPlace("y0x", (x, y, s, i) -> store(s, i, y, 0, x)),
+              zeroChildInPlace("xy0", (x, y, s, i) -> store(s, i, x, y, 0)),
+              zeroChildInPlace("yx0", (x, y, s, i) -> store(s, i, y, x, 0)),
+
+              // time, which stands still at zero except in an animation; see Animation
+              zeroChildInPlace("t", (x, y, s, i) -> store(s, i, 0, 0, 0)),
+              zeroChildInPlace("black", (x, y, s, i) -> store(s, i, -1, -1, -1)),
+              zeroChildInPlace("white", (x, y, s, i) -> store(s, i, 1, 1, 1)),
+              zeroChildInPlace("red", (x, y, s, i) -> store(s, i, 1, -1, -1)),
+              zeroChildInPlace("green", (x, y, s, i) -> store(s, i, -1, 1, -1)),
+              zeroChildInPlace("blue", (x, y, s, i) -> store(s, i, -1, -1, 1)))
           .toMap(Allele::getName, imageGene -> imageGene);
 
   /** Describes how many children this particular gene requires. */
@@ -207,6 +222,22 @@ public interface Allele {
    */
   static Allele zeroChild(
       String name, String parameter, BiFunction<Double, Double, RgbColor> operator) {
+    return zeroChildInPlace(name, parameter, (x, y, s, i) -> store(s, i, operator.apply(x, y)));
+  }
+
+  /**
+   * Like {@link #zeroChild(String, BiFunction)}, but the function writes its color directly into a
+   * stack of colors (see {@link InPlaceLeaf}) rather than allocating an {@link RgbColor}.
+   */
+  static Allele zeroChildInPlace(String name, InPlaceLeaf operator) {
+    return zeroChildInPlace(name, "", operator);
+  }
+
+  /**
+   * Like {@link #zeroChild(String, String, BiFunction)}, but the function writes its color directly
+   * into a stack of colors (see {@link InPlaceLeaf}) rather than allocating an {@link RgbColor}.
+   */
+  static Allele zeroChildInPlace(String name, String parameter, InPlaceLeaf operator) {
     return new ZeroChild(name, parameter, operator);
   }
 
@@ -225,10 +256,30 @@ public interface Allele {
    * operator piecewise.
    */
   static Allele oneChild(String name, String parameter, UnaryOperator<Double> operator) {
-    return oneChildRgb(
+    return oneChildDouble(name, parameter, operator::apply);
+  }
+
+  /**
+   * Like {@link #oneChild(String, UnaryOperator)}, but the operator works on primitive doubles, so
+   * nothing gets boxed when it's applied to each of r, g, and b.
+   */
+  static Allele oneChildDouble(String name, DoubleUnaryOperator operator) {
+    return oneChildDouble(name, "", operator);
+  }
+
+  /**
+   * Like {@link #oneChild(String, String, UnaryOperator)}, but the operator works on primitive
+   * doubles, so nothing gets boxed when it's applied to each of r, g, and b.
+   */
+  static Allele oneChildDouble(String name, String parameter, DoubleUnaryOperator operator) {
+    return oneChildInPlace(
         name,
         parameter,
-        rgb -> color(operator.apply(rgb.r), operator.apply(rgb.g), operator.apply(rgb.b)));
+        (s, i) -> {
+          s[i] = operator.applyAsDouble(s[i]);
+          s[i + 1] = operator.applyAsDouble(s[i + 1]);
+          s[i + 2] = operator.applyAsDouble(s[i + 2]);
+        });
   }
 
   /**
@@ -244,6 +295,22 @@ public interface Allele {
    * when being assembled, using the given operator.
    */
   static Allele oneChildRgb(String name, String parameter, UnaryOperator<RgbColor> operator) {
+    return oneChildInPlace(name, parameter, (s, i) -> store(s, i, operator.apply(load(s, i))));
+  }
+
+  /**
+   * Given an operator that works in place on a stack of colors (see {@link InPlaceOperator}),
+   * return an allele that accepts one child when being assembled, using the given operator.
+   */
+  static Allele oneChildInPlace(String name, InPlaceOperator operator) {
+    return oneChildInPlace(name, "", operator);
+  }
+
+  /**
+   * Given an operator that works in place on a stack of colors (see {@link InPlaceOperator}),
+   * return an allele that accepts one child when being assembled, using the given operator.
+   */
+  static Allele oneChildInPlace(String name, String parameter, InPlaceOperator operator) {
     return new OneChild(name, parameter, operator);
   }
 
@@ -262,14 +329,30 @@ public interface Allele {
    * applying the given operator piecewise.
    */
   static Allele twoChild(String name, String parameter, BinaryOperator<Double> operator) {
-    return twoChildRgb(
+    return twoChildDouble(name, parameter, operator::apply);
+  }
+
+  /**
+   * Like {@link #twoChild(String, BinaryOperator)}, but the operator works on primitive doubles, so
+   * nothing gets boxed when it's applied to each of r, g, and b.
+   */
+  static Allele twoChildDouble(String name, DoubleBinaryOperator operator) {
+    return twoChildDouble(name, "", operator);
+  }
+
+  /**
+   * Like {@link #twoChild(String, String, BinaryOperator)}, but the operator works on primitive
+   * doubles, so nothing gets boxed when it's applied to each of r, g, and b.
+   */
+  static Allele twoChildDouble(String name, String parameter, DoubleBinaryOperator operator) {
+    return twoChildInPlace(
         name,
         parameter,
-        (rgb0, rgb1) ->
-            color(
-                operator.apply(rgb0.r, rgb1.r),
-                operator.apply(rgb0.g, rgb1.g),
-                operator.apply(rgb0.b, rgb1.b)));
+        (s, i) -> {
+          s[i] = operator.applyAsDouble(s[i], s[i + 3]);
+          s[i + 1] = operator.applyAsDouble(s[i + 1], s[i + 4]);
+          s[i + 2] = operator.applyAsDouble(s[i + 2], s[i + 5]);
+        });
   }
 
   /**
@@ -285,6 +368,25 @@ public interface Allele {
    * when being assembled, using the given operator to combine them.
    */
   static Allele twoChildRgb(String name, String parameter, BinaryOperator<RgbColor> operator) {
+    return twoChildInPlace(
+        name, parameter, (s, i) -> store(s, i, operator.apply(load(s, i), load(s, i + 3))));
+  }
+
+  /**
+   * Given an operator that works in place on a stack of colors (see {@link InPlaceOperator}),
+   * return an allele that accepts two children when being assembled, using the given operator to
+   * combine them.
+   */
+  static Allele twoChildInPlace(String name, InPlaceOperator operator) {
+    return twoChildInPlace(name, "", operator);
+  }
+
+  /**
+   * Given an operator that works in place on a stack of colors (see {@link InPlaceOperator}),
+   * return an allele that accepts two children when being assembled, using the given operator to
+   * combine them.
+   */
+  static Allele twoChildInPlace(String name, String parameter, InPlaceOperator operator) {
     return new TwoChild(name, parameter, operator);
   }
 
@@ -294,13 +396,21 @@ public interface Allele {
    * piecewise.
    */
   static Allele threeChild(String name, TriFunction<Double, Double, Double, Double> operator) {
-    return threeChildRgb(
+    return threeChildDouble(name, operator::apply);
+  }
+
+  /**
+   * Like {@link #threeChild(String, TriFunction)}, but the operator works on primitive doubles, so
+   * nothing gets boxed when it's applied to each of r, g, and b.
+   */
+  static Allele threeChildDouble(String name, DoubleTernaryOperator operator) {
+    return threeChildInPlace(
         name,
-        (rgb0, rgb1, rgb2) ->
-            color(
-                operator.apply(rgb0.r, rgb1.r, rgb2.r),
-                operator.apply(rgb0.g, rgb1.g, rgb2.g),
-                operator.apply(rgb0.b, rgb1.b, rgb2.b)));
+        (s, i) -> {
+          s[i] = operator.applyAsDouble(s[i], s[i + 3], s[i + 6]);
+          s[i + 1] = operator.applyAsDouble(s[i + 1], s[i + 4], s[i + 7]);
+          s[i + 2] = operator.applyAsDouble(s[i + 2], s[i + 5], s[i + 8]);
+        });
   }
 
   /**
@@ -309,18 +419,81 @@ public interface Allele {
    */
   static Allele threeChildRgb(
       String name, TriFunction<RgbColor, RgbColor, RgbColor, RgbColor> operator) {
+    return threeChildInPlace(
+        name, (s, i) -> store(s, i, operator.apply(load(s, i), load(s, i + 3), load(s, i + 6))));
+  }
+
+  /**
+   * Given an operator that works in place on a stack of colors (see {@link InPlaceOperator}),
+   * return an allele that accepts three children when being assembled, using the given operator to
+   * combine them.
+   */
+  static Allele threeChildInPlace(String name, InPlaceOperator operator) {
     return new ThreeChild(name, operator);
   }
 
   /** Given an {@link RgbColor}, yields an Allele that renders to exactly that color. */
   static Allele constantRgb(RgbColor color) {
-    return new ZeroChild("constant-color", color.toHexColor(), (x, y) -> color);
+    return new ZeroChild(
+        "constant-color",
+        color.toHexColor(),
+        (x, y, s, i) -> store(s, i, color.r, color.g, color.b));
   }
 
   /** Given a number, yields an Allele that uses that number for all three color channels. */
   static Allele constantNumber(double number) {
     return new ZeroChild(
-        "constant-number", Double.toString(number), (x, y) -> color(number, number, number));
+        "constant-number",
+        Double.toString(number),
+        (x, y, s, i) -> store(s, i, number, number, number));
+  }
+
+  /** Writes a color to the stack at the given index. */
+  private static void store(double[] stack, int top, double r, double g, double b) {
+    stack[top] = r;
+    stack[top + 1] = g;
+    stack[top + 2] = b;
+  }
+
+  /** Writes a color to the stack at the given index. */
+  private static void store(double[] stack, int top, RgbColor color) {
+    store(stack, top, color.r, color.g, color.b);
+  }
+
+  /** Reads a color from the stack at the given index. */
+  private static RgbColor load(double[] stack, int top) {
+    return color(stack[top], stack[top + 1], stack[top + 2]);
+  }
+
+  /**
+   * An operation on three doubles that produces a double, like {@link DoubleBinaryOperator} but
+   * with one more argument. This is the primitive counterpart to {@link TriFunction}.
+   */
+  @FunctionalInterface
+  interface DoubleTernaryOperator {
+    double applyAsDouble(double a, double b, double c);
+  }
+
+  /**
+   * An operator on colors that works in place, on a stack of colors, as used by {@link
+   * ImageFunction#renderInto(double, double, double[], int)}. Each color is three consecutive
+   * doubles (r, g, b). The operator's inputs, one per child, start at <code>stack[top]</code>,
+   * <code>stack[top + 3]</code>, and <code>stack[top + 6]</code>, and the operator writes its
+   * result over the first of them. Anything above that is scratch space.
+   */
+  @FunctionalInterface
+  interface InPlaceOperator {
+    void apply(double[] stack, int top);
+  }
+
+  /**
+   * A leaf function of the (x, y) coordinates of the pixel being evaluated, which writes its color
+   * to <code>stack[top]</code>, <code>stack[top + 1]</code>, and <code>stack[top + 2]</code> rather
+   * than allocating an {@link RgbColor}. See {@link InPlaceOperator}.
+   */
+  @FunctionalInterface
+  interface InPlaceLeaf {
+    void apply(double x, double y, double[] stack, int top);
   }
 
   /**
@@ -343,6 +516,53 @@ public interface Allele {
     }
   }
 
+  // The remaining static helpers are the piecewise operators behind the non-trivial intrinsic
+  // alleles. They live here, rather than inside lambdas in INTRINSIC_ALLELE_MAP, so that other
+  // evaluation engines (e.g., GeneTreeCompiler) can call the exact same code.
+
+  /** Like {@link Math#signum(double)}, but without the zero in the middle. */
+  static double sign(double x) {
+    return x < 0.0 ? -1.0 : 1.0;
+  }
+
+  /** Negative numbers become zero; positive numbers pass through. */
+  static double clampNegative(double x) {
+    return x < 0.0 ? 0.0 : x;
+  }
+
+  /** Positive numbers become zero; negative numbers pass through. */
+  static double clampPositive(double x) {
+    return x > 0.0 ? 0.0 : x;
+  }
+
+  /** Wraps any number around into the range [-1,1]. */
+  static double wrap(double x) {
+    var y = x / 2 + 0.5;
+    var z = y - Math.floor(y);
+    return z * 2 - 1;
+  }
+
+  /** Clips any number to fit within the range [-1,1]. */
+  static double clip(double x) {
+    if (x > 1.0) {
+      return 1.0;
+    } else if (x < -1.0) {
+      return -1.0;
+    } else {
+      return x;
+    }
+  }
+
+  /** Division, except that dividing by zero yields zero rather than infinity or NaN. */
+  static double divide(double x, double y) {
+    return (y == 0.0) ? 0 : x / y;
+  }
+
+  /** Linear interpolation from x (when t is zero) to y (when t is one). */
+  static double dissolve(double x, double y, double t) {
+    return (1.0 - t) * x + t * y;
+  }
+
   abstract class AnyChild implements Allele {
     protected final String name;
     protected final String parameter;
@@ -396,11 +616,37 @@ public interface Allele {
     }
   }
 
+  /**
+   * Base class for the {@link ImageFunction}s that our alleles assemble into. These render by way
+   * of {@link #renderInto(double, double, double[], int)}, passing a single stack of colors down
+   * the tree, so rendering a pixel allocates nothing, no matter how big the tree. {@link
+   * #render(double, double)} is just an adapter, which allocates a stack and a color for the
+   * result.
+   */
+  abstract class AssembledFunction implements ImageFunction {
+    private final int stackSize;
+
+    private AssembledFunction(int stackSize) {
+      this.stackSize = stackSize;
+    }
+
+    @Override
+    public int stackSize() {
+      return stackSize;
+    }
+
+    @Override
+    public RgbColor render(double x, double y) {
+      var stack = new double[3 * stackSize];
+      renderInto(x, y, stack, 0);
+      return load(stack, 0);
+    }
+  }
+
   class ZeroChild extends AnyChild {
-    protected final BiFunction<Double, Double, RgbColor> operator;
+    protected final InPlaceLeaf operator;
 
-    private ZeroChild(
-        String name, String parameter, BiFunction<Double, Double, RgbColor> operator) {
+    private ZeroChild(String name, String parameter, InPlaceLeaf operator) {
       super(name, parameter);
       this.operator = operator;
     }
@@ -416,14 +662,19 @@ public interface Allele {
         throw new RuntimeException("exactly zero children required");
       }
 
-      return operator::apply;
+      return new AssembledFunction(1) {
+        @Override
+        public void renderInto(double x, double y, double[] stack, int top) {
+          operator.apply(x, y, stack, top);
+        }
+      };
     }
   }
 
   class OneChild extends AnyChild {
-    protected final UnaryOperator<RgbColor> operator;
+    protected final InPlaceOperator operator;
 
-    private OneChild(String name, String parameter, UnaryOperator<RgbColor> operator) {
+    private OneChild(String name, String parameter, InPlaceOperator operator) {
       super(name, parameter);
       this.operator = operator;
     }
@@ -439,14 +690,21 @@ public interface Allele {
         throw new RuntimeException("exactly one child is required");
       }
 
-      return (x, y) -> operator.apply(children.head().render(x, y));
+      var child0 = children.head();
+      return new AssembledFunction(child0.stackSize()) {
+        @Override
+        public void renderInto(double x, double y, double[] stack, int top) {
+          child0.renderInto(x, y, stack, top);
+          operator.apply(stack, top);
+        }
+      };
     }
   }
 
   class TwoChild extends AnyChild {
-    protected final BinaryOperator<RgbColor> operator;
+    protected final InPlaceOperator operator;
 
-    private TwoChild(String name, String parameter, BinaryOperator<RgbColor> operator) {
+    private TwoChild(String name, String parameter, InPlaceOperator operator) {
       super(name, parameter);
       this.operator = operator;
     }
@@ -462,16 +720,25 @@ public interface Allele {
         throw new RuntimeException("exactly two children required");
       }
 
+      // Each child renders into the stack just above the previous one, so later children need
+      // one more color of stack space than they would on their own.
       var child0 = children.head();
       var child1 = children.get(1);
-      return (x, y) -> operator.apply(child0.render(x, y), child1.render(x, y));
+      return new AssembledFunction(Math.max(child0.stackSize(), 1 + child1.stackSize())) {
+        @Override
+        public void renderInto(double x, double y, double[] stack, int top) {
+          child0.renderInto(x, y, stack, top);
+          child1.renderInto(x, y, stack, top + 3);
+          operator.apply(stack, top);
+        }
+      };
     }
   }
 
   class ThreeChild extends AnyChild {
-    private final TriFunction<RgbColor, RgbColor, RgbColor, RgbColor> operator;
+    private final InPlaceOperator operator;
 
-    private ThreeChild(String name, TriFunction<RgbColor, RgbColor, RgbColor, RgbColor> operator) {
+    private ThreeChild(String name, InPlaceOperator operator) {
       super(name, "");
       this.operator = operator;
     }
@@ -490,8 +757,17 @@ public interface Allele {
       var child0 = children.head();
       var child1 = children.get(1);
       var child2 = children.get(2);
-      return (x, y) ->
-          operator.apply(child0.render(x, y), child1.render(x, y), child2.render(x, y));
+      var stackSize =
+          Math.max(child0.stackSize(), Math.max(1 + child1.stackSize(), 2 + child2.stackSize()));
+      return new AssembledFunction(stackSize) {
+        @Override
+        public void renderInto(double x, double y, double[] stack, int top) {
+          child0.renderInto(x, y, stack, top);
+          child1.renderInto(x, y, stack, top + 3);
+          child2.renderInto(x, y, stack, top + 6);
+          operator.apply(stack, top);
+        }
+      };
     }
   }
 }
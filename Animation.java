@@ -0,0 +1,586 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.prettypictures.Allele.INTRINSIC_ALLELE_MAP;
+import static edu.rice.prettypictures.GeneTree.constantNumberTree;
+import static edu.rice.prettypictures.GeneTree.geneTree;
+
+import edu.rice.autograder.annotations.GradeCoverage;
+import edu.rice.io.Files;
+import edu.rice.json.Parser;
+import edu.rice.util.Log;
+import io.vavr.collection.List;
+import io.vavr.collection.Seq;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Renders a gene tree as an animation, with time as one more dimension of the noise. In frame
+ * <code>i</code>, at <code>t = i / fps</code> seconds, the <code>t</code> leaf is <code>t</code>
+ * rather than zero, every grey-perlin becomes a grey-perlin-4d with <code>t</code> as its fourth
+ * coordinate, and every color-perlin likewise moves through time, channel by channel (see {@link
+ * #atTime(GeneTree, double)}). So any tree with noise in it moves, even one that was bred without
+ * ever seeing a <code>t</code>, although a slice through 4D noise isn't the same as the 3D noise of
+ * the still image.
+ *
+ * <p>Every subtree that doesn't depend on time is rendered just once, before the first frame, and
+ * every frame looks up its colors rather than computing them again (see {@link #MAX_PLANE_BYTES}).
+ * The frames go to an animated PNG or a GIF, which loops forever. Frames are rendered a batch at a
+ * time, in parallel as usual, and compressed on threads of their own while the next batch renders,
+ * then written in order by one more thread. At most two batches are in memory at once.
+ *
+ * <p>Run it with the name of a file holding a gene tree as JSON (as the <code>/string/</code> route
+ * makes), the width and height, the number of frames, the frames per second, and the name of the
+ * file to write, which is a GIF if it ends in <code>.gif</code> and an animated PNG otherwise.
+ */
+@GradeCoverage(project = "PP1", exclude = true)
+@GradeCoverage(project = "PP2", exclude = true)
+@GradeCoverage(project = "PP3", exclude = true)
+public class Animation {
+  private static final String TAG = "Animation";
+
+  /** How many frames are rendered together, in one pass over the tiles. */
+  static final int FRAMES_PER_BATCH = 8;
+
+  /**
+   * The most bytes of time-invariant subtrees an animation renders up front, from the <code>
+   * prettypictures.animationPlaneBytes</code> system property, by default 512 MB. Each one costs 24
+   * bytes per pixel, three doubles, and the biggest subtrees get first call on the space. Whatever
+   * doesn't fit is computed in every frame instead.
+   */
+  static final long MAX_PLANE_BYTES =
+      Long.getLong("prettypictures.animationPlaneBytes", 512L * 1024 * 1024);
+
+  /**
+   * A time-invariant subtree with fewer nodes than this, once it's optimized, is cheaper to compute
+   * in every frame than to look up.
+   */
+  static final int MIN_PLANE_NODES = 3;
+
+  // every plane allele has its own parameter, so no two of them are ever equal
+  private static final AtomicLong planeIds = new AtomicLong();
+
+  /** How many threads compress frames while the next batch renders. */
+  static final int ENCODER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  private static final Allele TIME = INTRINSIC_ALLELE_MAP.get("t").get();
+  private static final Allele GREY_PERLIN = INTRINSIC_ALLELE_MAP.get("grey-perlin").get();
+  private static final Allele COLOR_PERLIN = INTRINSIC_ALLELE_MAP.get("color-perlin").get();
+
+  /** What an animation can be written as. */
+  public enum Format {
+    APNG,
+    GIF
+  }
+
+  // never instantiate this class
+  private Animation() {}
+
+  /** Main entry point. See the class comment for the arguments. */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 6) {
+      Log.e(TAG, "usage: Animation tree.json width height frames fps output.{png,gif}");
+      return;
+    }
+    var tree =
+        Files.read(args[0])
+            .toOption()
+            .flatMap(json -> Parser.parseJsonValue(json))
+            .flatMap(json -> GeneTree.of(json));
+    if (tree.isEmpty()) {
+      Log.e(TAG, () -> "couldn't read a gene tree from " + args[0]);
+      return;
+    }
+
+    render(
+        tree.get(),
+        Integer.parseInt(args[1]),
+        Integer.parseInt(args[2]),
+        Integer.parseInt(args[3]),
+        Double.parseDouble(args[4]),
+        args[5].toLowerCase().endsWith(".gif") ? Format.GIF : Format.APNG,
+        Path.of(args[5]),
+        CancellationToken.NONE);
+  }
+
+  /**
+   * Returns the tree as it is at time <code>t</code>: the <code>t</code> leaf becomes the constant
+   * <code>t</code>, <code>grey-perlin(a)</code> becomes <code>grey-perlin-4d(a, t)</code>, and
+   * <code>color-perlin(a, b, c)</code> becomes a color-mix of a grey-perlin-4d for each channel.
+   * Subtrees with none of these in them come back as they were, so the frames of an animation all
+   * share them.
+   */
+  public static GeneTree atTime(GeneTree tree, double t) {
+    return atTime(tree, constantNumberTree(t).get());
+  }
+
+  private static GeneTree atTime(GeneTree tree, GeneTree time) {
+    var gene = tree.getGene();
+    if (gene == TIME) {
+      return time;
+    }
+
+    var children = tree.getChildren();
+    var kids = children.map(kid -> atTime(kid, time));
+    if (gene == GREY_PERLIN) {
+      return geneTree("grey-perlin-4d", kids.get(0), time).get();
+    }
+    if (gene == COLOR_PERLIN) {
+      // channel c of color-perlin(a, b, c) is noise(a.c, b.c, c.c), which is the grey noise of
+      // color-mix(a.c, b.c, c.c)
+      return geneTree(
+              "color-mix",
+              perlinChannel("red-channel", kids, time),
+              perlinChannel("green-channel", kids, time),
+              perlinChannel("blue-channel", kids, time))
+          .get();
+    }
+    if (kids.zip(children).forAll(pair -> pair._1 == pair._2)) {
+      return tree; // nothing here moves
+    }
+    return geneTree(gene, kids).get();
+  }
+
+  private static GeneTree perlinChannel(String channel, Seq<GeneTree> kids, GeneTree time) {
+    var point = kids.map(kid -> geneTree(channel, kid).get());
+    return geneTree(
+            "grey-perlin-4d",
+            geneTree("color-mix", point.get(0), point.get(1), point.get(2)).get(),
+            time)
+        .get();
+  }
+
+  // Engineering note: most of a typical tree doesn't depend on time at all. Only the paths from
+  // the noise alleles and the t leaves up to the root change from frame to frame, and everything
+  // hanging off them is the same in every frame. So before the first frame, we find the biggest
+  // subtrees that don't depend on time, render each of them once, at the animation's size, into a
+  // plane of raw colors (unclamped, just as their parents would see them), and swap each one for
+  // a leaf that looks up its color in its plane. The leaf isn't an intrinsic allele, so every
+  // engine calls it, just as it does any other gene it can't lower, and since every pixel of
+  // every frame lands exactly on a pixel of the plane, the frames come out exactly as they would
+  // have without it. What's left of each frame is then just the part that moves.
+  //
+  // The frames are still flattened into a GeneProgram a batch at a time, as a generation's
+  // thumbnails are (see GeneProgram.of(Seq)), so that the lookups, and anything else the frames
+  // of a batch have in common, happen once per pixel per batch, and toImages() makes every frame
+  // of the batch in one pass over the tiles.
+
+  /**
+   * Renders <code>numFrames</code> frames of the tree, at <code>fps</code> frames per second, to
+   * the given file, in the given format. Gives up if <code>token</code> is cancelled, removing
+   * whatever was written.
+   *
+   * @throws IllegalArgumentException if the size, number of frames, or frame rate isn't positive
+   * @throws CancellationException if the token was cancelled before the animation was done
+   */
+  public static void render(
+      GeneTree tree,
+      int xsize,
+      int ysize,
+      int numFrames,
+      double fps,
+      Format format,
+      Path file,
+      CancellationToken token)
+      throws IOException {
+    if (xsize <= 0 || ysize <= 0 || numFrames <= 0) {
+      throw new IllegalArgumentException(
+          "bad animation size: " + xsize + "x" + ysize + ", " + numFrames + " frames");
+    }
+    if (!(fps > 0.0) || !Double.isFinite(fps)) {
+      throw new IllegalArgumentException("frame rate must be positive: " + fps);
+    }
+    if (format == Format.GIF) {
+      render(tree, xsize, ysize, numFrames, fps, new GifFrames(file, fps), file, token);
+    } else {
+      var frames = new ApngFrames(file, xsize, ysize, numFrames, fps);
+      render(tree, xsize, ysize, numFrames, fps, frames, file, token);
+    }
+  }
+
+  private static <T> void render(
+      GeneTree tree,
+      int xsize,
+      int ysize,
+      int numFrames,
+      double fps,
+      Frames<T> frames,
+      Path file,
+      CancellationToken token)
+      throws IOException {
+    var start = System.nanoTime();
+    var moving = withPlanes(tree, planes(tree, xsize, ysize, token));
+
+    // Engineering note: compressing a frame, like rendering one, is about as slow as the tree is
+    // simple, and unlike rendering, each frame's compression is stuck on a single thread. So each
+    // frame is compressed on its own thread from the encoders, meanwhile the next batch renders on
+    // the render pool, and a single writer thread puts the compressed frames in the file in
+    // order, handing their pixels back to the RasterPool as it goes.
+    var encoders = Executors.newFixedThreadPool(ENCODER_THREADS, daemon("animation-encoder"));
+    var writer = Executors.newSingleThreadExecutor(daemon("animation-writer"));
+    var previousBatch = new ArrayDeque<Future<?>>();
+    var written = false;
+    try {
+      for (var first = 0; first < numFrames; first += FRAMES_PER_BATCH) {
+        var times =
+            List.range(first, Math.min(first + FRAMES_PER_BATCH, numFrames)).map(i -> i / fps);
+        var program = GeneProgram.of(times.map(t -> atTime(moving, t).toOptimizedTree()));
+        var images = program.toImages(xsize, ysize, token);
+        Log.iformat(
+            TAG,
+            "frames %d-%d: %d instructions, %d evaluations per pixel shared between frames",
+            first,
+            first + times.length() - 1,
+            program.size(),
+            program.duplicatesEliminated());
+
+        var batch = new ArrayDeque<Future<?>>();
+        for (var image : images) {
+          var encoded = encoders.submit(() -> frames.encode(image));
+          batch.add(
+              writer.submit(
+                  () -> {
+                    try {
+                      frames.write(encoded.get());
+                    } finally {
+                      RasterPool.release(image);
+                    }
+                    return null;
+                  }));
+        }
+
+        // with this batch queued up, wait for the one before it, so at most two are in memory
+        while (!previousBatch.isEmpty()) {
+          previousBatch.poll().get();
+        }
+        previousBatch = batch;
+      }
+      while (!previousBatch.isEmpty()) {
+        previousBatch.poll().get();
+      }
+      frames.finish();
+      written = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("animation interrupted");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException("failed to write " + file, e.getCause());
+    } finally {
+      // whatever happens, let everything that's queued up finish, so every image gets released
+      encoders.shutdown();
+      writer.shutdown();
+      awaitQuietly(encoders);
+      awaitQuietly(writer);
+      if (!written) {
+        frames.close();
+        java.nio.file.Files.deleteIfExists(file);
+      }
+    }
+
+    Log.iformat(
+        TAG,
+        "rendered %s (%dx%d, %d frames), time: %.3f s",
+        file,
+        xsize,
+        ysize,
+        numFrames,
+        (System.nanoTime() - start) / 1e9);
+  }
+
+  /**
+   * Renders the biggest subtrees of the tree that don't depend on time, as many as fit in {@link
+   * #MAX_PLANE_BYTES}, and returns a leaf for each of them that looks up its colors (see {@link
+   * #plane(GeneTree, int, int, CancellationToken)}).
+   */
+  private static Map<GeneTree, GeneTree> planes(
+      GeneTree tree, int xsize, int ysize, CancellationToken token) {
+    var start = System.nanoTime();
+    var invariant = new ArrayList<GeneTree>();
+    if (!movesWithTime(tree, invariant)) {
+      invariant.add(tree); // nothing moves at all
+    }
+    invariant.sort(Comparator.comparingInt(GeneTree::numNodes).reversed());
+
+    var planeBytes = 24L * xsize * ysize;
+    var budget = MAX_PLANE_BYTES;
+    var planes = new HashMap<GeneTree, GeneTree>();
+    var nodes = 0;
+    for (var subtree : invariant) {
+      if (planeBytes > budget) {
+        break;
+      }
+      if (planes.containsKey(subtree)) {
+        continue; // the same subtree, somewhere else in the tree, shares the plane
+      }
+      var optimized = subtree.toOptimizedTree();
+      if (optimized.numNodes() >= MIN_PLANE_NODES) {
+        planes.put(subtree, plane(optimized, xsize, ysize, token));
+        nodes += optimized.numNodes();
+        budget -= planeBytes;
+      }
+    }
+
+    Log.iformat(
+        TAG,
+        "rendered %d time-invariant subtrees (%d of %d nodes) once, time: %.3f ms",
+        planes.size(),
+        nodes,
+        tree.numNodes(),
+        (System.nanoTime() - start) / 1e6);
+    return planes;
+  }
+
+  /**
+   * Returns whether the tree depends on time, adding to <code>invariant</code> each of its biggest
+   * subtrees that doesn't.
+   */
+  private static boolean movesWithTime(GeneTree tree, java.util.List<GeneTree> invariant) {
+    var gene = tree.getGene();
+    var children = tree.getChildren();
+    var moves = children.map(kid -> movesWithTime(kid, invariant));
+    if (gene == TIME || gene == GREY_PERLIN || gene == COLOR_PERLIN || moves.contains(true)) {
+      children.zip(moves).filter(pair -> !pair._2).forEach(pair -> invariant.add(pair._1));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Renders the tree at the given size, and returns a leaf which, at any pixel of an image of that
+   * size, is whatever color the tree was there.
+   */
+  private static GeneTree plane(GeneTree tree, int xsize, int ysize, CancellationToken token) {
+    var function = tree.toCompiledImageFunction();
+    var colors = new double[3 * xsize * ysize]; // r, g, b for each pixel, in row-major order
+    TileScheduler.forEachTile(
+        xsize,
+        ysize,
+        ImageFunction.TILE_SIZE,
+        token,
+        (xstart, ystart, width, height) -> {
+          var n = width * height;
+          var arena = TileArena.get();
+          var columns = arena.buffer(TileArena.COLUMNS, width);
+          var rows = arena.buffer(TileArena.ROWS, height);
+          var out = arena.buffer(TileArena.OUTPUT, 3 * n);
+
+          // the same coordinates as GeneProgram.toImages() gives the frames
+          for (var x = 0; x < width; x++) {
+            columns[x] = Viewport.DEFAULT.x(xstart + x, xsize);
+          }
+          for (var y = 0; y < height; y++) {
+            rows[y] = Viewport.DEFAULT.y(ystart + y, ysize);
+          }
+          function.renderTile(columns, width, rows, height, out);
+
+          for (var y = 0; y < height; y++) {
+            for (var x = 0; x < width; x++) {
+              var i = y * width + x;
+              var p = 3 * ((ystart + y) * xsize + xstart + x);
+              colors[p] = out[i];
+              colors[p + 1] = out[n + i];
+              colors[p + 2] = out[2 * n + i];
+            }
+          }
+        });
+
+    var lookup =
+        Allele.zeroChildInPlace(
+            "plane",
+            Long.toString(planeIds.incrementAndGet()),
+            (x, y, stack, top) -> {
+              // undoes the coordinates above, which are off by far less than half a pixel
+              var column = (int) Math.round(Viewport.DEFAULT.column(x, xsize));
+              var row = (int) Math.round(Viewport.DEFAULT.row(y, ysize));
+              var p =
+                  3
+                      * (Math.min(ysize - 1, Math.max(0, row)) * xsize
+                          + Math.min(xsize - 1, Math.max(0, column)));
+              stack[top] = colors[p];
+              stack[top + 1] = colors[p + 1];
+              stack[top + 2] = colors[p + 2];
+            });
+    return geneTree(lookup, List.empty()).get();
+  }
+
+  /** Returns the tree with each of the subtrees in <code>planes</code> replaced by its leaf. */
+  private static GeneTree withPlanes(GeneTree tree, Map<GeneTree, GeneTree> planes) {
+    var plane = planes.get(tree);
+    if (plane != null) {
+      return plane;
+    }
+    var children = tree.getChildren();
+    var kids = children.map(kid -> withPlanes(kid, planes));
+    if (kids.zip(children).forAll(pair -> pair._1 == pair._2)) {
+      return tree;
+    }
+    return geneTree(tree.getGene(), kids).get();
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return runnable -> {
+      var thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static void awaitQuietly(ExecutorService executor) {
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        Log.i(TAG, "waiting for the last frames to be written");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The two halves of writing a frame: encoding it, which can happen on any thread, and writing it
+   * to the file, which happens in order, on one thread.
+   */
+  private interface Frames<T> extends Closeable {
+    T encode(BufferedImage frame);
+
+    void write(T encoded) throws IOException;
+
+    void finish() throws IOException;
+  }
+
+  private static final class ApngFrames implements Frames<byte[]> {
+    private final ApngWriter writer;
+
+    ApngFrames(Path file, int xsize, int ysize, int numFrames, double fps) throws IOException {
+      // a delay in milliseconds is close enough to any frame rate, and exact for most
+      var delay = (int) Math.min(0xffff, Math.max(1, Math.round(1000 / fps)));
+      writer = ApngWriter.create(file, xsize, ysize, numFrames, delay, 1000);
+    }
+
+    @Override
+    public byte[] encode(BufferedImage frame) {
+      return ApngWriter.compress(RasterPool.pixels(frame), frame.getWidth(), frame.getHeight());
+    }
+
+    @Override
+    public void write(byte[] encoded) throws IOException {
+      writer.writeFrame(encoded);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      writer.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  private static final class GifFrames implements Frames<BufferedImage> {
+    private final ImageWriter writer;
+    private final ImageOutputStream output;
+    private final String delay;
+    private boolean first = true;
+
+    GifFrames(Path file, double fps) throws IOException {
+      java.nio.file.Files.deleteIfExists(file); // or else we'd leave any longer file's tail
+      writer = ImageIO.getImageWritersByFormatName("gif").next();
+      output = ImageIO.createImageOutputStream(file.toFile());
+      writer.setOutput(output);
+      writer.prepareWriteSequence(null);
+      // GIF delays are in hundredths of a second, and many viewers slow down anything under two
+      delay = Long.toString(Math.min(0xffff, Math.max(2, Math.round(100 / fps))));
+    }
+
+    @Override
+    public BufferedImage encode(BufferedImage frame) {
+      // A GIF has at most 256 colors, and picking them is the slow part, so it's done here, on
+      // the encoder threads. Drawing onto an indexed image maps every pixel to the nearest color
+      // of a fixed palette of 256, with a little dithering, which is as fast as it gets.
+      var indexed =
+          new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_BYTE_INDEXED);
+      var graphics = indexed.createGraphics();
+      graphics.drawImage(frame, 0, 0, null);
+      graphics.dispose();
+      return indexed;
+    }
+
+    @Override
+    public void write(BufferedImage encoded) throws IOException {
+      var metadata =
+          writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(encoded), null);
+      var format = metadata.getNativeMetadataFormatName();
+      var root = (IIOMetadataNode) metadata.getAsTree(format);
+
+      var control = new IIOMetadataNode("GraphicControlExtension");
+      control.setAttribute("disposalMethod", "none");
+      control.setAttribute("userInputFlag", "FALSE");
+      control.setAttribute("transparentColorFlag", "FALSE");
+      control.setAttribute("delayTime", delay);
+      control.setAttribute("transparentColorIndex", "0");
+      root.appendChild(control);
+
+      if (first) {
+        // the Netscape extension, which every viewer understands, says to loop forever
+        var extensions = new IIOMetadataNode("ApplicationExtensions");
+        var loop = new IIOMetadataNode("ApplicationExtension");
+        loop.setAttribute("applicationID", "NETSCAPE");
+        loop.setAttribute("authenticationCode", "2.0");
+        loop.setUserObject(new byte[] {1, 0, 0});
+        extensions.appendChild(loop);
+        root.appendChild(extensions);
+        first = false;
+      }
+
+      metadata.setFromTree(format, root);
+      writer.writeToSequence(new IIOImage(encoded, null, metadata), null);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      writer.endWriteSequence();
+      close();
+    }
+
+    @Override
+    public void close() throws IOException {
+      output.close();
+      writer.dispose();
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import io.vavr.control.Option;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders an image with antialiasing, but only where it needs it. Every pixel is rendered once, as
+ * with {@link ImageFunction#toImage(int, int)}, and then any pixel that differs from one of its
+ * neighbors by more than {@link #threshold()} is rendered again at several points spread across its
+ * area, in the given {@link Pattern}, and replaced by the average of those samples.
+ *
+ * <p>The hard edges that <code>floor</code>, <code>ceiling</code>, <code>sign</code>, <code>wrap
+ * </code>, and <code>mantissa</code> make are the pixels that alias, and they're a thin line
+ * through an image that's otherwise mostly smooth, so it's usually a small fraction of the pixels
+ * that get supersampled, rather than all of them, as when rendering a bigger image and shrinking
+ * it.
+ */
+final class Antialiaser {
+  /** The threshold, in steps of an 8-bit color channel, if nobody asks for something else. */
+  static final int DEFAULT_THRESHOLD = 32;
+
+  /**
+   * Where, within a pixel, to take the extra samples. Offsets are in pixels, from the point where
+   * the pixel's first sample was taken, which is the middle of the area the samples cover.
+   */
+  enum Pattern {
+    /** A 2x2 grid: four samples. */
+    GRID2(grid(2)),
+
+    /**
+     * The rotated grid, four samples that are all in different rows and different columns, which
+     * does better than {@link #GRID2} on edges that are nearly horizontal or vertical, for the same
+     * price.
+     */
+    RGSS(new double[] {0.125, -0.375, 0.375, 0.125, -0.125, 0.375, -0.375, -0.125}),
+
+    /** A 4x4 grid: sixteen samples. */
+    GRID4(grid(4));
+
+    private final double[] offsets; // x and y, alternating
+
+    Pattern(double[] offsets) {
+      this.offsets = offsets;
+    }
+
+    /** How many samples each supersampled pixel gets. */
+    int samples() {
+      return offsets.length / 2;
+    }
+
+    /** Parses a pattern by name, as in a request's query string, ignoring case. */
+    static Option<Pattern> of(String name) {
+      if (name == null) {
+        return none();
+      }
+      for (var pattern : values()) {
+        if (pattern.name().equalsIgnoreCase(name)) {
+          return some(pattern);
+        }
+      }
+      return none();
+    }
+
+    private static double[] grid(int n) {
+      var offsets = new double[2 * n * n];
+      for (var i = 0; i < n * n; i++) {
+        offsets[2 * i] = ((i % n) + 0.5) / n - 0.5;
+        offsets[2 * i + 1] = ((i / n) + 0.5) / n - 0.5;
+      }
+      return offsets;
+    }
+  }
+
+  private final int threshold;
+  private final Pattern pattern;
+
+  /**
+   * Makes an antialiaser that supersamples, with the given pattern, every pixel that differs from
+   * one of its neighbors by more than <code>threshold</code> steps in any 8-bit color channel.
+   *
+   * @throws IllegalArgumentException if the threshold is negative
+   */
+  Antialiaser(int threshold, Pattern pattern) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("negative threshold: " + threshold);
+    }
+    this.threshold = threshold;
+    this.pattern = pattern;
+  }
+
+  /** How far apart, in steps of an 8-bit color channel, neighbors may be without antialiasing. */
+  int threshold() {
+    return threshold;
+  }
+
+  /** Where the samples of a supersampled pixel are taken. */
+  Pattern pattern() {
+    return pattern;
+  }
+
+  /** What {@link #render(ImageFunction, int, int, CancellationToken)} returns. */
+  static final class Result {
+    /** The image, which comes from {@link RasterPool}. */
+    final BufferedImage image;
+
+    /** How many pixels were supersampled. */
+    final long supersampled;
+
+    /** How many samples each of those pixels got. */
+    final int samplesPerPixel;
+
+    private Result(BufferedImage image, long supersampled, int samplesPerPixel) {
+      this.image = image;
+      this.supersampled = supersampled;
+      this.samplesPerPixel = samplesPerPixel;
+    }
+
+    /** The fraction of the pixels of the image that needed extra samples. */
+    double fractionSupersampled() {
+      var pixels = (long) image.getWidth() * image.getHeight();
+      return pixels == 0 ? 0.0 : supersampled / (double) pixels;
+    }
+
+    /**
+     * How many samples we rendered, as a fraction of the samples it would take to supersample every
+     * pixel with the same pattern.
+     */
+    double fractionOfBruteForce() {
+      var pixels = (long) image.getWidth() * image.getHeight();
+      return pixels == 0
+          ? 0.0
+          : (pixels + supersampled * samplesPerPixel) / ((double) pixels * samplesPerPixel);
+    }
+  }
+
+  // Engineering note: deciding which pixels to supersample has to look at each pixel's neighbors,
+  // some of which belong to other tiles, so it can't be mixed up with supersampling them, which
+  // changes pixels. We'd get different answers depending on which tiles happened to be done first.
+  // Instead, we go over the image three times: render every pixel, then mark the pixels that need
+  // more samples, then supersample the marked pixels. Each of these goes tile by tile in parallel,
+  // and the extra samples for each tile are rendered as batches, so a GeneProgram still gets to
+  // run each instruction over many samples at a time.
+
+  /**
+   * Renders the given function at the given resolution, with the same coordinates for every pixel
+   * as {@link ImageFunction#toImage(int, int)}, antialiasing the pixels that need it. Gives up if
+   * <code>token</code> is cancelled.
+   *
+   * @throws CancellationException if the token was cancelled before the render was done
+   */
+  Result render(ImageFunction function, int xsize, int ysize, CancellationToken token) {
+    return render(function, xsize, ysize, Viewport.DEFAULT, token);
+  }
+
+  /**
+   * Like {@link #render(ImageFunction, int, int, CancellationToken)}, but showing the given part of
+   * the plane (see {@link Viewport}).
+   *
+   * @throws CancellationException if the token was cancelled before the render was done
+   */
+  Result render(
+      ImageFunction function, int xsize, int ysize, Viewport viewport, CancellationToken token) {
+    var image = function.toImage(xsize, ysize, viewport, token);
+    var output = RasterPool.pixels(image);
+    var marked = new boolean[xsize * ysize];
+    var supersampled = new LongAdder();
+
+    try {
+      TileScheduler.forEachTile(
+          xsize,
+          ysize,
+          ImageFunction.TILE_SIZE,
+          token,
+          (xstart, ystart, width, height) -> {
+            for (var y = ystart; y < ystart + height; y++) {
+              for (var x = xstart; x < xstart + width; x++) {
+                var i = y * xsize + x;
+                var color = output[i];
+                marked[i] =
+                    (x > 0 && differ(color, output[i - 1]))
+                        || (x < xsize - 1 && differ(color, output[i + 1]))
+                        || (y > 0 && differ(color, output[i - xsize]))
+                        || (y < ysize - 1 && differ(color, output[i + xsize]));
+              }
+            }
+          });
+
+      TileScheduler.forEachTile(
+          xsize,
+          ysize,
+          ImageFunction.TILE_SIZE,
+          token,
+          (xstart, ystart, width, height) ->
+              supersampled.add(
+                  supersample(
+                      function, viewport, output, marked, xsize, ysize, xstart, ystart, width,
+                      height)));
+    } catch (CancellationException e) {
+      RasterPool.release(image);
+      throw e;
+    }
+
+    return new Result(image, supersampled.sum(), pattern.samples());
+  }
+
+  private boolean differ(int a, int b) {
+    return Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) > threshold
+        || Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) > threshold
+        || Math.abs((a & 0xff) - (b & 0xff)) > threshold;
+  }
+
+  // Supersamples the marked pixels of one tile, a batch at a time, and returns how many there were.
+  private long supersample(
+      ImageFunction function,
+      Viewport viewport,
+      int[] output,
+      boolean[] marked,
+      int xsize,
+      int ysize,
+      int xstart,
+      int ystart,
+      int width,
+      int height) {
+    var samples = pattern.samples();
+    var offsets = pattern.offsets;
+    var pixelsPerBatch = Math.max(1, ImageFunction.TILE_SIZE * ImageFunction.TILE_SIZE / samples);
+
+    var arena = TileArena.get();
+    var xs = arena.buffer(TileArena.XS, pixelsPerBatch * samples);
+    var ys = arena.buffer(TileArena.YS, pixelsPerBatch * samples);
+    var colors = arena.buffer(TileArena.OUTPUT, 3 * pixelsPerBatch * samples);
+    var pixels = arena.intBuffer(TileArena.SUPERSAMPLED, pixelsPerBatch);
+
+    var total = 0L;
+    var count = 0;
+    for (var y = ystart; y < ystart + height; y++) {
+      for (var x = xstart; x < xstart + width; x++) {
+        if (!marked[y * xsize + x]) {
+          continue;
+        }
+        for (var s = 0; s < samples; s++) {
+          xs[count * samples + s] = viewport.x(x + offsets[2 * s], xsize);
+          ys[count * samples + s] = viewport.y(y + offsets[2 * s + 1], ysize);
+        }
+        pixels[count++] = y * xsize + x;
+        if (count == pixelsPerBatch) {
+          resolve(function, output, pixels, count, xs, ys, colors);
+          total += count;
+          count = 0;
+        }
+      }
+    }
+    if (count > 0) {
+      resolve(function, output, pixels, count, xs, ys, colors);
+      total += count;
+    }
+    return total;
+  }
+
+  // Renders the samples for a batch of pixels, and replaces each pixel with the average of its
+  // samples. Each sample is clipped to the range of colors we can show before it's averaged, so a
+  // pixel that's half far past white and half black comes out grey.
+  private void resolve(
+      ImageFunction function,
+      int[] output,
+      int[] pixels,
+      int count,
+      double[] xs,
+      double[] ys,
+      double[] colors) {
+    var samples = pattern.samples();
+    var n = count * samples;
+    function.renderBatch(xs, ys, n, colors);
+    for (var p = 0; p < count; p++) {
+      var r = 0.0;
+      var g = 0.0;
+      var b = 0.0;
+      for (var i = p * samples; i < (p + 1) * samples; i++) {
+        r += clip(colors[i]);
+        g += clip(colors[n + i]);
+        b += clip(colors[2 * n + i]);
+      }
+      output[pixels[p]] = RgbColor.toRgb(r / samples, g / samples, b / samples);
+    }
+  }
+
+  private static double clip(double value) {
+    return Math.max(-1.0, Math.min(1.0, value));
+  }
+}
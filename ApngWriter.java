@@ -0,0 +1,181 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an animated PNG, one frame at a time, for {@link Animation}. Every frame is a whole 8-bit
+ * RGB image, the same size as the animation, and stays up for the same time. Browsers that don't
+ * know about animated PNGs show the first frame as an ordinary PNG.
+ *
+ * <p>Compressing a frame is by far the slowest part of writing it, so that's done separately, by
+ * {@link #compress(int[], int, int)}, which any number of threads can call at once. The frames then
+ * have to be written in order, from a single thread, with {@link #writeFrame(byte[])}.
+ */
+final class ApngWriter implements Closeable {
+  private final FileChannel channel;
+  private final int numFrames;
+  private final int width;
+  private final int height;
+  private final int delayNumerator;
+  private final int delayDenominator;
+  private int framesWritten = 0;
+  private int sequenceNumber = 0; // shared by the fcTL and fdAT chunks
+
+  private ApngWriter(
+      FileChannel channel,
+      int numFrames,
+      int width,
+      int height,
+      int delayNumerator,
+      int delayDenominator) {
+    this.channel = channel;
+    this.numFrames = numFrames;
+    this.width = width;
+    this.height = height;
+    this.delayNumerator = delayNumerator;
+    this.delayDenominator = delayDenominator;
+  }
+
+  /**
+   * Starts a new animated PNG of the given size and number of frames, replacing whatever was there,
+   * which loops forever, showing each frame for <code>delayNumerator / delayDenominator
+   * </code> seconds.
+   *
+   * @throws IllegalArgumentException if the size or the number of frames isn't positive, or the
+   *     delay doesn't fit in an animated PNG
+   */
+  static ApngWriter create(
+      Path file, int width, int height, int numFrames, int delayNumerator, int delayDenominator)
+      throws IOException {
+    if (width <= 0 || height <= 0 || width > (Integer.MAX_VALUE - 1) / 3) {
+      throw new IllegalArgumentException("bad PNG size: " + width + "x" + height);
+    }
+    if (numFrames <= 0) {
+      throw new IllegalArgumentException("an animation needs frames: " + numFrames);
+    }
+    if (delayNumerator < 0
+        || delayNumerator > 0xffff
+        || delayDenominator <= 0
+        || delayDenominator > 0xffff) {
+      throw new IllegalArgumentException("bad delay: " + delayNumerator + "/" + delayDenominator);
+    }
+    var channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    var writer =
+        new ApngWriter(channel, numFrames, width, height, delayNumerator, delayDenominator);
+    PngBandWriter.writeHeader(channel, width, height);
+
+    var control = ByteBuffer.allocate(8);
+    control.putInt(numFrames);
+    control.putInt(0); // loop forever
+    PngBandWriter.writeChunk(channel, "acTL", control.array(), 8);
+    return writer;
+  }
+
+  /**
+   * Compresses a frame of the given size, from <code>pixels</code>, which holds it in row-major
+   * order, as packed RGB ints like {@link RgbColor#toRgb(double, double, double)} makes, into what
+   * {@link #writeFrame(byte[])} wants. Safe to call from any thread.
+   */
+  static byte[] compress(int[] pixels, int width, int height) {
+    var scanline = new byte[1 + 3 * width];
+    var deflated = new byte[64 * 1024];
+    var output = new ByteArrayOutputStream();
+    var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      for (var y = 0; y < height; y++) {
+        PngBandWriter.filterRow(pixels, y * width, width, scanline);
+        deflater.setInput(scanline);
+        while (!deflater.needsInput()) {
+          output.write(deflated, 0, deflater.deflate(deflated));
+        }
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        output.write(deflated, 0, deflater.deflate(deflated));
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Writes the next frame, as made by {@link #compress(int[], int, int)}.
+   *
+   * @throws IllegalStateException if every frame has already been written
+   */
+  void writeFrame(byte[] compressed) throws IOException {
+    if (framesWritten == numFrames) {
+      throw new IllegalStateException("too many frames: " + (numFrames + 1));
+    }
+
+    var control = ByteBuffer.allocate(26);
+    control.putInt(sequenceNumber++);
+    control.putInt(width).putInt(height);
+    control.putInt(0).putInt(0); // no offset, since every frame is the whole image
+    control.putShort((short) delayNumerator).putShort((short) delayDenominator);
+    control.put((byte) 0); // leave the frame there for the next one to replace
+    control.put((byte) 0); // replace, rather than blend with, the previous frame
+    PngBandWriter.writeChunk(channel, "fcTL", control.array(), 26);
+
+    // The first frame is the image data that ordinary PNG readers see; the rest go in fdAT
+    // chunks, which are IDAT chunks with a sequence number on the front.
+    var maxBytes = PngBandWriter.MAX_CHUNK_BYTES;
+    var chunk = new byte[4 + Math.min(maxBytes, compressed.length)];
+    for (var offset = 0; offset < compressed.length; offset += maxBytes) {
+      var length = Math.min(maxBytes, compressed.length - offset);
+      if (framesWritten == 0) {
+        System.arraycopy(compressed, offset, chunk, 0, length);
+        PngBandWriter.writeChunk(channel, "IDAT", chunk, length);
+      } else {
+        ByteBuffer.wrap(chunk).putInt(sequenceNumber++);
+        System.arraycopy(compressed, offset, chunk, 4, length);
+        PngBandWriter.writeChunk(channel, "fdAT", chunk, 4 + length);
+      }
+    }
+    framesWritten++;
+  }
+
+  /**
+   * Ends the animation, once every frame has been written, and closes the file.
+   *
+   * @throws IllegalStateException if some frames haven't been written yet
+   */
+  void finish() throws IOException {
+    if (framesWritten != numFrames) {
+      throw new IllegalStateException("only " + framesWritten + " of " + numFrames + " frames");
+    }
+    PngBandWriter.writeChunk(channel, "IEND", new byte[0], 0);
+    channel.force(false);
+    close();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets whoever asked for a render call it off while it's still running. Renders check their token
+ * before each tile they start, so once it's cancelled, the tiles that are already under way finish,
+ * but no more are started, and the render throws a {@link CancellationException}.
+ */
+public final class CancellationToken {
+  /** A token for renders that nobody will ever cancel. Cancelling it does nothing. */
+  public static final CancellationToken NONE = new CancellationToken(false);
+
+  private final boolean cancellable;
+  private volatile boolean cancelled = false;
+
+  /** Makes a new token, which isn't cancelled until somebody calls {@link #cancel()}. */
+  public CancellationToken() {
+    this(true);
+  }
+
+  private CancellationToken(boolean cancellable) {
+    this.cancellable = cancellable;
+  }
+
+  /** Cancels every render using this token. Cancelling it more than once does nothing more. */
+  public void cancel() {
+    if (cancellable) {
+      cancelled = true;
+    }
+  }
+
+  /** Whether somebody has cancelled this token. */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Throws a {@link CancellationException} if somebody has cancelled this token.
+   *
+   * @throws CancellationException if this token has been cancelled
+   */
+  public void throwIfCancelled() {
+    if (cancelled) {
+      throw new CancellationException("render cancelled");
+    }
+  }
+}
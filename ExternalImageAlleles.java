@@ -14,14 +14,17 @@ package edu.rice.prettypictures;
 
 import static edu.rice.image.Images.readImageResource;
 import static edu.rice.io.Files.readResourceDir;
-import static edu.rice.prettypictures.Allele.twoChildRgb;
-import static edu.rice.prettypictures.RgbColor.color;
+import static edu.rice.prettypictures.Allele.twoChildInPlace;
+import static edu.rice.prettypictures.RgbColor.blue;
+import static edu.rice.prettypictures.RgbColor.green;
+import static edu.rice.prettypictures.RgbColor.red;
 import static java.lang.Math.floor;
 
 import edu.rice.util.Log;
 import io.vavr.Tuple;
 import io.vavr.collection.List;
 import io.vavr.collection.Map;
+import io.vavr.control.Option;
 import java.awt.image.BufferedImage;
 
 /**
@@ -53,7 +56,7 @@ public class ExternalImageAlleles {
           .getOrElse(List.of("ricelogo.gif")); // if all else fails, we'll at least get one image
 
   // We load every image, all at once, skipping over any with errors
-  public static final Map<String, Allele> EXTERNAL_IMAGE_ALLELE_MAP =
+  private static final Map<String, BufferedImage> EXTERNAL_IMAGE_MAP =
       POSSIBLE_EXTERNAL_IMAGE_FILENAMES
           .map(
               name ->
@@ -66,10 +69,12 @@ public class ExternalImageAlleles {
           // here, we have a list of Tuple2<String, Option<byte[]>>; we want to remove the
           // failures
           .filter(kv -> kv._2.isDefined())
-          .map(kv -> kv.apply((k, v) -> externalImage(k, v.get())))
 
-          // here, we have a list of Allele, which we want to convert to a map from name to gene
-          .toMap(Allele::getParam, imageGene -> imageGene);
+          // and then we want a map from name to image
+          .toMap(kv -> kv._1, kv -> kv._2.get());
+
+  public static final Map<String, Allele> EXTERNAL_IMAGE_ALLELE_MAP =
+      EXTERNAL_IMAGE_MAP.map((name, img) -> Tuple.of(name, externalImage(name, img)));
 
   public static final List<String> VALID_EXTERNAL_IMAGE_FILENAMES =
       EXTERNAL_IMAGE_ALLELE_MAP.keySet().toList();
@@ -87,15 +92,28 @@ public class ExternalImageAlleles {
                     + ")"));
   }
 
+  /**
+   * If the given Allele is one of ours, from {@link #EXTERNAL_IMAGE_ALLELE_MAP}, returns the image
+   * behind it. This lets evaluation engines other than the closures from {@link
+   * Allele#assemble(ImageFunction...)} sample the image directly, via {@link
+   * #fetchRgb(BufferedImage, double, double)}.
+   */
+  static Option<BufferedImage> imageOf(Allele gene) {
+    return EXTERNAL_IMAGE_ALLELE_MAP
+        .get(gene.getParam())
+        .filter(ours -> ours == gene)
+        .flatMap(ours -> EXTERNAL_IMAGE_MAP.get(gene.getParam()));
+  }
+
   private static Allele externalImage(String name, BufferedImage img) {
-    return twoChildRgb(
+    return twoChildInPlace(
         "external-image",
         name,
-        (c1, c2) ->
-            color(
-                fetchColor(img, c1.r, c2.r).r,
-                fetchColor(img, c1.g, c2.g).g,
-                fetchColor(img, c1.b, c2.b).b));
+        (s, i) -> {
+          s[i] = red(fetchRgb(img, s[i], s[i + 3]));
+          s[i + 1] = green(fetchRgb(img, s[i + 1], s[i + 4]));
+          s[i + 2] = blue(fetchRgb(img, s[i + 2], s[i + 5]));
+        });
   }
 
   private static int clip(int x, int xmax) {
@@ -116,9 +134,10 @@ public class ExternalImageAlleles {
    * Note that xp and yp are in our usual unit square coordinates ([-1,1], [-1,1]) and will be
    * linearly scaled to fit the original pixels of the {@link BufferedImage}.
    *
-   * @return an {@link RgbColor} in the usual [-1,1] space.
+   * @return a packed 32-bit RGB integer, as used by {@link RgbColor#color(int)}, so no objects are
+   *     allocated. Use {@link RgbColor#red(int)} and friends to get back to the usual [-1,1] space.
    */
-  private static RgbColor fetchColor(BufferedImage image, double xp, double yp) {
+  static int fetchRgb(BufferedImage image, double xp, double yp) {
     var imageWidth = image.getWidth();
     var imageHeight = image.getHeight();
 
@@ -147,7 +166,7 @@ public class ExternalImageAlleles {
         || ymin <= 0
         || xmax >= imageWidth
         || ymax >= imageHeight) {
-      return color(image.getRGB(clip(xmin, imageWidth), clip(ymin, imageHeight)));
+      return image.getRGB(clip(xmin, imageWidth), clip(ymin, imageHeight));
     }
 
     // We're going to split the color up into its constituent 8-bit
@@ -212,6 +231,6 @@ public class ExternalImageAlleles {
                 >> 16)
             & 0xff;
 
-    return color((rVal << 16) | (gVal << 8) | bVal);
+    return (rVal << 16) | (gVal << 8) | bVal;
   }
 }
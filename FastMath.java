@@ -0,0 +1,182 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+/**
+ * Fast approximations of the transcendental functions used by our alleles, for {@link
+ * Precision#FAST}. The functions in {@link Math} are accurate to within an ulp or so, which is far
+ * more than we need when every channel gets rounded to eight bits in {@link RgbColor#toRgb()}. One
+ * eight-bit step is 2/255, or about 0.0078, in our [-1,1] color space.
+ *
+ * <p>Each function documents its error bound, as measured by {@link FastMathBenchmark} and backed
+ * by the truncation error of its polynomial. Special cases (NaN, infinities, and anything that
+ * would overflow or underflow) are handed to {@link Math}, so they come out the same as before.
+ */
+final class FastMath {
+  // Engineering note: each function reduces its argument to a small range, where a short
+  // polynomial is accurate, and then undoes the reduction. The polynomials are in Horner form,
+  // and there are no table lookups, so the JIT can inline each function into the kernels in
+  // TileKernels.
+  //
+  // HotSpot replaces some of Math's functions (sin, cos, exp, log) with hand-tuned "intrinsic"
+  // machine code, and leaves the rest (atan, atan2, tanh) to StrictMath, a Java port of the C
+  // math library.
+  // Our approximations win big against the latter, and by less against the former. Against
+  // Math.exp(), they don't win at all, so Precision.FAST leaves the exp allele alone; our exp()
+  // is only here for tanh(). See FastMathBenchmark for the numbers.
+
+  private static final double TWO_PI = 2 * Math.PI;
+  private static final double INV_TWO_PI = 1 / TWO_PI;
+  private static final double HALF_PI = Math.PI / 2;
+  private static final double LN_2 = Math.log(2);
+  private static final double LOG2_E = 1 / LN_2;
+  private static final double SQRT_2 = Math.sqrt(2);
+
+  // Past this, reducing the argument of sin() and cos() to [-pi, pi] loses too much precision.
+  private static final double MAX_TRIG_ARGUMENT = 1e9;
+
+  // never instantiate this class
+  private FastMath() {}
+
+  /**
+   * Approximates {@link Math#sin(double)}, with an absolute error under 5e-6. Arguments of a
+   * billion or more, where reducing them to [-pi, pi] would lose too much precision, come from
+   * {@link Math#sin(double)}, as do infinities and NaN.
+   */
+  static double sin(double x) {
+    if (!(Math.abs(x) < MAX_TRIG_ARGUMENT)) {
+      return Math.sin(x);
+    }
+
+    // reduce to [-pi, pi], then to [-pi/2, pi/2] via sin(pi - r) = sin(r)
+    var r = x - Math.rint(x * INV_TWO_PI) * TWO_PI;
+    if (r > HALF_PI) {
+      r = Math.PI - r;
+    } else if (r < -HALF_PI) {
+      r = -Math.PI - r;
+    }
+
+    // Taylor series through r^9; the first omitted term is under (pi/2)^11 / 11! < 4e-6
+    var r2 = r * r;
+    return r * (1 + r2 * (-1.0 / 6 + r2 * (1.0 / 120 + r2 * (-1.0 / 5040 + r2 * (1.0 / 362880)))));
+  }
+
+  /** Approximates {@link Math#cos(double)}, with the same error as {@link #sin(double)}. */
+  static double cos(double x) {
+    return sin(x + HALF_PI);
+  }
+
+  /** Approximates {@link Math#atan(double)}, with an absolute error under 2e-5. */
+  static double atan(double x) {
+    // for |x| > 1, atan(x) = +/- pi/2 - atan(1/x)
+    if (x > 1) {
+      return HALF_PI - atanUnit(1 / x);
+    } else if (x < -1) {
+      return -HALF_PI - atanUnit(1 / x);
+    } else {
+      return atanUnit(x); // also takes care of NaN
+    }
+  }
+
+  /** Approximates {@link Math#atan2(double, double)}, with the same error as {@link #atan}. */
+  static double atan2(double y, double x) {
+    var ax = Math.abs(x);
+    var ay = Math.abs(y);
+    var big = Math.max(ax, ay);
+    if (!(big > 0 && big < Double.POSITIVE_INFINITY)) {
+      return Math.atan2(y, x); // zeros, infinities, and NaN
+    }
+
+    // atan of the smaller over the bigger is in [0, pi/4], and the rest is symmetry
+    var r = atanUnit(Math.min(ax, ay) / big);
+    if (ay > ax) {
+      r = HALF_PI - r;
+    }
+    if (x < 0) {
+      r = Math.PI - r;
+    }
+    return Math.copySign(r, y); // so that a y of -0.0 counts as below the x-axis, as in Math
+  }
+
+  /** Approximates atan(x) for x in [-1, 1]. */
+  private static double atanUnit(double x) {
+    // an odd minimax polynomial (Abramowitz and Stegun 4.4.47), error about 1e-5 on [-1, 1]
+    var x2 = x * x;
+    return x
+        * (0.9998660 + x2 * (-0.3302995 + x2 * (0.1801410 + x2 * (-0.0851330 + x2 * 0.0208351))));
+  }
+
+  /**
+   * Approximates {@link Math#exp(double)}, with a relative error under 2e-7. Results that would
+   * overflow or underflow, and NaN, come from {@link Math#exp(double)}.
+   */
+  static double exp(double x) {
+    // exp(x) = 2^t, for t = x log2(e), and 2^t = 2^k 2^f with k an integer and |f| <= 1/2
+    var t = x * LOG2_E;
+    if (!(Math.abs(t) < 1022)) {
+      return Math.exp(x);
+    }
+    var k = Math.rint(t);
+    var f = (t - k) * LN_2; // 2^(t - k) = e^f, with |f| <= ln(2) / 2
+
+    // Taylor series through f^6; the first omitted term is under 0.35^7 / 7! < 2e-7
+    var p =
+        1
+            + f
+                * (1
+                    + f
+                        * (1.0 / 2
+                            + f * (1.0 / 6 + f * (1.0 / 24 + f * (1.0 / 120 + f * (1.0 / 720))))));
+
+    // scale by 2^k by building the double directly
+    return p * Double.longBitsToDouble(((long) k + 1023) << 52);
+  }
+
+  /**
+   * Approximates {@link Math#tanh(double)}, via {@link #exp(double)}, with an absolute error under
+   * 1e-6.
+   */
+  static double tanh(double x) {
+    if (x != x) {
+      return x; // NaN
+    }
+    // saturates to +/- 1 once exp() overflows or underflows
+    return 1 - 2 / (exp(2 * x) + 1);
+  }
+
+  /**
+   * Approximates {@link Math#log(double)}, with an absolute error under 1e-8. Zero, negative
+   * numbers, subnormals, infinity, and NaN come from {@link Math#log(double)}.
+   */
+  static double log(double x) {
+    if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) {
+      return Math.log(x);
+    }
+
+    // x = m 2^e, with m in [sqrt(1/2), sqrt(2)), so log(x) = e ln(2) + log(m)
+    var bits = Double.doubleToRawLongBits(x);
+    var e = (int) (bits >>> 52) - 1023;
+    var m = Double.longBitsToDouble((bits & 0x000F_FFFF_FFFF_FFFFL) | 0x3FF0_0000_0000_0000L);
+    if (m > SQRT_2) {
+      m /= 2;
+      e++;
+    }
+
+    // log(m) = 2 atanh(s), for s = (m - 1) / (m + 1), with |s| < 0.172; the first omitted term of
+    // the series is under 2 (0.172^11) / 11 < 1e-9
+    var s = (m - 1) / (m + 1);
+    var s2 = s * s;
+    var logM = 2 * s * (1 + s2 * (1.0 / 3 + s2 * (1.0 / 5 + s2 * (1.0 / 7 + s2 * (1.0 / 9)))));
+    return e * LN_2 + logM;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.prettypictures.GeneTree.constantNumberTree;
+import static edu.rice.prettypictures.GeneTree.geneLeaf;
+import static edu.rice.prettypictures.GeneTree.geneTree;
+
+import edu.rice.autograder.annotations.GradeCoverage;
+import edu.rice.util.Log;
+import io.vavr.collection.List;
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Measures the speed and accuracy of {@link FastMath} against {@link Math}, one transcendental
+ * allele at a time. (There's no entry for exp, since {@link Precision#FAST} doesn't change it; tanh
+ * covers {@link FastMath#exp(double)}.) For each, we measure the worst error over a million random
+ * arguments, and we time a render of a tree that's mostly that allele at {@link Precision#DOUBLE}
+ * (strict math) and at {@link Precision#FAST}. Run it with an optional argument: the image size
+ * (default 512).
+ */
+@GradeCoverage(project = "PP1", exclude = true)
+@GradeCoverage(project = "PP2", exclude = true)
+@GradeCoverage(project = "PP3", exclude = true)
+public class FastMathBenchmark {
+  private static final String TAG = "FastMathBenchmark";
+  private static final int SAMPLES = 1_000_000;
+  private static final int RUNS = 5;
+
+  // never instantiate this class
+  private FastMathBenchmark() {}
+
+  /** One function to measure: its allele, both versions, and the range of arguments to try. */
+  private static final class Subject {
+    final String allele;
+    final DoubleBinaryOperator strict;
+    final DoubleBinaryOperator fast;
+    final double range;
+
+    Subject(String allele, DoubleBinaryOperator strict, DoubleBinaryOperator fast, double range) {
+      this.allele = allele;
+      this.strict = strict;
+      this.fast = fast;
+      this.range = range;
+    }
+  }
+
+  private static final List<Subject> SUBJECTS =
+      List.of(
+          new Subject("sine", (x, y) -> Math.sin(x), (x, y) -> FastMath.sin(x), 100),
+          new Subject("cosine", (x, y) -> Math.cos(x), (x, y) -> FastMath.cos(x), 100),
+          new Subject("arctan", (x, y) -> Math.atan(x), (x, y) -> FastMath.atan(x), 100),
+          new Subject("arctan2", Math::atan2, FastMath::atan2, 2),
+          new Subject("tanh", (x, y) -> Math.tanh(x), (x, y) -> FastMath.tanh(x), 5),
+          new Subject(
+              "log", (x, y) -> Math.log(Math.abs(x)), (x, y) -> FastMath.log(Math.abs(x)), 1000));
+
+  /** Main entry point. See the class comment for the argument. */
+  public static void main(String[] args) {
+    var size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+    var random = new Random(215);
+
+    // warm up the JIT on every allele, at both tiers, before timing anything
+    for (var subject : SUBJECTS) {
+      var program = treeFor(subject).toProgram();
+      bestTime(program.toImageFunction(Precision.DOUBLE), size);
+      bestTime(program.toImageFunction(Precision.FAST), size);
+    }
+
+    for (var subject : SUBJECTS) {
+      var maxError = 0.0;
+      for (var i = 0; i < SAMPLES; i++) {
+        var x = (2 * random.nextDouble() - 1) * subject.range;
+        var y = (2 * random.nextDouble() - 1) * subject.range;
+        var expected = subject.strict.applyAsDouble(x, y);
+        var error = Math.abs(subject.fast.applyAsDouble(x, y) - expected);
+        maxError = Math.max(maxError, error);
+      }
+
+      var program = treeFor(subject).toProgram();
+      var strictTime = bestTime(program.toImageFunction(Precision.DOUBLE), size);
+      var fastTime = bestTime(program.toImageFunction(Precision.FAST), size);
+
+      Log.iformat(
+          TAG,
+          "%-8s strict: %8.3f ms, fast: %8.3f ms (%.2fx), max error %.2e",
+          subject.allele,
+          strictTime / 1_000_000.0,
+          fastTime / 1_000_000.0,
+          strictTime / (double) fastTime,
+          maxError);
+    }
+  }
+
+  /**
+   * Builds a tree that applies the subject's allele to arguments in its range, so rendering it is
+   * mostly spent in that allele. The arguments depend on both x and y, so nothing gets hoisted (see
+   * {@link GeneProgram#hoisted()}).
+   */
+  private static GeneTree treeFor(Subject subject) {
+    var scale = constantNumberTree(subject.range).get();
+    var xy = geneTree("mul", geneLeaf("xy0").get(), scale).get();
+    var yx = geneTree("mul", geneLeaf("yx0").get(), scale).get();
+    if (subject.allele.equals("arctan2")) {
+      return geneTree("arctan2", xy, yx).get();
+    } else if (subject.allele.equals("log")) {
+      return geneTree("log", geneTree("abs", xy).get()).get();
+    } else {
+      return geneTree(subject.allele, xy).get();
+    }
+  }
+
+  /** Renders the image a few times, returning the fastest time in nanoseconds. */
+  private static long bestTime(ImageFunction function, int size) {
+    var best = Long.MAX_VALUE;
+    for (var i = 0; i < RUNS; i++) {
+      var start = System.nanoTime();
+      function.toImage(size, size);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+}
@@ -0,0 +1,2297 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.prettypictures.Allele.INTRINSIC_ALLELE_MAP;
+import static edu.rice.prettypictures.Allele.simplexNoise;
+import static edu.rice.prettypictures.RgbColor.blue;
+import static edu.rice.prettypictures.RgbColor.color;
+import static edu.rice.prettypictures.RgbColor.green;
+import static edu.rice.prettypictures.RgbColor.red;
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import io.vavr.collection.List;
+import io.vavr.collection.Seq;
+import io.vavr.control.Option;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * A GeneProgram is a {@link GeneTree} flattened into a postfix "program" for a tiny register
+ * machine. Every node of the tree becomes one fixed-width instruction in an <code>int[]</code>: an
+ * opcode (one per kind of {@link Allele}), a destination register, and up to three source
+ * registers. Constants live in a separate <code>double[]</code> pool. Each register holds one
+ * color, as three consecutive doubles in a register array that the caller allocates once, via
+ * {@link #newRegisters()}, and reuses for every pixel.
+ *
+ * <p>Running a program ({@link #run(double, double, double[])}) is one loop over the instructions
+ * with a switch on the opcode. Compared to the closures built by {@link
+ * Allele#assemble(ImageFunction...)} there's no virtual dispatch per node, no {@link RgbColor}
+ * allocation per node, and no recursion, so even absurdly deep trees can't overflow the Java stack.
+ * Building a program is also cheap, much cheaper than compiling it with {@link GeneTreeCompiler},
+ * which makes programs a good choice for trees that are too big to compile or won't be around long
+ * enough to pay for it.
+ *
+ * <p>Identical subtrees, which crossbreeding tends to produce, are flattened into a single
+ * instruction whose result is shared by all of its users, so each is evaluated only once per pixel
+ * (see {@link #duplicatesEliminated()}).
+ *
+ * <p>When rendering a grid of pixels, anything that only depends on x is evaluated once per column,
+ * and anything that only depends on y once per row (see {@link #hoisted()}).
+ *
+ * <p>Like the compiler, we recognize the intrinsic alleles and external images by identity.
+ * Anything else is evaluated by calling its subtree's closures, from {@link
+ * GeneTree#toImageFunction()}.
+ */
+public final class GeneProgram {
+  // Every instruction has the same width: an opcode, a destination, and three operands. Register
+  // operands are stored as offsets into the register array (i.e., three times the register
+  // number), so the interpreter never has to multiply.
+  static final int WIDTH = 5;
+
+  // Opcodes. The first batch is piecewise: the same scalar operation on each of r, g, and b.
+  static final int SIN = 0;
+  static final int COS = 1;
+  static final int ATAN = 2;
+  static final int TANH = 3;
+  static final int EXP = 4;
+  static final int LOG = 5;
+  static final int NEGATE = 6;
+  static final int ABS = 7;
+  static final int SIGN = 8;
+  static final int CLAMP_NEGATIVE = 9;
+  static final int CLAMP_POSITIVE = 10;
+  static final int FLOOR = 11;
+  static final int CEILING = 12;
+  static final int WRAP = 13;
+  static final int CLIP = 14;
+  static final int MANTISSA = 15;
+  static final int MAX = 16;
+  static final int MIN = 17;
+  static final int ATAN2 = 18;
+  static final int DIV = 19;
+  static final int MUL = 20;
+  static final int ADD = 21;
+  static final int SUB = 22;
+  static final int DISSOLVE = 23;
+  static final int COLOR_PERLIN = 24;
+
+  // These mix channels in some fashion.
+  static final int GREY_PERLIN = 25;
+  static final int RGB_TO_YCRCB = 26;
+  static final int YCRCB_TO_RGB = 27;
+  static final int RED_CHANNEL = 28;
+  static final int GREEN_CHANNEL = 29;
+  static final int BLUE_CHANNEL = 30;
+  static final int COLOR_MIX = 31;
+  static final int EXTERNAL_IMAGE = 32; // a, b: registers; c: index into images
+  static final int GREY_PERLIN_4D = 33; // a: the point; b: its red channel is the fourth axis
+
+  // And these are the leaves.
+  static final int COORDINATES = 34; // a, b, c: one of ZERO, FROM_X, FROM_Y per channel
+  static final int CONSTANT = 35; // a: offset into the constant pool
+  static final int CALL = 36; // a: index into fallbacks
+
+  // Only in tile programs: a: register; b, c: the shapes to widen it from and to.
+  static final int WIDEN = 37;
+
+  static final int ZERO = 0;
+  static final int FROM_X = 1;
+  static final int FROM_Y = 2;
+
+  // The "shape" of a value is the set of coordinates it depends on, as a bitset. Note that
+  // X_ONLY == FROM_X and Y_ONLY == FROM_Y, so a coordinate leaf's shape is just the union of its
+  // sources.
+  static final int INVARIANT = 0;
+  static final int X_ONLY = 1;
+  static final int Y_ONLY = 2;
+  static final int XY = X_ONLY | Y_ONLY;
+
+  // Which channels of a value anybody reads, as a bitset; see Assembler.demands().
+  static final int RED_BIT = 1;
+  static final int GREEN_BIT = 2;
+  static final int BLUE_BIT = 4;
+  static final int ALL_CHANNELS = RED_BIT | GREEN_BIT | BLUE_BIT;
+
+  // What runTile() does with each instruction of the tile program, as worked out for each tile by
+  // analyzeTile() and prune().
+  private static final int RUN = 0;
+  private static final int SKIP = 1; // nobody needs the result
+  private static final int FILL = 2; // the result is the same on every pixel; see fills
+  private static final int COPY_A = 3; // a max or min whose result is always its first operand
+  private static final int COPY_B = 4; // a max or min whose result is always its second operand
+
+  private final int[] code;
+  private final int[] channels; // which channels of each instruction's result anybody reads
+  private final double[] constants;
+  private final BufferedImage[] images;
+  private final ImageFunction[] fallbacks;
+  private final int numRegisters;
+  private final int[] resultOffsets;
+  private final int resultOffset; // of the first result, which is usually the only one
+  private final int treeSize;
+
+  // The same program, rearranged for rendering a grid of pixels; see runTile().
+  private final int[] tileCode;
+  private final int[] tileShapes;
+  private final int[] tileChannels;
+  private final int tileNumRegisters;
+  private final int[] tileResultOffsets;
+  private final int tileResultOffset;
+  private final int hoisted;
+
+  private GeneProgram(
+      int[] code,
+      int[] channels,
+      double[] constants,
+      BufferedImage[] images,
+      ImageFunction[] fallbacks,
+      int numRegisters,
+      int[] resultOffsets,
+      int treeSize,
+      int[] tileCode,
+      int[] tileShapes,
+      int[] tileChannels,
+      int tileNumRegisters,
+      int[] tileResultOffsets,
+      int hoisted) {
+    this.code = code;
+    this.channels = channels;
+    this.constants = constants;
+    this.images = images;
+    this.fallbacks = fallbacks;
+    this.numRegisters = numRegisters;
+    this.resultOffsets = resultOffsets;
+    this.resultOffset = resultOffsets[0];
+    this.treeSize = treeSize;
+    this.tileCode = tileCode;
+    this.tileShapes = tileShapes;
+    this.tileChannels = tileChannels;
+    this.tileNumRegisters = tileNumRegisters;
+    this.tileResultOffsets = tileResultOffsets;
+    this.tileResultOffset = tileResultOffsets[0];
+    this.hoisted = hoisted;
+  }
+
+  /** Flattens the given GeneTree into a GeneProgram. */
+  public static GeneProgram of(GeneTree tree) {
+    return new Assembler().assemble(List.of(tree));
+  }
+
+  /**
+   * Flattens all of the given GeneTrees, such as a whole generation, into a single GeneProgram with
+   * one result per tree (see {@link #toImages(int, int)}). Subtrees that the trees have in common,
+   * as offspring do with their parents and with each other, are evaluated once for all of them.
+   * Everything else in this class, such as {@link #run(double, double, double[])}, only concerns
+   * the first tree's result.
+   */
+  public static GeneProgram of(Seq<GeneTree> trees) {
+    if (trees.isEmpty()) {
+      throw new IllegalArgumentException("no trees to flatten");
+    }
+    return new Assembler().assemble(trees);
+  }
+
+  /** Returns the number of instructions in this program. */
+  public int size() {
+    return code.length / WIDTH;
+  }
+
+  /** Returns the number of results, which is the number of trees we flattened. */
+  public int numResults() {
+    return resultOffsets.length;
+  }
+
+  /**
+   * Returns the number of nodes in the tree that we flattened (counting each subtree we couldn't
+   * lower as a single node). This can be larger than {@link #size()}, since identical subtrees
+   * share one instruction.
+   */
+  public int treeSize() {
+    return treeSize;
+  }
+
+  /**
+   * Returns the number of node evaluations, per pixel, that we avoid by evaluating identical
+   * subtrees only once.
+   */
+  public int duplicatesEliminated() {
+    return treeSize - size();
+  }
+
+  /**
+   * Returns the number of instructions whose result depends on at most one of x and y. When
+   * rendering a tile (see {@link #renderTile(double[], int, double[], int, double[])}), these are
+   * evaluated once per column, once per row, or just once, rather than once per pixel.
+   */
+  public int hoisted() {
+    return hoisted;
+  }
+
+  /** Returns the number of color registers this program needs. */
+  public int numRegisters() {
+    return numRegisters;
+  }
+
+  /**
+   * Allocates a register array suitable for {@link #run(double, double, double[])}. Allocate one of
+   * these per thread and reuse it for every pixel.
+   */
+  public double[] newRegisters() {
+    return new double[3 * numRegisters];
+  }
+
+  /**
+   * After {@link #run(double, double, double[])}, the result's red, green, and blue will be in the
+   * register array at this offset, plus zero, one, and two, respectively.
+   */
+  public int resultOffset() {
+    return resultOffset;
+  }
+
+  /** Evaluates the program for one pixel, with the result landing at {@link #resultOffset()}. */
+  public void run(double x, double y, double[] registers) {
+    final var code = this.code;
+    final var k = this.constants;
+    final var r = registers;
+
+    for (var pc = 0; pc < code.length; pc += WIDTH) {
+      final var d = code[pc + 1];
+      final var a = code[pc + 2];
+      final var b = code[pc + 3];
+      final var c = code[pc + 4];
+
+      switch (code[pc]) {
+        case SIN:
+          r[d] = Math.sin(r[a]);
+          r[d + 1] = Math.sin(r[a + 1]);
+          r[d + 2] = Math.sin(r[a + 2]);
+          break;
+        case COS:
+          r[d] = Math.cos(r[a]);
+          r[d + 1] = Math.cos(r[a + 1]);
+          r[d + 2] = Math.cos(r[a + 2]);
+          break;
+        case ATAN:
+          r[d] = Math.atan(r[a]);
+          r[d + 1] = Math.atan(r[a + 1]);
+          r[d + 2] = Math.atan(r[a + 2]);
+          break;
+        case TANH:
+          r[d] = Math.tanh(r[a]);
+          r[d + 1] = Math.tanh(r[a + 1]);
+          r[d + 2] = Math.tanh(r[a + 2]);
+          break;
+        case EXP:
+          r[d] = Math.exp(r[a]);
+          r[d + 1] = Math.exp(r[a + 1]);
+          r[d + 2] = Math.exp(r[a + 2]);
+          break;
+        case LOG:
+          r[d] = Math.log(r[a]);
+          r[d + 1] = Math.log(r[a + 1]);
+          r[d + 2] = Math.log(r[a + 2]);
+          break;
+        case NEGATE:
+          r[d] = -r[a];
+          r[d + 1] = -r[a + 1];
+          r[d + 2] = -r[a + 2];
+          break;
+        case ABS:
+          r[d] = Math.abs(r[a]);
+          r[d + 1] = Math.abs(r[a + 1]);
+          r[d + 2] = Math.abs(r[a + 2]);
+          break;
+        case SIGN:
+          r[d] = Allele.sign(r[a]);
+          r[d + 1] = Allele.sign(r[a + 1]);
+          r[d + 2] = Allele.sign(r[a + 2]);
+          break;
+        case CLAMP_NEGATIVE:
+          r[d] = Allele.clampNegative(r[a]);
+          r[d + 1] = Allele.clampNegative(r[a + 1]);
+          r[d + 2] = Allele.clampNegative(r[a + 2]);
+          break;
+        case CLAMP_POSITIVE:
+          r[d] = Allele.clampPositive(r[a]);
+          r[d + 1] = Allele.clampPositive(r[a + 1]);
+          r[d + 2] = Allele.clampPositive(r[a + 2]);
+          break;
+        case FLOOR:
+          r[d] = Math.floor(r[a]);
+          r[d + 1] = Math.floor(r[a + 1]);
+          r[d + 2] = Math.floor(r[a + 2]);
+          break;
+        case CEILING:
+          r[d] = Math.ceil(r[a]);
+          r[d + 1] = Math.ceil(r[a + 1]);
+          r[d + 2] = Math.ceil(r[a + 2]);
+          break;
+        case WRAP:
+          r[d] = Allele.wrap(r[a]);
+          r[d + 1] = Allele.wrap(r[a + 1]);
+          r[d + 2] = Allele.wrap(r[a + 2]);
+          break;
+        case CLIP:
+          r[d] = Allele.clip(r[a]);
+          r[d + 1] = Allele.clip(r[a + 1]);
+          r[d + 2] = Allele.clip(r[a + 2]);
+          break;
+        case MANTISSA:
+          r[d] = Allele.getMantissa(r[a]);
+          r[d + 1] = Allele.getMantissa(r[a + 1]);
+          r[d + 2] = Allele.getMantissa(r[a + 2]);
+          break;
+        case MAX:
+          r[d] = Math.max(r[a], r[b]);
+          r[d + 1] = Math.max(r[a + 1], r[b + 1]);
+          r[d + 2] = Math.max(r[a + 2], r[b + 2]);
+          break;
+        case MIN:
+          r[d] = Math.min(r[a], r[b]);
+          r[d + 1] = Math.min(r[a + 1], r[b + 1]);
+          r[d + 2] = Math.min(r[a + 2], r[b + 2]);
+          break;
+        case ATAN2:
+          r[d] = Math.atan2(r[a], r[b]);
+          r[d + 1] = Math.atan2(r[a + 1], r[b + 1]);
+          r[d + 2] = Math.atan2(r[a + 2], r[b + 2]);
+          break;
+        case DIV:
+          r[d] = Allele.divide(r[a], r[b]);
+          r[d + 1] = Allele.divide(r[a + 1], r[b + 1]);
+          r[d + 2] = Allele.divide(r[a + 2], r[b + 2]);
+          break;
+        case MUL:
+          r[d] = r[a] * r[b];
+          r[d + 1] = r[a + 1] * r[b + 1];
+          r[d + 2] = r[a + 2] * r[b + 2];
+          break;
+        case ADD:
+          r[d] = r[a] + r[b];
+          r[d + 1] = r[a + 1] + r[b + 1];
+          r[d + 2] = r[a + 2] + r[b + 2];
+          break;
+        case SUB:
+          r[d] = r[a] - r[b];
+          r[d + 1] = r[a + 1] - r[b + 1];
+          r[d + 2] = r[a + 2] - r[b + 2];
+          break;
+        case DISSOLVE:
+          r[d] = Allele.dissolve(r[a], r[b], r[c]);
+          r[d + 1] = Allele.dissolve(r[a + 1], r[b + 1], r[c + 1]);
+          r[d + 2] = Allele.dissolve(r[a + 2], r[b + 2], r[c + 2]);
+          break;
+        case COLOR_PERLIN:
+          r[d] = simplexNoise.eval(r[a], r[b], r[c]);
+          r[d + 1] = simplexNoise.eval(r[a + 1], r[b + 1], r[c + 1]);
+          r[d + 2] = simplexNoise.eval(r[a + 2], r[b + 2], r[c + 2]);
+          break;
+
+        case GREY_PERLIN:
+          {
+            var noise = simplexNoise.eval(r[a], r[a + 1], r[a + 2]);
+            r[d] = noise;
+            r[d + 1] = noise;
+            r[d + 2] = noise;
+            break;
+          }
+        case GREY_PERLIN_4D:
+          {
+            var noise = simplexNoise.eval(r[a], r[a + 1], r[a + 2], r[b]);
+            r[d] = noise;
+            r[d + 1] = noise;
+            r[d + 2] = noise;
+            break;
+          }
+        case RGB_TO_YCRCB:
+          {
+            var ir = r[a];
+            var ig = r[a + 1];
+            var ib = r[a + 2];
+            r[d] = .299 * ir + .587 * ig + .114 * ib;
+            r[d + 1] = .701 / 1.402 * ir - .587 / 1.402 * ig - .114 / 1.402 * ib;
+            r[d + 2] = -.299 / 1.772 * ir - .587 / 1.772 * ig + .886 / 1.772 * ib;
+            break;
+          }
+        case YCRCB_TO_RGB:
+          {
+            var ir = r[a];
+            var ig = r[a + 1];
+            var ib = r[a + 2];
+            r[d] = ir + 1.402 * ig;
+            r[d + 1] = ir - .299 * 1.402 / .587 * ig - .114 * 1.772 / .587 * ib;
+            r[d + 2] = ir + 1.772 * ib;
+            break;
+          }
+        case RED_CHANNEL:
+          r[d] = r[a];
+          r[d + 1] = r[a];
+          r[d + 2] = r[a];
+          break;
+        case GREEN_CHANNEL:
+          r[d] = r[a + 1];
+          r[d + 1] = r[a + 1];
+          r[d + 2] = r[a + 1];
+          break;
+        case BLUE_CHANNEL:
+          r[d] = r[a + 2];
+          r[d + 1] = r[a + 2];
+          r[d + 2] = r[a + 2];
+          break;
+        case COLOR_MIX:
+          r[d] = r[a];
+          r[d + 1] = r[b + 1];
+          r[d + 2] = r[c + 2];
+          break;
+        case EXTERNAL_IMAGE:
+          {
+            var image = images[c];
+            r[d] = red(ExternalImageAlleles.fetchRgb(image, r[a], r[b]));
+            r[d + 1] = green(ExternalImageAlleles.fetchRgb(image, r[a + 1], r[b + 1]));
+            r[d + 2] = blue(ExternalImageAlleles.fetchRgb(image, r[a + 2], r[b + 2]));
+            break;
+          }
+
+        case COORDINATES:
+          r[d] = a == FROM_X ? x : a == FROM_Y ? y : 0.0;
+          r[d + 1] = b == FROM_X ? x : b == FROM_Y ? y : 0.0;
+          r[d + 2] = c == FROM_X ? x : c == FROM_Y ? y : 0.0;
+          break;
+        case CONSTANT:
+          r[d] = k[a];
+          r[d + 1] = k[a + 1];
+          r[d + 2] = k[a + 2];
+          break;
+        case CALL:
+          {
+            var color = fallbacks[a].render(x, y);
+            r[d] = color.r;
+            r[d + 1] = color.g;
+            r[d + 2] = color.b;
+            break;
+          }
+
+        default:
+          throw new IllegalStateException("unknown opcode: " + code[pc]);
+      }
+    }
+  }
+
+  /** Evaluates the program for one pixel, returning the result as an {@link RgbColor}. */
+  public RgbColor render(double x, double y, double[] registers) {
+    run(x, y, registers);
+    return color(registers[resultOffset], registers[resultOffset + 1], registers[resultOffset + 2]);
+  }
+
+  /**
+   * Returns an {@link ImageFunction} that runs this program. Each thread that renders with it gets
+   * its own register array, allocated once. Batches of pixels, as from {@link
+   * ImageFunction#toImage(int, int)}, are rendered a node at a time with {@link
+   * #renderTile(double[], int, double[], int, double[])}.
+   */
+  public ImageFunction toImageFunction() {
+    final var registers = ThreadLocal.withInitial(this::newRegisters);
+    return new ImageFunction() {
+      @Override
+      public RgbColor render(double x, double y) {
+        return GeneProgram.this.render(x, y, registers.get());
+      }
+
+      @Override
+      public void renderInto(double x, double y, double[] stack, int top) {
+        var r = registers.get();
+        run(x, y, r);
+        System.arraycopy(r, resultOffset, stack, top, 3);
+      }
+
+      @Override
+      public void renderBatch(double[] xs, double[] ys, int n, double[] out) {
+        GeneProgram.this.renderBatch(xs, ys, n, out);
+      }
+
+      @Override
+      public void renderTile(double[] columns, int width, double[] rows, int height, double[] out) {
+        GeneProgram.this.renderTile(columns, width, rows, height, out);
+      }
+
+      @Override
+      public Option<Integer> renderTileUnlessFlat(
+          double[] columns, int width, double[] rows, int height, double[] out) {
+        return GeneProgram.this.renderTileUnlessFlat(columns, width, rows, height, out);
+      }
+
+      @Override
+      public boolean isContinuousOver(double xlo, double xhi, double ylo, double yhi) {
+        return GeneProgram.this.isContinuousOver(xlo, xhi, ylo, yhi);
+      }
+
+      @Override
+      public Option<GeneProgram> program() {
+        return some(GeneProgram.this);
+      }
+    };
+  }
+
+  /**
+   * Returns an {@link ImageFunction} that runs this program at the given precision. With {@link
+   * Precision#DOUBLE}, this is just {@link #toImageFunction()}. With {@link Precision#FAST},
+   * batches and tiles of pixels are rendered with fast approximate math, while pixels rendered one
+   * at a time are rendered exactly as with {@link Precision#DOUBLE}.
+   */
+  public ImageFunction toImageFunction(Precision precision) {
+    var doubleFunction = toImageFunction();
+    if (precision == Precision.DOUBLE) {
+      return doubleFunction;
+    }
+    return new ImageFunction() {
+      @Override
+      public RgbColor render(double x, double y) {
+        return doubleFunction.render(x, y);
+      }
+
+      @Override
+      public void renderInto(double x, double y, double[] stack, int top) {
+        doubleFunction.renderInto(x, y, stack, top);
+      }
+
+      @Override
+      public void renderBatch(double[] xs, double[] ys, int n, double[] out) {
+        GeneProgram.this.renderBatch(xs, ys, n, out, true);
+      }
+
+      @Override
+      public void renderTile(double[] columns, int width, double[] rows, int height, double[] out) {
+        GeneProgram.this.renderTile(columns, width, rows, height, out, true);
+      }
+
+      @Override
+      public Option<Integer> renderTileUnlessFlat(
+          double[] columns, int width, double[] rows, int height, double[] out) {
+        return GeneProgram.this.renderTileUnlessFlat(columns, width, rows, height, out, true);
+      }
+
+      @Override
+      public boolean isContinuousOver(double xlo, double xhi, double ylo, double yhi) {
+        // as with the pixels rendered one at a time, this is about the double precision program
+        return doubleFunction.isContinuousOver(xlo, xhi, ylo, yhi);
+      }
+
+      @Override
+      public Option<GeneProgram> program() {
+        return some(GeneProgram.this);
+      }
+    };
+  }
+
+  /**
+   * Evaluates the program for a batch of <code>n</code> pixels, writing planar results to <code>out
+   * </code>, as described in {@link ImageFunction#renderBatch(double[], double[], int, double[])}.
+   * Register space comes from the calling thread's {@link TileArena}.
+   */
+  public void renderBatch(double[] xs, double[] ys, int n, double[] out) {
+    renderBatch(xs, ys, n, out, false);
+  }
+
+  /**
+   * Like {@link #renderBatch(double[], double[], int, double[])}, optionally with fast math (see
+   * {@link Precision#FAST}).
+   */
+  private void renderBatch(double[] xs, double[] ys, int n, double[] out, boolean fastMath) {
+    var registers = TileArena.get().registers(numRegisters, 3 * n);
+    runBatch(xs, ys, n, registers, fastMath);
+    System.arraycopy(registers[resultOffset / 3], 0, out, 0, 3 * n);
+  }
+
+  /**
+   * Evaluates the program for a grid of pixels, writing planar results to <code>out</code>, as
+   * described in {@link ImageFunction#renderTile(double[], int, double[], int, double[])}. Register
+   * space comes from the calling thread's {@link TileArena}.
+   */
+  public void renderTile(double[] columns, int width, double[] rows, int height, double[] out) {
+    renderTile(columns, width, rows, height, out, false);
+  }
+
+  /**
+   * Like {@link #renderTile(double[], int, double[], int, double[])}, optionally with fast math
+   * (see {@link Precision#FAST}).
+   */
+  private void renderTile(
+      double[] columns, int width, double[] rows, int height, double[] out, boolean fastMath) {
+    var actions = analyzeTile(columns, width, rows, height, fastMath);
+    renderPruned(columns, width, rows, height, out, fastMath, actions);
+  }
+
+  /**
+   * Like {@link #renderTile(double[], int, double[], int, double[])}, except that if we can prove
+   * that every pixel of the tile will come out the same color, we don't render it at all, and
+   * return the color (see {@link ImageFunction#renderTileUnlessFlat(double[], int, double[], int,
+   * double[])}).
+   */
+  public Option<Integer> renderTileUnlessFlat(
+      double[] columns, int width, double[] rows, int height, double[] out) {
+    return renderTileUnlessFlat(columns, width, rows, height, out, false);
+  }
+
+  /**
+   * Like {@link #renderTileUnlessFlat(double[], int, double[], int, double[])}, optionally with
+   * fast math (see {@link Precision#FAST}).
+   */
+  private Option<Integer> renderTileUnlessFlat(
+      double[] columns, int width, double[] rows, int height, double[] out, boolean fastMath) {
+    var actions = analyzeTile(columns, width, rows, height, fastMath);
+    var flat = flatColor(TileArena.get(), tileResultOffset);
+    if (flat.isEmpty()) {
+      renderPruned(columns, width, rows, height, out, fastMath, actions);
+    }
+    return flat;
+  }
+
+  /**
+   * Whether this program is sure to be continuous over the given rectangle of coordinates (see
+   * {@link ImageFunction#isContinuousOver(double, double, double, double)}), which we work out from
+   * the range of every instruction, as with {@link #renderTileUnlessFlat(double[], int, double[],
+   * int, double[])}.
+   */
+  public boolean isContinuousOver(double xlo, double xhi, double ylo, double yhi) {
+    return analyzeRanges(xlo, xhi, ylo, yhi, false);
+  }
+
+  /** Prunes the analyzed tile program down to what the result needs, and runs that. */
+  private void renderPruned(
+      double[] columns,
+      int width,
+      double[] rows,
+      int height,
+      double[] out,
+      boolean fastMath,
+      int[] actions) {
+    var n = width * height;
+    var arena = TileArena.get();
+    var live = arena.intBuffer(TileArena.LIVE, tileNumRegisters);
+    Arrays.fill(live, 0, tileNumRegisters, 0);
+    live[tileResultOffset / 3] = 1;
+    prune(actions, live);
+    var registers = arena.registers(tileNumRegisters, 3 * n);
+    runTile(columns, width, rows, height, registers, fastMath, actions);
+    System.arraycopy(registers[tileResultOffset / 3], 0, out, 0, 3 * n);
+  }
+
+  // Engineering note: a generation's worth of trees has a lot in common. Every offspring shares
+  // most of its genes with one of its parents, and cross-breeding mixes subtrees from both, so
+  // rendering the generation tree by tree computes many of the same subtrees over and over, and
+  // walks over every pixel once per tree. A program flattened from the whole generation, with
+  // GeneProgram.of(Seq), has each distinct subtree just once, shared by every tree that uses it,
+  // and toImages() walks the tiles once, running the combined program and packing every tree's
+  // result. The shared registers stay hot in the cache for all of them. The arithmetic is the same,
+  // value for value, so every image is bit-for-bit identical to rendering its tree on its own.
+
+  /**
+   * Renders every result of this program (see {@link #of(Seq)}) to its own BufferedImage at the
+   * given integer pixel resolution, in a single pass over the tiles of the image. The images come
+   * back in the same order as the trees, and as with {@link ImageFunction#toImage(int, int)}, they
+   * come from {@link RasterPool}.
+   */
+  public List<BufferedImage> toImages(int xsize, int ysize) {
+    return toImages(xsize, ysize, CancellationToken.NONE);
+  }
+
+  /**
+   * Like {@link #toImages(int, int)}, but gives up if <code>token</code> is cancelled, in which
+   * case the images go back to the pool.
+   *
+   * @throws CancellationException if the token was cancelled before the images were done
+   */
+  public List<BufferedImage> toImages(int xsize, int ysize, CancellationToken token) {
+    return toImages(xsize, ysize, Viewport.DEFAULT, token);
+  }
+
+  /**
+   * Like {@link #toImages(int, int, CancellationToken)}, but showing the given part of the plane
+   * (see {@link Viewport}).
+   *
+   * @throws CancellationException if the token was cancelled before the images were done
+   */
+  public List<BufferedImage> toImages(
+      int xsize, int ysize, Viewport viewport, CancellationToken token) {
+    final var numResults = resultOffsets.length;
+    var images = new BufferedImage[numResults];
+    var outputs = new int[numResults][];
+    for (var r = 0; r < numResults; r++) {
+      images[r] = RasterPool.acquire(xsize, ysize);
+      outputs[r] = RasterPool.pixels(images[r]);
+    }
+
+    final var tileSize = ImageFunction.TILE_SIZE;
+    try {
+      TileScheduler.forEachTile(
+          xsize,
+          ysize,
+          tileSize,
+          token,
+          (xstart, ystart, width, height) -> {
+            var n = width * height;
+
+            var arena = TileArena.get();
+            var columns = arena.buffer(TileArena.COLUMNS, width);
+            var rows = arena.buffer(TileArena.ROWS, height);
+
+            for (var x = 0; x < width; x++) {
+              columns[x] = viewport.x(xstart + x, xsize);
+            }
+            for (var y = 0; y < height; y++) {
+              rows[y] = viewport.y(ystart + y, ysize);
+            }
+
+            // Only the results that aren't one flat color need to be rendered.
+            var actions = analyzeTile(columns, width, rows, height, false);
+            var flats = arena.intBuffer(TileArena.FLATS, numResults);
+            var live = arena.intBuffer(TileArena.LIVE, tileNumRegisters);
+            Arrays.fill(live, 0, tileNumRegisters, 0);
+            var anyLive = false;
+            for (var r = 0; r < numResults; r++) {
+              var flat = flatColor(arena, tileResultOffsets[r]);
+              if (flat.isDefined()) {
+                flats[r] = flat.get();
+              } else {
+                flats[r] = 0; // never a color, since colors are opaque
+                live[tileResultOffsets[r] / 3] = 1;
+                anyLive = true;
+              }
+            }
+
+            var registers = arena.registers(tileNumRegisters, 3 * n);
+            if (anyLive) {
+              prune(actions, live);
+              runTile(columns, width, rows, height, registers, false, actions);
+            }
+
+            for (var r = 0; r < numResults; r++) {
+              var output = outputs[r];
+              if (flats[r] != 0) {
+                for (var y = 0; y < height; y++) {
+                  var row = (ystart + y) * xsize + xstart;
+                  Arrays.fill(output, row, row + width, flats[r]);
+                }
+                continue;
+              }
+              var colors = registers[tileResultOffsets[r] / 3];
+              for (var y = 0; y < height; y++) {
+                var row = (ystart + y) * xsize + xstart;
+                for (var x = 0; x < width; x++) {
+                  var i = y * width + x;
+                  output[row + x] = RgbColor.toRgb(colors[i], colors[n + i], colors[2 * n + i]);
+                }
+              }
+            }
+          });
+    } catch (CancellationException e) {
+      for (var image : images) {
+        RasterPool.release(image);
+      }
+      throw e;
+    }
+
+    return List.of(images);
+  }
+
+  // Engineering note: runBatch() is the "column at a time" twin of run(). Each register is now
+  // its own array holding one color for every pixel in the batch, in planar form (all the reds,
+  // then all the greens, then all the blues), and each instruction is a loop over the whole
+  // batch. Piecewise operators don't care which channel they're working on, so they're a single
+  // loop over all 3n values. The switch and its bookkeeping now happen once per instruction per
+  // batch rather than once per instruction per pixel, and the loops are exactly the sort of
+  // thing the JIT's loop optimizer is good at. The arithmetic operators call out to
+  // TileKernels, whose loops are written so the JIT can turn them into SIMD instructions.
+
+  /** Evaluates the program for a batch of pixels, with the result landing in a register. */
+  void runBatch(double[] xs, double[] ys, int n, double[][] registers, boolean fastMath) {
+    final var code = this.code;
+    final var channels = this.channels;
+    for (var pc = 0; pc < code.length; pc += WIDTH) {
+      if (channels[pc / WIDTH] != 0) {
+        step(code, pc, xs, ys, n, registers, channels[pc / WIDTH], fastMath);
+      }
+    }
+  }
+
+  // Engineering note: lots of subtrees only depend on x, or only on y, or on neither: think of
+  // sine(x), or color-perlin(y, y, y), or anything built from constants that we didn't fold. In a
+  // tile, x is the same all the way down each column, so something that only depends on x has
+  // the same value all the way down each column, and there's no reason to compute it for every
+  // pixel. The tile program tags every instruction with its shape, which is the set of
+  // coordinates it depends on, and runs each one over just as many values as its shape needs: one
+  // per column for X_ONLY, one per row for Y_ONLY, one per tile for INVARIANT, and one per pixel
+  // for XY. Where a narrow value feeds a wider instruction, the assembler inserts a WIDEN
+  // instruction that copies it out to the wider shape, which is just a few arraycopy() or fill()
+  // calls. For a tile of 64x64 pixels, sine(x) becomes 64 calls to Math.sin() rather than 4096.
+  // The arithmetic is the same, value for value, so the results are bit-for-bit identical.
+
+  /**
+   * Evaluates the tile program for a grid of pixels, with the result landing in a register. If
+   * <code>actions</code> isn't null, it says what to do with each instruction, as worked out by
+   * {@link #analyzeTile(double[], int, double[], int, boolean)} and {@link #prune(int[], int[])}.
+   */
+  void runTile(
+      double[] columns,
+      int width,
+      double[] rows,
+      int height,
+      double[][] registers,
+      boolean fastMath,
+      int[] actions) {
+    final var code = this.tileCode;
+    final var n = width * height;
+
+    // Coordinate leaves that use both x and y, and fallbacks, need the coordinates of every pixel.
+    var arena = TileArena.get();
+    var xs = arena.buffer(TileArena.XS, n);
+    var ys = arena.buffer(TileArena.YS, n);
+    for (var y = 0; y < height; y++) {
+      System.arraycopy(columns, 0, xs, y * width, width);
+      Arrays.fill(ys, y * width, (y + 1) * width, rows[y]);
+    }
+
+    for (var pc = 0; pc < code.length; pc += WIDTH) {
+      final var channels = tileChannels[pc / WIDTH];
+      if (channels == 0) {
+        continue;
+      }
+      if (actions != null && actions[pc / WIDTH] != RUN) {
+        shortcut(pc, actions[pc / WIDTH], registers, width, height);
+        continue;
+      }
+      if (code[pc] == WIDEN) {
+        widen(
+            registers[code[pc + 2] / 3],
+            code[pc + 3],
+            registers[code[pc + 1] / 3],
+            code[pc + 4],
+            width,
+            height,
+            channels);
+        continue;
+      }
+      switch (tileShapes[pc / WIDTH]) {
+        case INVARIANT:
+          step(code, pc, null, null, 1, registers, channels, fastMath);
+          break;
+        case X_ONLY:
+          step(code, pc, columns, null, width, registers, channels, fastMath);
+          break;
+        case Y_ONLY:
+          step(code, pc, null, rows, height, registers, channels, fastMath);
+          break;
+        default:
+          step(code, pc, xs, ys, n, registers, channels, fastMath);
+          break;
+      }
+    }
+  }
+
+  // Engineering note: plenty of bred images have big flat regions, where a clip, sign, or clamp has
+  // saturated, and every pixel comes out the same. Rendering those pixels one by one is a waste.
+  // Before rendering a tile, analyzeTile() runs the tile program once more, over ranges rather
+  // than values (see Intervals), starting from the ranges of x and y across the tile. An
+  // instruction whose range is a single double computes that double on every pixel, so we fill
+  // it in rather than compute it; a max or min where one operand's range is entirely below the
+  // other's is just a copy of one operand. Then prune() works backward from the result, as a
+  // liveness analysis, and skips every instruction whose result is no longer needed, which is
+  // where the real savings come from: whole subtrees under a saturated clip never run. If the
+  // result's range is narrow enough that every pixel rounds to the same color, we needn't run
+  // anything at all. The analysis costs about as much as rendering a single pixel. The ranges are
+  // sound, so the pixels we do render are bit-for-bit what they were.
+
+  /**
+   * Works out the range of every instruction of the tile program over the given tile, leaving the
+   * ranges of the registers, as of the end of the program, in the calling thread's {@link
+   * TileArena}. Returns what {@link #runTile(double[], int, double[], int, double[][], boolean,
+   * int[])} should do with each instruction: {@link #FILL} for instructions that compute the same
+   * double on every pixel, with the doubles in the arena, {@link #COPY_A} or {@link #COPY_B} for a
+   * max or min where one operand always wins, and {@link #RUN} for the rest.
+   */
+  private int[] analyzeTile(
+      double[] columns, int width, double[] rows, int height, boolean fastMath) {
+    var xlo = columns[0];
+    var xhi = columns[0];
+    for (var i = 1; i < width; i++) {
+      xlo = Math.min(xlo, columns[i]);
+      xhi = Math.max(xhi, columns[i]);
+    }
+    var ylo = rows[0];
+    var yhi = rows[0];
+    for (var i = 1; i < height; i++) {
+      ylo = Math.min(ylo, rows[i]);
+      yhi = Math.max(yhi, rows[i]);
+    }
+
+    analyzeRanges(xlo, xhi, ylo, yhi, fastMath);
+    return TileArena.get().intBuffer(TileArena.ACTIONS, tileCode.length / WIDTH);
+  }
+
+  /**
+   * Does the work of {@link #analyzeTile(double[], int, double[], int, boolean)} for any pixels
+   * whose x and y coordinates lie within the given ranges, leaving the actions in the calling
+   * thread's {@link TileArena}. Returns whether the program is sure to be continuous over the
+   * ranges: whether every discontinuous instruction, like floor or sign, stays clear of its jumps.
+   */
+  private boolean analyzeRanges(double xlo, double xhi, double ylo, double yhi, boolean fastMath) {
+    final var code = this.tileCode;
+    final var k = this.constants;
+    var arena = TileArena.get();
+    var lo = arena.buffer(TileArena.LOW, 3 * tileNumRegisters);
+    var hi = arena.buffer(TileArena.HIGH, 3 * tileNumRegisters);
+    var fills = arena.buffer(TileArena.FILLS, 3 * code.length / WIDTH);
+    var actions = arena.intBuffer(TileArena.ACTIONS, code.length / WIDTH);
+    var continuous = true;
+
+    for (var pc = 0; pc < code.length; pc += WIDTH) {
+      final var op = code[pc];
+      final var d = code[pc + 1];
+      final var a = code[pc + 2];
+      final var b = code[pc + 3];
+      final var c = code[pc + 4];
+      final var demand = tileChannels[pc / WIDTH];
+      var action = RUN;
+
+      if (op <= COLOR_PERLIN) {
+        // piecewise, so one channel at a time, but first (before we overwrite anything), see if
+        // one side of a max or min always wins, and whether we might land on a jump
+        for (var ch = 0; ch < 3 && continuous; ch++) {
+          continuous = (demand & (1 << ch)) == 0 || isContinuous(op, lo, hi, a + ch, b + ch);
+        }
+        if (op == MAX || op == MIN) {
+          if (isBelow(lo, hi, a, b, demand)) {
+            action = op == MAX ? COPY_B : COPY_A;
+          } else if (isBelow(lo, hi, b, a, demand)) {
+            action = op == MAX ? COPY_A : COPY_B;
+          }
+        }
+        for (var ch = 0; ch < 3; ch++) {
+          piecewiseRange(op, lo, hi, a + ch, b + ch, c + ch, d + ch, fastMath);
+        }
+      } else {
+        switch (op) {
+          case GREY_PERLIN:
+            Intervals.noise(lo, hi, a, a + 1, a + 2, d);
+            broadcastRange(lo, hi, d, d);
+            break;
+          case GREY_PERLIN_4D:
+            Intervals.noise4d(lo, hi, a, a + 1, a + 2, b, d);
+            broadcastRange(lo, hi, d, d);
+            break;
+          case RGB_TO_YCRCB:
+            Intervals.rgbToYcrcb(lo, hi, a, d);
+            break;
+          case YCRCB_TO_RGB:
+            Intervals.ycrcbToRgb(lo, hi, a, d);
+            break;
+          case RED_CHANNEL:
+            broadcastRange(lo, hi, a, d);
+            break;
+          case GREEN_CHANNEL:
+            broadcastRange(lo, hi, a + 1, d);
+            break;
+          case BLUE_CHANNEL:
+            broadcastRange(lo, hi, a + 2, d);
+            break;
+          case COLOR_MIX:
+            copyRange(lo, hi, a, d);
+            copyRange(lo, hi, b + 1, d + 1);
+            copyRange(lo, hi, c + 2, d + 2);
+            break;
+          case EXTERNAL_IMAGE:
+            // pixels from an image are always proper colors, whatever the coordinates, but they
+            // change abruptly from one to the next
+            continuous &= demand == 0;
+            for (var ch = 0; ch < 3; ch++) {
+              Intervals.set(lo, hi, d + ch, -1.0, 1.0);
+            }
+            break;
+          case COORDINATES:
+            for (var ch = 0; ch < 3; ch++) {
+              var source = code[pc + 2 + ch];
+              if (source == FROM_X) {
+                Intervals.set(lo, hi, d + ch, xlo, xhi);
+              } else if (source == FROM_Y) {
+                Intervals.set(lo, hi, d + ch, ylo, yhi);
+              } else {
+                Intervals.set(lo, hi, d + ch, 0.0, 0.0);
+              }
+            }
+            break;
+          case CONSTANT:
+            for (var ch = 0; ch < 3; ch++) {
+              Intervals.set(lo, hi, d + ch, k[a + ch], k[a + ch]);
+            }
+            break;
+          case CALL:
+            continuous &= demand == 0;
+            for (var ch = 0; ch < 3; ch++) {
+              Intervals.top(lo, hi, d + ch);
+            }
+            break;
+          case WIDEN:
+            copyRange(lo, hi, a, d);
+            copyRange(lo, hi, a + 1, d + 1);
+            copyRange(lo, hi, a + 2, d + 2);
+            break;
+          default:
+            throw new IllegalStateException("unknown opcode: " + op);
+        }
+      }
+
+      // Channels nobody reads don't matter, so long as the ones they do read are constant.
+      var i = pc / WIDTH;
+      if (isPoint(lo, hi, d, demand)) {
+        action = FILL;
+        fills[3 * i] = lo[d];
+        fills[3 * i + 1] = lo[d + 1];
+        fills[3 * i + 2] = lo[d + 2];
+      }
+      actions[i] = action;
+    }
+    return continuous;
+  }
+
+  /**
+   * Whether one channel of a piecewise instruction is sure to be continuous over the ranges of its
+   * operands. Operators with no jumps always are; the rest are if their operands stay clear of the
+   * places where they jump. Unknown ranges (see {@link Intervals#top}) never do.
+   */
+  private static boolean isContinuous(int op, double[] lo, double[] hi, int a, int b) {
+    switch (op) {
+      case SIGN:
+        return lo[a] >= 0.0 || hi[a] < 0.0;
+      case FLOOR:
+        return Math.floor(lo[a]) == Math.floor(hi[a]);
+      case CEILING:
+        return Math.ceil(lo[a]) == Math.ceil(hi[a]);
+      case WRAP:
+        return Math.floor(lo[a] / 2 + 0.5) == Math.floor(hi[a] / 2 + 0.5);
+      case MANTISSA:
+        return (lo[a] > 0.0 || hi[a] < 0.0) && Math.getExponent(lo[a]) == Math.getExponent(hi[a]);
+      case LOG:
+        return lo[a] > 0.0 || hi[a] <= 0.0;
+      case DIV:
+        return lo[b] > 0.0 || hi[b] < 0.0;
+      case ATAN2:
+        // the cut runs along the negative x axis
+        return lo[a] > 0.0 || hi[a] < 0.0 || lo[b] >= 0.0;
+      default:
+        // everything else is continuous, so long as its operands are, which we check as we go
+        return true;
+    }
+  }
+
+  /** Computes the range of one channel of a piecewise instruction; see {@link Intervals}. */
+  private static void piecewiseRange(
+      int op, double[] lo, double[] hi, int a, int b, int c, int d, boolean fastMath) {
+    switch (op) {
+      case SIN:
+      case COS:
+        if (fastMath) {
+          // FastMath.sin() and cos() can overshoot [-1, 1] by as much as their error, 5e-6
+          Intervals.approximate(lo, hi, a, d, 1.0 + 5e-6);
+        } else if (op == SIN) {
+          Intervals.sine(lo, hi, a, d);
+        } else {
+          Intervals.cosine(lo, hi, a, d);
+        }
+        break;
+      case ATAN:
+        if (fastMath) {
+          Intervals.approximate(lo, hi, a, d, 2.0);
+        } else {
+          Intervals.atan(lo, hi, a, d);
+        }
+        break;
+      case TANH:
+        if (fastMath) {
+          Intervals.approximate(lo, hi, a, d, 2.0);
+        } else {
+          Intervals.tanh(lo, hi, a, d);
+        }
+        break;
+      case EXP:
+        Intervals.exp(lo, hi, a, d); // never approximated
+        break;
+      case LOG:
+        if (fastMath) {
+          Intervals.top(lo, hi, d);
+        } else {
+          Intervals.log(lo, hi, a, d);
+        }
+        break;
+      case NEGATE:
+        Intervals.negate(lo, hi, a, d);
+        break;
+      case ABS:
+        Intervals.abs(lo, hi, a, d);
+        break;
+      case SIGN:
+        Intervals.sign(lo, hi, a, d);
+        break;
+      case CLAMP_NEGATIVE:
+        Intervals.clampNegative(lo, hi, a, d);
+        break;
+      case CLAMP_POSITIVE:
+        Intervals.clampPositive(lo, hi, a, d);
+        break;
+      case FLOOR:
+        Intervals.floor(lo, hi, a, d);
+        break;
+      case CEILING:
+        Intervals.ceiling(lo, hi, a, d);
+        break;
+      case WRAP:
+      case MANTISSA:
+        Intervals.unit(lo, hi, a, d);
+        break;
+      case CLIP:
+        Intervals.clip(lo, hi, a, d);
+        break;
+      case MAX:
+        Intervals.max(lo, hi, a, b, d);
+        break;
+      case MIN:
+        Intervals.min(lo, hi, a, b, d);
+        break;
+      case ATAN2:
+        Intervals.atan2(lo, hi, a, b, d, fastMath ? 4.0 : Math.nextUp(Math.PI));
+        break;
+      case DIV:
+        Intervals.divide(lo, hi, a, b, d);
+        break;
+      case MUL:
+        Intervals.multiply(lo, hi, a, b, d);
+        break;
+      case ADD:
+        Intervals.add(lo, hi, a, b, d);
+        break;
+      case SUB:
+        Intervals.subtract(lo, hi, a, b, d);
+        break;
+      case DISSOLVE:
+        Intervals.dissolve(lo, hi, a, b, c, d);
+        break;
+      case COLOR_PERLIN:
+        Intervals.noise(lo, hi, a, b, c, d);
+        break;
+      default:
+        throw new IllegalStateException("unknown opcode: " + op);
+    }
+  }
+
+  /** Copies the range at <code>from</code> to <code>to</code>. */
+  private static void copyRange(double[] lo, double[] hi, int from, int to) {
+    lo[to] = lo[from];
+    hi[to] = hi[from];
+  }
+
+  /** Copies the range at <code>from</code> to all three channels at <code>d</code>. */
+  private static void broadcastRange(double[] lo, double[] hi, int from, int d) {
+    var low = lo[from];
+    var high = hi[from];
+    for (var ch = 0; ch < 3; ch++) {
+      lo[d + ch] = low;
+      hi[d + ch] = high;
+    }
+  }
+
+  /** Whether each of the given channels of the range at <code>a</code> is a single double. */
+  private static boolean isPoint(double[] lo, double[] hi, int a, int channels) {
+    for (var ch = 0; ch < 3; ch++) {
+      if ((channels & (1 << ch)) != 0 && !Intervals.isPoint(lo, hi, a + ch)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether each of the given channels of the range at <code>a</code> is below that at <code>b
+   * </code>.
+   */
+  private static boolean isBelow(double[] lo, double[] hi, int a, int b, int channels) {
+    for (var ch = 0; ch < 3; ch++) {
+      if ((channels & (1 << ch)) != 0 && !Intervals.isBelow(lo, hi, a + ch, b + ch)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * If, according to the ranges left in the arena by {@link #analyzeTile(double[], int, double[],
+   * int, boolean)}, every pixel of the register at <code>offset</code> rounds to the same color,
+   * returns that color.
+   */
+  private static Option<Integer> flatColor(TileArena arena, int offset) {
+    var lo = arena.buffer(TileArena.LOW, offset + 3);
+    var hi = arena.buffer(TileArena.HIGH, offset + 3);
+    if (Intervals.isTop(lo, offset)
+        || Intervals.isTop(lo, offset + 1)
+        || Intervals.isTop(lo, offset + 2)) {
+      return none();
+    }
+    // RgbColor.toRgb() rounds each channel monotonically, so if the two ends of every channel's
+    // range round the same, so does everything in between.
+    var low = RgbColor.toRgb(lo[offset], lo[offset + 1], lo[offset + 2]);
+    var high = RgbColor.toRgb(hi[offset], hi[offset + 1], hi[offset + 2]);
+    return low == high ? some(low) : none();
+  }
+
+  /**
+   * Works backward through the tile program, marking every instruction whose result isn't needed as
+   * {@link #SKIP}. On the way in, <code>live</code> marks the registers whose values are wanted at
+   * the end of the program.
+   */
+  private void prune(int[] actions, int[] live) {
+    final var code = this.tileCode;
+    for (var i = code.length / WIDTH - 1; i >= 0; i--) {
+      var pc = i * WIDTH;
+      var d = code[pc + 1] / 3;
+      if (live[d] == 0) {
+        actions[i] = SKIP;
+        continue;
+      }
+      live[d] = 0; // nobody before here needs what this instruction overwrites
+      switch (actions[i]) {
+        case FILL:
+          break;
+        case COPY_A:
+          live[code[pc + 2] / 3] = 1;
+          break;
+        case COPY_B:
+          live[code[pc + 3] / 3] = 1;
+          break;
+        default:
+          for (var operand = 0; operand < arity(code[pc]); operand++) {
+            live[code[pc + 2 + operand] / 3] = 1;
+          }
+          break;
+      }
+    }
+  }
+
+  /** Returns the number of register operands of the given opcode. */
+  private static int arity(int op) {
+    switch (op) {
+      case COORDINATES:
+      case CONSTANT:
+      case CALL:
+        return 0;
+      case MAX:
+      case MIN:
+      case ATAN2:
+      case DIV:
+      case MUL:
+      case ADD:
+      case SUB:
+      case EXTERNAL_IMAGE:
+      case GREY_PERLIN_4D:
+        return 2;
+      case DISSOLVE:
+      case COLOR_PERLIN:
+      case COLOR_MIX:
+        return 3;
+      default:
+        return 1;
+    }
+  }
+
+  /** Carries out any action other than {@link #RUN} on the instruction at <code>pc</code>. */
+  private void shortcut(int pc, int action, double[][] registers, int width, int height) {
+    if (action == SKIP) {
+      return;
+    }
+    var size = shapeSize(tileShapes[pc / WIDTH], width, height);
+    var d = registers[tileCode[pc + 1] / 3];
+    if (action == FILL) {
+      var fills = TileArena.get().buffer(TileArena.FILLS, 0);
+      for (var ch = 0; ch < 3; ch++) {
+        Arrays.fill(d, ch * size, (ch + 1) * size, fills[3 * (pc / WIDTH) + ch]);
+      }
+    } else {
+      var source = registers[tileCode[pc + (action == COPY_A ? 2 : 3)] / 3];
+      System.arraycopy(source, 0, d, 0, 3 * size);
+    }
+  }
+
+  /** Returns the number of values in one channel of a register of the given shape. */
+  private static int shapeSize(int shape, int width, int height) {
+    switch (shape) {
+      case INVARIANT:
+        return 1;
+      case X_ONLY:
+        return width;
+      case Y_ONLY:
+        return height;
+      default:
+        return width * height;
+    }
+  }
+
+  /** Copies a planar register out to a wider shape (one that depends on more coordinates). */
+  private static void widen(
+      double[] source, int from, double[] dest, int to, int width, int height, int channels) {
+    var sourceSize = shapeSize(from, width, height);
+    var destSize = shapeSize(to, width, height);
+    for (var channel = 0; channel < 3; channel++) {
+      if ((channels & (1 << channel)) == 0) {
+        continue;
+      }
+      var s = channel * sourceSize;
+      var d = channel * destSize;
+      if (from == INVARIANT) {
+        Arrays.fill(dest, d, d + destSize, source[s]);
+      } else if (from == X_ONLY) {
+        // every row is a copy of the columns
+        for (var y = 0; y < height; y++) {
+          System.arraycopy(source, s, dest, d + y * width, width);
+        }
+      } else {
+        // every row is one value, repeated
+        for (var y = 0; y < height; y++) {
+          Arrays.fill(dest, d + y * width, d + (y + 1) * width, source[s + y]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Evaluates the instruction at <code>code[pc]</code> for a batch of <code>n</code> pixels. Used
+   * by both {@link #runBatch(double[], double[], int, double[][], boolean)} and {@link
+   * #runTile(double[], int, double[], int, double[][], boolean, int[])}.
+   */
+  private void step(
+      int[] code,
+      int pc,
+      double[] xs,
+      double[] ys,
+      int n,
+      double[][] registers,
+      int channels,
+      boolean fastMath) {
+    // Only the channels that somebody reads (see Assembler.demands()), as a span of the register.
+    final var from = n * Integer.numberOfTrailingZeros(channels);
+    final var to = n * (32 - Integer.numberOfLeadingZeros(channels));
+    final var d = registers[code[pc + 1] / 3];
+    final var a = code[pc + 2];
+    final var b = code[pc + 3];
+    final var c = code[pc + 4];
+
+    switch (code[pc]) {
+      case SIN:
+        {
+          var ra = registers[a / 3];
+          if (fastMath) {
+            TileKernels.fastSin(ra, d, from, to);
+          } else {
+            for (var i = from; i < to; i++) {
+              d[i] = Math.sin(ra[i]);
+            }
+          }
+          break;
+        }
+      case COS:
+        {
+          var ra = registers[a / 3];
+          if (fastMath) {
+            TileKernels.fastCos(ra, d, from, to);
+          } else {
+            for (var i = from; i < to; i++) {
+              d[i] = Math.cos(ra[i]);
+            }
+          }
+          break;
+        }
+      case ATAN:
+        {
+          var ra = registers[a / 3];
+          if (fastMath) {
+            TileKernels.fastAtan(ra, d, from, to);
+          } else {
+            for (var i = from; i < to; i++) {
+              d[i] = Math.atan(ra[i]);
+            }
+          }
+          break;
+        }
+      case TANH:
+        {
+          var ra = registers[a / 3];
+          if (fastMath) {
+            TileKernels.fastTanh(ra, d, from, to);
+          } else {
+            for (var i = from; i < to; i++) {
+              d[i] = Math.tanh(ra[i]);
+            }
+          }
+          break;
+        }
+      case EXP:
+        {
+          var ra = registers[a / 3];
+          // no fast version: the JIT's intrinsic for Math.exp() is already faster than ours
+          for (var i = from; i < to; i++) {
+            d[i] = Math.exp(ra[i]);
+          }
+          break;
+        }
+      case LOG:
+        {
+          var ra = registers[a / 3];
+          if (fastMath) {
+            TileKernels.fastLog(ra, d, from, to);
+          } else {
+            for (var i = from; i < to; i++) {
+              d[i] = Math.log(ra[i]);
+            }
+          }
+          break;
+        }
+      case NEGATE:
+        TileKernels.negate(registers[a / 3], d, from, to);
+        break;
+      case ABS:
+        TileKernels.abs(registers[a / 3], d, from, to);
+        break;
+      case SIGN:
+        TileKernels.sign(registers[a / 3], d, from, to);
+        break;
+      case CLAMP_NEGATIVE:
+        TileKernels.clampNegative(registers[a / 3], d, from, to);
+        break;
+      case CLAMP_POSITIVE:
+        TileKernels.clampPositive(registers[a / 3], d, from, to);
+        break;
+      case FLOOR:
+        TileKernels.floor(registers[a / 3], d, from, to);
+        break;
+      case CEILING:
+        TileKernels.ceiling(registers[a / 3], d, from, to);
+        break;
+      case WRAP:
+        TileKernels.wrap(registers[a / 3], d, from, to);
+        break;
+      case CLIP:
+        TileKernels.clip(registers[a / 3], d, from, to);
+        break;
+      case MANTISSA:
+        {
+          var ra = registers[a / 3];
+          for (var i = from; i < to; i++) {
+            d[i] = Allele.getMantissa(ra[i]);
+          }
+          break;
+        }
+      case MAX:
+        TileKernels.max(registers[a / 3], registers[b / 3], d, from, to);
+        break;
+      case MIN:
+        TileKernels.min(registers[a / 3], registers[b / 3], d, from, to);
+        break;
+      case ATAN2:
+        {
+          var ra = registers[a / 3];
+          var rb = registers[b / 3];
+          if (fastMath) {
+            TileKernels.fastAtan2(ra, rb, d, from, to);
+          } else {
+            for (var i = from; i < to; i++) {
+              d[i] = Math.atan2(ra[i], rb[i]);
+            }
+          }
+          break;
+        }
+      case DIV:
+        TileKernels.divide(registers[a / 3], registers[b / 3], d, from, to);
+        break;
+      case MUL:
+        TileKernels.multiply(registers[a / 3], registers[b / 3], d, from, to);
+        break;
+      case ADD:
+        TileKernels.add(registers[a / 3], registers[b / 3], d, from, to);
+        break;
+      case SUB:
+        TileKernels.subtract(registers[a / 3], registers[b / 3], d, from, to);
+        break;
+      case DISSOLVE:
+        TileKernels.dissolve(registers[a / 3], registers[b / 3], registers[c / 3], d, from, to);
+        break;
+      case COLOR_PERLIN:
+        {
+          var ra = registers[a / 3];
+          var rb = registers[b / 3];
+          var rc = registers[c / 3];
+          for (var i = from; i < to; i++) {
+            d[i] = simplexNoise.eval(ra[i], rb[i], rc[i]);
+          }
+          break;
+        }
+
+      case GREY_PERLIN:
+        {
+          var ra = registers[a / 3];
+          for (var i = 0; i < n; i++) {
+            var noise = simplexNoise.eval(ra[i], ra[n + i], ra[2 * n + i]);
+            d[i] = noise;
+            d[n + i] = noise;
+            d[2 * n + i] = noise;
+          }
+          break;
+        }
+      case GREY_PERLIN_4D:
+        {
+          var ra = registers[a / 3];
+          var rb = registers[b / 3];
+          for (var i = 0; i < n; i++) {
+            var noise = simplexNoise.eval(ra[i], ra[n + i], ra[2 * n + i], rb[i]);
+            d[i] = noise;
+            d[n + i] = noise;
+            d[2 * n + i] = noise;
+          }
+          break;
+        }
+      case RGB_TO_YCRCB:
+        {
+          var ra = registers[a / 3];
+          if ((channels & RED_BIT) != 0) {
+            for (var i = 0; i < n; i++) {
+              d[i] = .299 * ra[i] + .587 * ra[n + i] + .114 * ra[2 * n + i];
+            }
+          }
+          if ((channels & GREEN_BIT) != 0) {
+            for (var i = 0; i < n; i++) {
+              d[n + i] =
+                  .701 / 1.402 * ra[i] - .587 / 1.402 * ra[n + i] - .114 / 1.402 * ra[2 * n + i];
+            }
+          }
+          if ((channels & BLUE_BIT) != 0) {
+            for (var i = 0; i < n; i++) {
+              d[2 * n + i] =
+                  -.299 / 1.772 * ra[i] - .587 / 1.772 * ra[n + i] + .886 / 1.772 * ra[2 * n + i];
+            }
+          }
+          break;
+        }
+      case YCRCB_TO_RGB:
+        {
+          var ra = registers[a / 3];
+          if ((channels & RED_BIT) != 0) {
+            for (var i = 0; i < n; i++) {
+              d[i] = ra[i] + 1.402 * ra[n + i];
+            }
+          }
+          if ((channels & GREEN_BIT) != 0) {
+            for (var i = 0; i < n; i++) {
+              d[n + i] =
+                  ra[i] - .299 * 1.402 / .587 * ra[n + i] - .114 * 1.772 / .587 * ra[2 * n + i];
+            }
+          }
+          if ((channels & BLUE_BIT) != 0) {
+            for (var i = 0; i < n; i++) {
+              d[2 * n + i] = ra[i] + 1.772 * ra[2 * n + i];
+            }
+          }
+          break;
+        }
+      case RED_CHANNEL:
+        broadcast(registers[a / 3], 0, d, n, channels);
+        break;
+      case GREEN_CHANNEL:
+        broadcast(registers[a / 3], n, d, n, channels);
+        break;
+      case BLUE_CHANNEL:
+        broadcast(registers[a / 3], 2 * n, d, n, channels);
+        break;
+      case COLOR_MIX:
+        if ((channels & RED_BIT) != 0) {
+          System.arraycopy(registers[a / 3], 0, d, 0, n);
+        }
+        if ((channels & GREEN_BIT) != 0) {
+          System.arraycopy(registers[b / 3], n, d, n, n);
+        }
+        if ((channels & BLUE_BIT) != 0) {
+          System.arraycopy(registers[c / 3], 2 * n, d, 2 * n, n);
+        }
+        break;
+      case EXTERNAL_IMAGE:
+        {
+          var image = images[c];
+          var ra = registers[a / 3];
+          var rb = registers[b / 3];
+          if ((channels & RED_BIT) != 0) {
+            for (var i = 0; i < n; i++) {
+              d[i] = red(ExternalImageAlleles.fetchRgb(image, ra[i], rb[i]));
+            }
+          }
+          if ((channels & GREEN_BIT) != 0) {
+            for (var i = n; i < 2 * n; i++) {
+              d[i] = green(ExternalImageAlleles.fetchRgb(image, ra[i], rb[i]));
+            }
+          }
+          if ((channels & BLUE_BIT) != 0) {
+            for (var i = 2 * n; i < 3 * n; i++) {
+              d[i] = blue(ExternalImageAlleles.fetchRgb(image, ra[i], rb[i]));
+            }
+          }
+          break;
+        }
+
+      case COORDINATES:
+        if ((channels & RED_BIT) != 0) {
+          coordinates(a, xs, ys, d, 0, n);
+        }
+        if ((channels & GREEN_BIT) != 0) {
+          coordinates(b, xs, ys, d, n, n);
+        }
+        if ((channels & BLUE_BIT) != 0) {
+          coordinates(c, xs, ys, d, 2 * n, n);
+        }
+        break;
+      case CONSTANT:
+        if ((channels & RED_BIT) != 0) {
+          Arrays.fill(d, 0, n, constants[a]);
+        }
+        if ((channels & GREEN_BIT) != 0) {
+          Arrays.fill(d, n, 2 * n, constants[a + 1]);
+        }
+        if ((channels & BLUE_BIT) != 0) {
+          Arrays.fill(d, 2 * n, 3 * n, constants[a + 2]);
+        }
+        break;
+      case CALL:
+        for (var i = 0; i < n; i++) {
+          var color = fallbacks[a].render(xs[i], ys[i]);
+          d[i] = color.r;
+          d[n + i] = color.g;
+          d[2 * n + i] = color.b;
+        }
+        break;
+
+      default:
+        throw new IllegalStateException("unknown opcode: " + code[pc]);
+    }
+  }
+
+  /** Copies one channel of a planar register into the given channels of another. */
+  private static void broadcast(double[] source, int offset, double[] dest, int n, int channels) {
+    for (var channel = 0; channel < 3; channel++) {
+      if ((channels & (1 << channel)) != 0) {
+        System.arraycopy(source, offset, dest, channel * n, n);
+      }
+    }
+  }
+
+  /** Fills one channel of a planar register from x, y, or zero, for a coordinate leaf. */
+  private static void coordinates(
+      int source, double[] xs, double[] ys, double[] dest, int offset, int n) {
+    if (source == FROM_X) {
+      System.arraycopy(xs, 0, dest, offset, n);
+    } else if (source == FROM_Y) {
+      System.arraycopy(ys, 0, dest, offset, n);
+    } else {
+      Arrays.fill(dest, offset, offset + n, 0.0);
+    }
+  }
+
+  /** Maps an allele's name to its opcode, or -1 if it's not something we can evaluate directly. */
+  static int opcode(String name) {
+    switch (name) {
+      case "sine":
+        return SIN;
+      case "cosine":
+        return COS;
+      case "arctan":
+        return ATAN;
+      case "tanh":
+        return TANH;
+      case "exp":
+        return EXP;
+      case "log":
+        return LOG;
+      case "negate":
+        return NEGATE;
+      case "abs":
+        return ABS;
+      case "sign":
+        return SIGN;
+      case "clamp-negative":
+        return CLAMP_NEGATIVE;
+      case "clamp-positive":
+        return CLAMP_POSITIVE;
+      case "floor":
+        return FLOOR;
+      case "ceiling":
+        return CEILING;
+      case "wrap":
+        return WRAP;
+      case "clip":
+        return CLIP;
+      case "mantissa":
+        return MANTISSA;
+      case "max":
+        return MAX;
+      case "min":
+        return MIN;
+      case "arctan2":
+        return ATAN2;
+      case "div":
+        return DIV;
+      case "mul":
+      case "inner-product": // a piecewise multiply, just written with RgbColor
+        return MUL;
+      case "add":
+        return ADD;
+      case "sub":
+        return SUB;
+      case "dissolve":
+        return DISSOLVE;
+      case "color-perlin":
+        return COLOR_PERLIN;
+      case "grey-perlin":
+        return GREY_PERLIN;
+      case "grey-perlin-4d":
+        return GREY_PERLIN_4D;
+      case "rgb-to-ycrcb":
+        return RGB_TO_YCRCB;
+      case "ycrcb-to-rgb":
+        return YCRCB_TO_RGB;
+      case "red-channel":
+        return RED_CHANNEL;
+      case "green-channel":
+        return GREEN_CHANNEL;
+      case "blue-channel":
+        return BLUE_CHANNEL;
+      case "color-mix":
+        return COLOR_MIX;
+      case "x":
+      case "y":
+      case "0xy":
+      case "0yx":
+      case "x0y":
+      case "y0x":
+      case "xy0":
+      case "yx0":
+        return COORDINATES;
+      case "black":
+      case "white":
+      case "red":
+      case "green":
+      case "blue":
+      case "t": // always zero, unless an animation replaces it; see Animation
+      case "constant-color":
+      case "constant-number":
+        return CONSTANT;
+      default:
+        return -1;
+    }
+  }
+
+  /** Converts the name of a coordinate leaf, like "0xy", to its per-channel sources. */
+  private static int source(char c) {
+    return c == 'x' ? FROM_X : c == 'y' ? FROM_Y : ZERO;
+  }
+
+  /** All the state for flattening one tree. Not reusable. */
+  private static final class Assembler {
+    private int[] code = new int[16 * WIDTH];
+    private int length = 0;
+    private double[] constants = new double[12];
+    private int numConstants = 0;
+    private final ArrayList<BufferedImage> images = new ArrayList<>();
+    private final ArrayList<ImageFunction> fallbacks = new ArrayList<>();
+
+    // Both the program and the tile program refer to the same images and fallbacks, by index.
+    private final IdentityHashMap<Object, Integer> references = new IdentityHashMap<>();
+
+    // Engineering note: crossbreeding copies subtrees around, so the same subtree often shows up
+    // more than once in a tree. Rather than evaluating every copy, we "hash-cons" the tree into a
+    // DAG as we walk it: every node gets a value number, and structurally identical nodes (the
+    // same operation on the same value numbers) get the same one. Each value number then becomes
+    // exactly one instruction, no matter how many parents use it. This is the classic "value
+    // numbering" trick from compilers, and it's also how common subexpression elimination works.
+    private final HashMap<Node, Integer> valueNumbers = new HashMap<>();
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    private int treeSize = 0;
+
+    // As with GeneTreeCompiler, registers are released as soon as their last user has consumed
+    // them, so the number of registers tracks the depth of the tree rather than its size.
+    private final ArrayDeque<Integer> freeRegisters = new ArrayDeque<>();
+    private int numRegisters = 0;
+
+    /** One node in our walk over the tree. */
+    private static final class Frame {
+      final GeneTree tree;
+      final List<GeneTree> children;
+      int next = 0;
+
+      Frame(GeneTree tree, boolean visitChildren) {
+        this.tree = tree;
+        this.children = visitChildren ? tree.getChildren().toList() : List.empty();
+      }
+    }
+
+    /**
+     * One node of the DAG: an opcode and its operands, which are the value numbers of its children
+     * (or coordinate sources, for {@link #COORDINATES}). Constants carry their value, and external
+     * images and fallbacks carry the image or the subtree, compared by identity. Every node also
+     * knows its shape, the set of coordinates it depends on, which follows from the rest, so it
+     * doesn't take part in equality.
+     */
+    private static final class Node {
+      final int op;
+      final int[] operands;
+      final double[] value;
+      final Object ref;
+      final int shape;
+
+      Node(int op, int[] operands, double[] value, Object ref, int shape) {
+        this.op = op;
+        this.operands = operands;
+        this.value = value;
+        this.ref = ref;
+        this.shape = shape;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (!(o instanceof Node)) {
+          return false;
+        }
+        var other = (Node) o;
+        // Arrays.equals() on doubles compares bits, so -0.0 and 0.0 are different constants.
+        return op == other.op
+            && ref == other.ref
+            && Arrays.equals(operands, other.operands)
+            && Arrays.equals(value, other.value);
+      }
+
+      @Override
+      public int hashCode() {
+        return ((op * 31 + Arrays.hashCode(operands)) * 31 + Arrays.hashCode(value)) * 31
+            + System.identityHashCode(ref);
+      }
+    }
+
+    private GeneProgram assemble(Seq<GeneTree> trees) {
+      // Engineering note: we're doing a post-order traversal of the tree with an explicit stack
+      // rather than with recursion. That's the whole point: no matter how deep the tree, we'll
+      // never overflow the Java stack, either here or when the program runs. The "values" stack
+      // holds the value numbers of the children we've finished, waiting for their parent.
+      var frames = new ArrayDeque<Frame>();
+      var values = new ArrayDeque<Integer>();
+      var results = new int[trees.length()];
+      var resultNum = 0;
+
+      // All the trees go into the same DAG, so they share whatever subtrees they have in common.
+      for (var tree : trees) {
+        frames.push(new Frame(tree, isLowerable(tree.getGene())));
+
+        while (!frames.isEmpty()) {
+          var frame = frames.peek();
+          if (frame.next < frame.children.length()) {
+            var child = frame.children.get(frame.next++);
+            frames.push(new Frame(child, isLowerable(child.getGene())));
+          } else {
+            frames.pop();
+            treeSize++;
+            values.push(number(node(frame, values)));
+          }
+        }
+
+        results[resultNum++] = values.pop();
+      }
+
+      var registers = emitAll(nodes, results);
+      var program = Arrays.copyOf(code, length);
+      var programRegisters = numRegisters;
+
+      // Now again, for the tile program, with fresh registers.
+      var tileNodes = new ArrayList<Node>();
+      var tileResults = widenAll(tileNodes, results);
+      length = 0;
+      numRegisters = 0;
+      freeRegisters.clear();
+      var tileRegisters = emitAll(tileNodes, tileResults);
+      var tileShapes = new int[tileNodes.size()];
+      for (var i = 0; i < tileShapes.length; i++) {
+        tileShapes[i] = tileNodes.get(i).shape;
+      }
+
+      var hoisted = 0;
+      for (var node : nodes) {
+        if (node.shape != XY) {
+          hoisted++;
+        }
+      }
+
+      return new GeneProgram(
+          program,
+          demands(nodes, results),
+          Arrays.copyOf(constants, numConstants),
+          images.toArray(new BufferedImage[0]),
+          fallbacks.toArray(new ImageFunction[0]),
+          programRegisters,
+          offsets(results, registers),
+          treeSize,
+          Arrays.copyOf(code, length),
+          tileShapes,
+          demands(tileNodes, tileResults),
+          numRegisters,
+          offsets(tileResults, tileRegisters),
+          hoisted);
+    }
+
+    // Engineering note: several alleles only read some of the channels of their children.
+    // red-channel reads only red, color-mix reads red from its first child, green from its second,
+    // and blue from its third, and ycrcb-to-rgb makes red and blue from two channels each. Every
+    // channel the parent doesn't read is wasted work in the child, and in the child's children,
+    // and so on down. So we work out, from the top of the DAG down, which channels of each node
+    // anybody actually reads (its "demand"), and the interpreter only computes those. A node that
+    // nobody reads at all, like the second child of color-mix under red-channel, doesn't run. The
+    // piecewise operators compute the contiguous span of channels from the first demanded one to
+    // the last, which is all three only for the rare demand of red and blue without green.
+
+    /**
+     * Works out which channels of each node's value anybody reads, as a bitset of {@link #RED_BIT},
+     * {@link #GREEN_BIT}, and {@link #BLUE_BIT}. The results need all of theirs.
+     */
+    private static int[] demands(ArrayList<Node> nodes, int[] results) {
+      var demands = new int[nodes.size()];
+      for (var result : results) {
+        demands[result] = ALL_CHANNELS;
+      }
+
+      // Parents always come after their children, so going backward, we see every reader of a
+      // node before the node itself.
+      for (var i = nodes.size() - 1; i >= 0; i--) {
+        var node = nodes.get(i);
+        var demand = demands[i];
+        var kids = node.operands;
+        if (demand == 0) {
+          continue;
+        }
+        switch (node.op) {
+          case COORDINATES:
+          case CONSTANT:
+          case CALL:
+            break; // no children, or at least none of ours
+          case GREY_PERLIN:
+          case RGB_TO_YCRCB:
+            demands[kids[0]] = ALL_CHANNELS; // every output channel reads every input channel
+            break;
+          case GREY_PERLIN_4D:
+            demands[kids[0]] = ALL_CHANNELS;
+            demands[kids[1]] |= RED_BIT; // the fourth coordinate
+            break;
+          case YCRCB_TO_RGB:
+            {
+              // red is y and cr, green is all three, and blue is y and cb
+              var need = 0;
+              if ((demand & RED_BIT) != 0) {
+                need |= RED_BIT | GREEN_BIT;
+              }
+              if ((demand & GREEN_BIT) != 0) {
+                need |= ALL_CHANNELS;
+              }
+              if ((demand & BLUE_BIT) != 0) {
+                need |= RED_BIT | BLUE_BIT;
+              }
+              demands[kids[0]] |= need;
+              break;
+            }
+          case RED_CHANNEL:
+            demands[kids[0]] |= RED_BIT;
+            break;
+          case GREEN_CHANNEL:
+            demands[kids[0]] |= GREEN_BIT;
+            break;
+          case BLUE_CHANNEL:
+            demands[kids[0]] |= BLUE_BIT;
+            break;
+          case COLOR_MIX:
+            demands[kids[0]] |= demand & RED_BIT;
+            demands[kids[1]] |= demand & GREEN_BIT;
+            demands[kids[2]] |= demand & BLUE_BIT;
+            break;
+          default:
+            // piecewise operators, external images, and widening all read channel for channel
+            for (var kid : kids) {
+              demands[kid] |= demand;
+            }
+            break;
+        }
+      }
+      return demands;
+    }
+
+    /** Returns the offsets into the register array of the given results. */
+    private static int[] offsets(int[] results, int[] registers) {
+      var offsets = new int[results.length];
+      for (var i = 0; i < results.length; i++) {
+        offsets[i] = 3 * registers[results[i]];
+      }
+      return offsets;
+    }
+
+    /** Returns the value number for the given node, giving it a new one if it's new. */
+    private int number(Node node) {
+      var existing = valueNumbers.get(node);
+      if (existing != null) {
+        return existing;
+      }
+      var valueNumber = nodes.size();
+      nodes.add(node);
+      valueNumbers.put(node, valueNumber);
+      return valueNumber;
+    }
+
+    /** Builds the DAG node for a finished frame, given the value numbers of its children. */
+    private Node node(Frame frame, ArrayDeque<Integer> values) {
+      var gene = frame.tree.getGene();
+      var kids = new int[frame.children.length()];
+      for (var i = kids.length - 1; i >= 0; i--) {
+        kids[i] = values.pop();
+      }
+
+      if (!isLowerable(gene)) {
+        // we can't see inside a fallback, so we have to assume it uses both coordinates
+        return new Node(CALL, kids, null, frame.tree, XY);
+      }
+
+      var image = ExternalImageAlleles.imageOf(gene);
+      if (image.isDefined()) {
+        return new Node(EXTERNAL_IMAGE, kids, null, image.get(), shapeOf(kids));
+      }
+
+      var name = gene.getName();
+      var op = opcode(name);
+      switch (op) {
+        case COORDINATES:
+          // the only one-letter names are "x" and "y", which go to all three channels
+          var pattern = name.length() == 1 ? name + name + name : name;
+          var sources =
+              new int[] {
+                source(pattern.charAt(0)), source(pattern.charAt(1)), source(pattern.charAt(2))
+              };
+          return new Node(COORDINATES, sources, null, null, sources[0] | sources[1] | sources[2]);
+
+        case CONSTANT:
+          var color = gene.assemble().render(0, 0);
+          return new Node(
+              CONSTANT, kids, new double[] {color.r, color.g, color.b}, null, INVARIANT);
+
+        default:
+          return new Node(op, kids, null, null, shapeOf(kids));
+      }
+    }
+
+    /** A node depends on whatever coordinates its children depend on. */
+    private int shapeOf(int[] kids) {
+      var shape = INVARIANT;
+      for (var kid : kids) {
+        shape |= nodes.get(kid).shape;
+      }
+      return shape;
+    }
+
+    /**
+     * Copies the DAG into <code>tileNodes</code>, for the tile program, inserting a {@link #WIDEN}
+     * node wherever a node uses a child of a narrower shape, and one more for each result that
+     * isn't already {@link #XY}, since the caller wants a color for every pixel. Returns the
+     * indices of the results in <code>tileNodes</code>.
+     */
+    private int[] widenAll(ArrayList<Node> tileNodes, int[] results) {
+      var moved = new int[nodes.size()];
+      var widened = new HashMap<Long, Integer>(); // (index << 2 | shape) -> index of widened copy
+
+      for (var i = 0; i < nodes.size(); i++) {
+        var node = nodes.get(i);
+        var kids = node.operands;
+        if (node.op != COORDINATES) {
+          kids = new int[kids.length];
+          for (var k = 0; k < kids.length; k++) {
+            kids[k] = widen(tileNodes, widened, moved[node.operands[k]], node.shape);
+          }
+        }
+        moved[i] = tileNodes.size();
+        tileNodes.add(new Node(node.op, kids, node.value, node.ref, node.shape));
+      }
+
+      var tileResults = new int[results.length];
+      for (var i = 0; i < results.length; i++) {
+        tileResults[i] = widen(tileNodes, widened, moved[results[i]], XY);
+      }
+      return tileResults;
+    }
+
+    /** Returns the index of a copy of <code>tileNodes[index]</code> widened to the given shape. */
+    private static int widen(
+        ArrayList<Node> tileNodes, HashMap<Long, Integer> widened, int index, int shape) {
+      if (tileNodes.get(index).shape == shape) {
+        return index;
+      }
+      return widened.computeIfAbsent(
+          ((long) index << 2) | shape,
+          key -> {
+            tileNodes.add(new Node(WIDEN, new int[] {index}, null, null, shape));
+            return tileNodes.size() - 1;
+          });
+    }
+
+    private int allocate() {
+      return freeRegisters.isEmpty() ? numRegisters++ : freeRegisters.pop();
+    }
+
+    /**
+     * Emits one instruction for every node of the DAG, in the order we numbered them, which puts
+     * every node after its children. Returns the register holding each value number's result. The
+     * given results keep their registers to the end.
+     */
+    private int[] emitAll(ArrayList<Node> nodes, int[] results) {
+      var uses = new int[nodes.size()];
+      for (var node : nodes) {
+        if (node.op != COORDINATES) {
+          for (var kid : node.operands) {
+            uses[kid]++;
+          }
+        }
+      }
+      for (var result : results) {
+        uses[result]++; // and never released, since the caller wants to read it afterward
+      }
+
+      var registers = new int[nodes.size()];
+      for (var i = 0; i < nodes.size(); i++) {
+        var node = nodes.get(i);
+
+        // The output gets a fresh register before we release any of the children's registers, so
+        // an operator that mixes channels never overwrites an input it still needs.
+        var out = allocate();
+        registers[i] = out;
+        if (node.op != COORDINATES) {
+          for (var kid : node.operands) {
+            if (--uses[kid] == 0) {
+              freeRegisters.push(registers[kid]);
+            }
+          }
+        }
+
+        emit(nodes, node, out, registers);
+      }
+      return registers;
+    }
+
+    /** Emits the instruction for one node of the DAG. */
+    private void emit(ArrayList<Node> nodes, Node node, int out, int[] registers) {
+      var kids = node.operands;
+      switch (node.op) {
+        case CALL:
+          instruction(
+              CALL,
+              out,
+              reference(node.ref, fallbacks, () -> ((GeneTree) node.ref).toImageFunction()),
+              0,
+              0);
+          return;
+
+        case EXTERNAL_IMAGE:
+          instruction(
+              EXTERNAL_IMAGE,
+              out,
+              3 * registers[kids[0]],
+              3 * registers[kids[1]],
+              reference(node.ref, images, () -> (BufferedImage) node.ref));
+          return;
+
+        case WIDEN:
+          instruction(WIDEN, out, 3 * registers[kids[0]], nodes.get(kids[0]).shape, node.shape);
+          return;
+
+        case COORDINATES:
+          instruction(COORDINATES, out, kids[0], kids[1], kids[2]);
+          return;
+
+        case CONSTANT:
+          instruction(CONSTANT, out, constant(node.value[0], node.value[1], node.value[2]), 0, 0);
+          return;
+
+        default:
+          instruction(
+              node.op,
+              out,
+              kids.length > 0 ? 3 * registers[kids[0]] : 0,
+              kids.length > 1 ? 3 * registers[kids[1]] : 0,
+              kids.length > 2 ? 3 * registers[kids[2]] : 0);
+      }
+    }
+
+    /** Returns the index of the image or fallback for <code>ref</code>, adding it if it's new. */
+    private <T> int reference(Object ref, ArrayList<T> list, Supplier<T> value) {
+      return references.computeIfAbsent(
+          ref,
+          key -> {
+            list.add(value.get());
+            return list.size() - 1;
+          });
+    }
+
+    private void instruction(int op, int out, int a, int b, int c) {
+      if (length + WIDTH > code.length) {
+        code = Arrays.copyOf(code, code.length * 2);
+      }
+      code[length] = op;
+      code[length + 1] = 3 * out;
+      code[length + 2] = a;
+      code[length + 3] = b;
+      code[length + 4] = c;
+      length += WIDTH;
+    }
+
+    private int constant(double r, double g, double b) {
+      if (numConstants + 3 > constants.length) {
+        constants = Arrays.copyOf(constants, constants.length * 2);
+      }
+      var offset = numConstants;
+      constants[numConstants++] = r;
+      constants[numConstants++] = g;
+      constants[numConstants++] = b;
+      return offset;
+    }
+  }
+
+  /**
+   * We evaluate the intrinsic alleles by name, so we're careful to only accept the actual instances
+   * from {@link Allele#INTRINSIC_ALLELE_MAP} (and constants, which are made fresh each time), along
+   * with our own external images. Anything else gets the fallback treatment.
+   */
+  static boolean isLowerable(Allele gene) {
+    var name = gene.getName();
+    return name.equals("constant-color")
+        || name.equals("constant-number")
+        || ExternalImageAlleles.imageOf(gene).isDefined()
+        || (opcode(name) >= 0
+            && INTRINSIC_ALLELE_MAP.get(name).exists(intrinsic -> intrinsic == gene));
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.prettypictures.GeneTree.geneLeaf;
+import static edu.rice.prettypictures.GeneTree.geneTree;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.vavr.collection.List;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class GeneProgramTest {
+  private static final int NUM_TREES = 200;
+
+  /** Counts the pixels where two images of the same size differ. */
+  private static int differences(BufferedImage a, BufferedImage b) {
+    var count = 0;
+    for (var y = 0; y < a.getHeight(); y++) {
+      for (var x = 0; x < a.getWidth(); x++) {
+        if (a.getRGB(x, y) != b.getRGB(x, y)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Counts the pixels of a tile, rendered as planar channels into <code>out</code>, whose doubles
+   * aren't bit for bit the ones the tree's own ImageFunction renders one pixel at a time.
+   */
+  private static int differences(
+      ImageFunction reference,
+      double[] columns,
+      int width,
+      double[] rows,
+      int height,
+      double[] out) {
+    var n = width * height;
+    var count = 0;
+    for (var y = 0; y < height; y++) {
+      for (var x = 0; x < width; x++) {
+        var i = y * width + x;
+        var color = reference.render(columns[x], rows[y]);
+        if (Double.doubleToLongBits(color.r) != Double.doubleToLongBits(out[i])
+            || Double.doubleToLongBits(color.g) != Double.doubleToLongBits(out[n + i])
+            || Double.doubleToLongBits(color.b) != Double.doubleToLongBits(out[2 * n + i])) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /** A tile of coordinates somewhere around the image, at a random spacing. */
+  private static double[] coordinates(Random random, int count, double step) {
+    var start = 2.0 * random.nextDouble() - 1.0;
+    var result = new double[count];
+    for (var i = 0; i < count; i++) {
+      result[i] = start + step * i;
+    }
+    return result;
+  }
+
+  @Test
+  public void testRenderMatchesTree() {
+    var random = new Random(2);
+    for (var t = 0; t < NUM_TREES; t++) {
+      var tree = RandomGeneTree.randomTreeOption(1 + t % 8, random).get();
+      var reference = tree.toImageFunction();
+      var program = GeneProgram.of(tree);
+      var registers = program.newRegisters();
+      var mismatches = 0;
+      for (var i = 0; i < 50; i++) {
+        var x = 2.0 * random.nextDouble() - 1.0;
+        var y = 2.0 * random.nextDouble() - 1.0;
+        var expected = reference.render(x, y);
+        var actual = program.render(x, y, registers);
+        if (Double.doubleToLongBits(expected.r) != Double.doubleToLongBits(actual.r)
+            || Double.doubleToLongBits(expected.g) != Double.doubleToLongBits(actual.g)
+            || Double.doubleToLongBits(expected.b) != Double.doubleToLongBits(actual.b)) {
+          mismatches++;
+        }
+      }
+      assertEquals(0, mismatches, "tree " + t);
+    }
+  }
+
+  @Test
+  public void testBatchAndTileMatchTree() {
+    var random = new Random(3);
+    for (var t = 0; t < NUM_TREES; t++) {
+      var tree = RandomGeneTree.randomTreeOption(1 + t % 8, random).get();
+      var reference = tree.toImageFunction();
+      var program = GeneProgram.of(tree);
+
+      var width = 1 + random.nextInt(ImageFunction.TILE_SIZE);
+      var height = 1 + random.nextInt(ImageFunction.TILE_SIZE);
+      var step = 0.1 * random.nextDouble();
+      var columns = coordinates(random, width, step);
+      var rows = coordinates(random, height, -step);
+
+      var xs = new double[width * height];
+      var ys = new double[width * height];
+      for (var y = 0; y < height; y++) {
+        for (var x = 0; x < width; x++) {
+          xs[y * width + x] = columns[x];
+          ys[y * width + x] = rows[y];
+        }
+      }
+      var batch = new double[3 * width * height];
+      program.renderBatch(xs, ys, width * height, batch);
+      assertEquals(0, differences(reference, columns, width, rows, height, batch), "batch " + t);
+
+      var tile = new double[3 * width * height];
+      program.renderTile(columns, width, rows, height, tile);
+      assertEquals(0, differences(reference, columns, width, rows, height, tile), "tile " + t);
+    }
+  }
+
+  @Test
+  public void testImagesMatchTree() {
+    var random = new Random(4);
+    for (var t = 0; t < NUM_TREES / 10; t++) {
+      var tree = RandomGeneTree.randomTreeOption(1 + t % 8, random).get();
+      var expected = tree.toImageFunction().toImage(70, 50);
+      assertEquals(
+          0, differences(expected, GeneProgram.of(tree).toImageFunction().toImage(70, 50)));
+      assertEquals(0, differences(expected, tree.toCompiledImageFunction().toImage(70, 50)));
+    }
+  }
+
+  @Test
+  public void testGenerationMatchesTrees() {
+    var random = new Random(5);
+    var trees =
+        List.range(0, 12).map(i -> RandomGeneTree.randomTreeOption(2 + i % 6, random).get());
+    var images = GeneProgram.of(trees).toImages(90, 60);
+    for (var i = 0; i < trees.length(); i++) {
+      var expected = trees.get(i).toImageFunction().toImage(90, 60);
+      assertEquals(0, differences(expected, images.get(i)), "image " + i);
+    }
+  }
+
+  /**
+   * A random tree, dressed up in one of a few ways that saturate or make one side of a max or min
+   * win over much of the image, so that a good many tiles are flat or pruned.
+   */
+  private static GeneTree saturatingTree(Random random, int t) {
+    var base = RandomGeneTree.randomTreeOption(1 + t % 6, random);
+    var x = geneLeaf("x");
+    var y = geneLeaf("y");
+    switch (t % 4) {
+      case 0:
+        return geneTree("clip", geneTree("mul", base, geneTree("exp", geneTree("mul", x, x))))
+            .get();
+      case 1:
+        return geneTree("sign", geneTree("add", geneTree("floor", y), geneTree("clip", base)))
+            .get();
+      case 2:
+        return geneTree(
+                "max",
+                geneTree("clip", base),
+                geneTree("add", geneLeaf("white"), geneTree("abs", geneTree("sine", x))))
+            .get();
+      default:
+        return geneTree("min", geneTree("clamp-negative", x), base).get();
+    }
+  }
+
+  @Test
+  public void testFlatAndPrunedTilesMatchBatches() {
+    // Batches don't go through the range analysis, so every tile that it fills in with a
+    // constant, or where it skips an instruction, has to come out exactly as the batch does.
+    var random = new Random(13);
+    var flatTiles = 0;
+    for (var t = 0; t < NUM_TREES; t++) {
+      var tree = saturatingTree(random, t);
+      var program = GeneProgram.of(tree);
+      for (var precision : Precision.values()) {
+        var function = program.toImageFunction(precision);
+
+        var width = 1 + random.nextInt(ImageFunction.TILE_SIZE);
+        var height = 1 + random.nextInt(ImageFunction.TILE_SIZE);
+        var step = 0.05 * random.nextDouble();
+        var columns = coordinates(random, width, step);
+        var rows = coordinates(random, height, -step);
+        var n = width * height;
+
+        var xs = new double[n];
+        var ys = new double[n];
+        for (var y = 0; y < height; y++) {
+          for (var x = 0; x < width; x++) {
+            xs[y * width + x] = columns[x];
+            ys[y * width + x] = rows[y];
+          }
+        }
+        var batch = new double[3 * n];
+        function.renderBatch(xs, ys, n, batch);
+
+        var tile = new double[3 * n];
+        function.renderTile(columns, width, rows, height, tile);
+        var mismatches = 0;
+        for (var i = 0; i < 3 * n; i++) {
+          if (Double.doubleToLongBits(batch[i]) != Double.doubleToLongBits(tile[i])) {
+            mismatches++;
+          }
+        }
+        assertEquals(0, mismatches, precision + " tile " + t);
+
+        var flat = function.renderTileUnlessFlat(columns, width, rows, height, tile);
+        if (flat.isDefined()) {
+          flatTiles++;
+          for (var i = 0; i < n; i++) {
+            var rgb = RgbColor.toRgb(batch[i], batch[n + i], batch[2 * n + i]);
+            assertEquals((int) flat.get(), rgb, precision + " flat tile " + t);
+          }
+        }
+      }
+
+      var expected = tree.toImageFunction().toImage(70, 50);
+      assertEquals(0, differences(expected, program.toImageFunction().toImage(70, 50)));
+    }
+    assertTrue(flatTiles > 0, "no flat tiles to check");
+  }
+}
@@ -93,6 +93,10 @@ public class GeneTree {
   private final Allele gene;
   private final Seq<GeneTree> children;
   private final Supplier<ImageFunction> imageFunctionMemo; // lazy: we only compute it once
+  private final Supplier<ImageFunction> compiledImageFunctionMemo; // likewise
+  private final Supplier<GeneProgram> programMemo; // likewise
+  private final Supplier<GeneTreeOptimizer.Optimized> optimizedMemo; // likewise
+  private final Supplier<ImageFunction> fastMathMemo; // likewise
 
   private GeneTree(Allele gene, Seq<GeneTree> children) {
     this.gene = gene;
@@ -101,6 +105,10 @@ public class GeneTree {
     // the recursion will terminate when we hit a "leaf" node with no children, and the map will do
     // nothing
     imageFunctionMemo = Lazy.of(() -> gene.assemble(children.map(GeneTree::toImageFunction)));
+    compiledImageFunctionMemo = Lazy.of(() -> GeneTreeCompiler.compile(toOptimizedTree()));
+    programMemo = Lazy.of(() -> GeneProgram.of(this));
+    optimizedMemo = Lazy.of(() -> GeneTreeOptimizer.optimize(this));
+    fastMathMemo = Lazy.of(() -> toOptimizedTree().toProgram().toImageFunction(Precision.FAST));
   }
 
   /** Builder-method to get a zero-argument gene (a "leaf" in a gene tree). */
@@ -211,6 +219,46 @@ public class GeneTree {
     return imageFunctionMemo.get();
   }
 
+  /**
+   * Converts a GeneTree to an ImageFunction by simplifying it (see {@link #toOptimizedTree()}) and
+   * flattening it into a {@link GeneProgram}, which renders whole tiles of pixels, and, the first
+   * time anybody asks for a single pixel, compiling it to bytecode for that (see {@link
+   * GeneTreeCompiler}). Renders the same image as {@link #toImageFunction()}, only faster.
+   */
+  public ImageFunction toCompiledImageFunction() {
+    return compiledImageFunctionMemo.get();
+  }
+
+  /**
+   * Like {@link #toCompiledImageFunction()}, but at the given {@link Precision}. Fast-math images
+   * come close to the double-precision ones but aren't identical, so they're best used for
+   * thumbnails.
+   */
+  public ImageFunction toCompiledImageFunction(Precision precision) {
+    switch (precision) {
+      case FAST:
+        return fastMathMemo.get();
+      default:
+        return compiledImageFunctionMemo.get();
+    }
+  }
+
+  /**
+   * Converts a GeneTree to a flat {@link GeneProgram}, which can render very deep trees without
+   * recursion and without allocating per-node objects.
+   */
+  public GeneProgram toProgram() {
+    return programMemo.get();
+  }
+
+  /**
+   * Returns an equivalent GeneTree with its constant subtrees folded and other simplifications
+   * applied (see {@link GeneTreeOptimizer}). If there was nothing to simplify, returns this tree.
+   */
+  public GeneTree toOptimizedTree() {
+    return optimizedMemo.get().tree;
+  }
+
   /** Returns a JSON representation of this GeneTree. */
   public Value toJson() {
     switch (gene.getName()) {
@@ -0,0 +1,885 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.prettypictures.Allele.INTRINSIC_ALLELE_MAP;
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import edu.rice.util.Log;
+import io.vavr.Lazy;
+import io.vavr.control.Option;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GeneTreeCompiler turns a {@link GeneTree} into a freshly generated class implementing {@link
+ * ImageFunction}. The generated <code>render(x, y)</code> is a single straight-line method body:
+ * every intrinsic {@link Allele} is lowered to a handful of bytecodes (or a static call to the same
+ * helper the closure version uses, like {@link Math#sin(double)} or {@link Allele#wrap(double)}),
+ * and intermediate colors live in local variables rather than in {@link RgbColor} objects. Only the
+ * final result is allocated.
+ *
+ * <p>Any allele we don't know how to lower (notably, external images) isn't a problem. We fall back
+ * to the usual closure path for that subtree, via {@link GeneTree#toImageFunction()}, and the
+ * compiled code calls it like any other function.
+ *
+ * <p>Compilation can decline, returning {@link Option#none()} from {@link
+ * #compileOption(GeneTree)}, when the tree is too large to yield a method that the JIT is willing
+ * to optimize or when there's nothing to compile. {@link #compile(GeneTree)} hides this, running
+ * the tree as a {@link GeneProgram} instead.
+ *
+ * <p>Only pixels rendered one at a time go through the generated code. Every renderer that works on
+ * whole tiles or batches of pixels uses the tree's {@link GeneProgram}, which evaluates a node for
+ * the whole tile at once and can skip flat tiles altogether, so {@link #compile(GeneTree)} waits
+ * until somebody actually asks for a single pixel before it generates anything.
+ */
+public class GeneTreeCompiler {
+  private static final String TAG = "GeneTreeCompiler";
+
+  /**
+   * HotSpot won't JIT-compile any method larger than this (see <code>-XX:+DontCompileHugeMethods
+   * </code>), and a method that's stuck in the bytecode interpreter is much slower than the
+   * closures we're trying to replace. Larger trees stay on the {@link GeneProgram}.
+   */
+  static final int MAX_CODE_BYTES = 8000;
+
+  /**
+   * Trees with more nodes than this can't possibly fit within {@link #MAX_CODE_BYTES}, so {@link
+   * #compile(GeneTree)} doesn't even try.
+   */
+  static final int MAX_COMPILED_NODES = 1000;
+
+  private static final AtomicLong classCounter = new AtomicLong();
+
+  // never instantiate this class
+  private GeneTreeCompiler() {}
+
+  /**
+   * Compiles the given GeneTree to an {@link ImageFunction}. Whole tiles and batches of pixels (see
+   * {@link ImageFunction#renderTile(double[], int, double[], int, double[])}) are rendered by the
+   * tree's {@link GeneProgram}, a node at a time. Only {@link ImageFunction#render(double, double)}
+   * runs compiled bytecode, and the class is generated the first time it's called, so that the
+   * great majority of trees, which are only ever rendered a tile at a time, never pay for it. If
+   * the tree is too big to compile, or can't be compiled for any other reason, single pixels are
+   * rendered by the program, too, which gives the same colors.
+   */
+  public static ImageFunction compile(GeneTree tree) {
+    // The tree's program, which it only builds once, tells us how big the tree is without any
+    // recursion, which matters since our code generator is recursive.
+    var program = tree.toProgram();
+    var programFunction = program.toImageFunction();
+    if (program.size() > MAX_COMPILED_NODES) {
+      return programFunction;
+    }
+    var compiled = Lazy.of(() -> compileOption(tree).getOrElse(programFunction));
+    return new ImageFunction() {
+      @Override
+      public RgbColor render(double x, double y) {
+        return compiled.get().render(x, y);
+      }
+
+      @Override
+      public void renderBatch(double[] xs, double[] ys, int n, double[] out) {
+        programFunction.renderBatch(xs, ys, n, out);
+      }
+
+      @Override
+      public void renderTile(double[] columns, int width, double[] rows, int height, double[] out) {
+        programFunction.renderTile(columns, width, rows, height, out);
+      }
+
+      @Override
+      public Option<Integer> renderTileUnlessFlat(
+          double[] columns, int width, double[] rows, int height, double[] out) {
+        return programFunction.renderTileUnlessFlat(columns, width, rows, height, out);
+      }
+
+      @Override
+      public boolean isContinuousOver(double xlo, double xhi, double ylo, double yhi) {
+        return programFunction.isContinuousOver(xlo, xhi, ylo, yhi);
+      }
+
+      @Override
+      public Option<GeneProgram> program() {
+        return programFunction.program();
+      }
+    };
+  }
+
+  /**
+   * Compiles the given GeneTree to an {@link ImageFunction}, or returns {@link Option#none()} if
+   * the tree is too big to be worth compiling or if its root can't be lowered at all.
+   */
+  public static Option<ImageFunction> compileOption(GeneTree tree) {
+    try {
+      return new Compilation().compile(tree);
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException err) {
+      // any of these represents a bug in the code generator, not bad input
+      Log.e(TAG, "failed to compile " + tree.getGene(), err);
+      return none();
+    }
+  }
+
+  // Engineering note: Java 15 and later have "hidden classes" for exactly this purpose, but
+  // we're on Java 11. The closest we can get is to define each compiled tree in its own
+  // throwaway class loader. When the ImageFunction becomes garbage, so does the loader, and the
+  // class gets unloaded along with it. This matters for a server that breeds new trees forever.
+  // The price is that the generated class lives in a different runtime package, so it can only
+  // touch public members: RgbColor's fields, Allele's static helpers, and so forth.
+
+  private static final class Loader extends ClassLoader {
+    private Loader() {
+      super(GeneTreeCompiler.class.getClassLoader());
+    }
+
+    private Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  private static final String IMAGE_FUNCTION = "edu/rice/prettypictures/ImageFunction";
+  private static final String RGB_COLOR = "edu/rice/prettypictures/RgbColor";
+  private static final String ALLELE = "edu/rice/prettypictures/Allele";
+  private static final String NOISE = "edu/rice/prettypictures/OpenSimplexNoise";
+  private static final String MATH = "java/lang/Math";
+  private static final String FALLBACKS = "fallbacks";
+  private static final String FALLBACKS_DESC = "[L" + IMAGE_FUNCTION + ";";
+  private static final String RENDER_DESC = "(DD)L" + RGB_COLOR + ";";
+
+  // local variable slots in render(x, y); each double takes two slots
+  private static final int SLOT_X = 1;
+  private static final int SLOT_Y = 3;
+  private static final int FIRST_REGISTER_SLOT = 5;
+
+  /** All the state for compiling one tree. Not reusable. */
+  private static final class Compilation {
+    private final ConstantPool pool = new ConstantPool();
+    private final Code code = new Code(pool);
+    private final ArrayList<ImageFunction> fallbacks = new ArrayList<>();
+    private final String internalName =
+        "edu/rice/prettypictures/CompiledGeneTree$" + classCounter.incrementAndGet();
+
+    // Registers hold one color (three doubles, six local-variable slots). We reuse them as soon
+    // as a parent node has consumed its children, so the number of registers tracks the depth of
+    // the tree rather than its size.
+    private final ArrayDeque<Integer> freeRegisters = new ArrayDeque<>();
+    private int numRegisters = 0;
+
+    private Option<ImageFunction> compile(GeneTree tree) throws ReflectiveOperationException {
+      var result = node(tree);
+      if (fallbacks.size() == 1 && !isLowerable(tree.getGene())) {
+        return none(); // the whole tree is a fallback, so there's nothing to gain
+      }
+
+      code.dload(result, 0);
+      code.dload(result, 1);
+      code.dload(result, 2);
+      code.invokeStatic(RGB_COLOR, "color", "(DDD)L" + RGB_COLOR + ";", -5);
+      code.op(Code.ARETURN, -1);
+
+      if (code.length() > MAX_CODE_BYTES) {
+        Log.i(TAG, () -> "tree too big to compile: " + code.length() + " bytes of bytecode");
+        return none();
+      }
+
+      var compiledClass = new Loader().define(internalName.replace('/', '.'), classFile());
+      return some(
+          (ImageFunction)
+              compiledClass
+                  .getConstructor(ImageFunction[].class)
+                  .newInstance((Object) fallbacks.toArray(new ImageFunction[0])));
+    }
+
+    private int allocate() {
+      return freeRegisters.isEmpty() ? numRegisters++ : freeRegisters.pop();
+    }
+
+    private void free(int register) {
+      freeRegisters.push(register);
+    }
+
+    /** Emits code for the given tree, returning the register that holds its result. */
+    private int node(GeneTree tree) {
+      var gene = tree.getGene();
+      if (!isLowerable(gene)) {
+        return fallback(tree);
+      }
+
+      var children = tree.getChildren().toList();
+      var kids = new int[children.length()];
+      for (var i = 0; i < kids.length; i++) {
+        kids[i] = node(children.get(i));
+      }
+
+      // The output gets a fresh register before we release the children's registers, so an
+      // operator that mixes channels (like color-mix) never overwrites an input it still needs.
+      var out = allocate();
+      for (var kid : kids) {
+        free(kid);
+      }
+
+      lower(gene, out, kids);
+      return out;
+    }
+
+    private int fallback(GeneTree tree) {
+      var index = fallbacks.size();
+      fallbacks.add(tree.toImageFunction());
+      var out = allocate();
+
+      code.op(Code.ALOAD_0, 1);
+      code.field(Code.GETFIELD, pool.fieldRef(internalName, FALLBACKS, FALLBACKS_DESC), 0);
+      code.sipush(index);
+      code.op(Code.AALOAD, -1);
+      code.dloadSlot(SLOT_X);
+      code.dloadSlot(SLOT_Y);
+      code.invokeInterface(IMAGE_FUNCTION, "render", RENDER_DESC, 5, -4);
+      for (var channel = 0; channel < 3; channel++) {
+        if (channel < 2) {
+          code.op(Code.DUP, 1);
+        }
+        code.field(
+            Code.GETFIELD, pool.fieldRef(RGB_COLOR, "rgb".substring(channel, channel + 1), "D"), 1);
+        code.dstore(out, channel);
+      }
+      return out;
+    }
+
+    private void lower(Allele gene, int out, int[] kids) {
+      switch (gene.getName()) {
+        case "sine":
+          unaryMath(out, kids[0], "sin");
+          return;
+        case "cosine":
+          unaryMath(out, kids[0], "cos");
+          return;
+        case "arctan":
+          unaryMath(out, kids[0], "atan");
+          return;
+        case "tanh":
+          unaryMath(out, kids[0], "tanh");
+          return;
+        case "exp":
+          unaryMath(out, kids[0], "exp");
+          return;
+        case "log":
+          unaryMath(out, kids[0], "log");
+          return;
+        case "abs":
+          unaryMath(out, kids[0], "abs");
+          return;
+        case "floor":
+          unaryMath(out, kids[0], "floor");
+          return;
+        case "ceiling":
+          unaryMath(out, kids[0], "ceil");
+          return;
+        case "negate":
+          unary(out, kids[0], () -> code.op(Code.DNEG, 0));
+          return;
+        case "sign":
+          unaryAllele(out, kids[0], "sign");
+          return;
+        case "clamp-negative":
+          unaryAllele(out, kids[0], "clampNegative");
+          return;
+        case "clamp-positive":
+          unaryAllele(out, kids[0], "clampPositive");
+          return;
+        case "wrap":
+          unaryAllele(out, kids[0], "wrap");
+          return;
+        case "clip":
+          unaryAllele(out, kids[0], "clip");
+          return;
+        case "mantissa":
+          unaryAllele(out, kids[0], "getMantissa");
+          return;
+
+        case "max":
+          binary(out, kids, () -> code.invokeStatic(MATH, "max", "(DD)D", -2));
+          return;
+        case "min":
+          binary(out, kids, () -> code.invokeStatic(MATH, "min", "(DD)D", -2));
+          return;
+        case "arctan2":
+          binary(out, kids, () -> code.invokeStatic(MATH, "atan2", "(DD)D", -2));
+          return;
+        case "div":
+          binary(out, kids, () -> code.invokeStaticInterface(ALLELE, "divide", "(DD)D", -2));
+          return;
+        case "mul":
+        case "inner-product": // inner-product is a piecewise multiply, just written with RgbColor
+          binary(out, kids, () -> code.op(Code.DMUL, -2));
+          return;
+        case "add":
+          binary(out, kids, () -> code.op(Code.DADD, -2));
+          return;
+        case "sub":
+          binary(out, kids, () -> code.op(Code.DSUB, -2));
+          return;
+
+        case "dissolve":
+          ternary(
+              out, kids, () -> code.invokeStaticInterface(ALLELE, "dissolve", "(DDD)D", -4), false);
+          return;
+        case "color-perlin":
+          ternary(out, kids, () -> code.invokeVirtual(NOISE, "eval", "(DDD)D", -5), true);
+          return;
+
+        case "grey-perlin":
+          noiseReceiver();
+          code.dload(kids[0], 0);
+          code.dload(kids[0], 1);
+          code.dload(kids[0], 2);
+          code.invokeVirtual(NOISE, "eval", "(DDD)D", -5);
+          broadcast(out);
+          return;
+        case "grey-perlin-4d":
+          noiseReceiver();
+          code.dload(kids[0], 0);
+          code.dload(kids[0], 1);
+          code.dload(kids[0], 2);
+          code.dload(kids[1], 0);
+          code.invokeVirtual(NOISE, "eval", "(DDDD)D", -7);
+          broadcast(out);
+          return;
+
+        case "rgb-to-ycrcb":
+          linear(out, 0, kids[0], .299, .587, .114);
+          linear(out, 1, kids[0], .701 / 1.402, -.587 / 1.402, -.114 / 1.402);
+          linear(out, 2, kids[0], -.299 / 1.772, -.587 / 1.772, .886 / 1.772);
+          return;
+        case "ycrcb-to-rgb":
+          linear(out, 0, kids[0], 1, 1.402, 0);
+          linear(out, 1, kids[0], 1, -(.299 * 1.402 / .587), -(.114 * 1.772 / .587));
+          linear(out, 2, kids[0], 1, 0, 1.772);
+          return;
+
+        case "red-channel":
+          code.dload(kids[0], 0);
+          broadcast(out);
+          return;
+        case "green-channel":
+          code.dload(kids[0], 1);
+          broadcast(out);
+          return;
+        case "blue-channel":
+          code.dload(kids[0], 2);
+          broadcast(out);
+          return;
+        case "color-mix":
+          code.dload(kids[0], 0);
+          code.dstore(out, 0);
+          code.dload(kids[1], 1);
+          code.dstore(out, 1);
+          code.dload(kids[2], 2);
+          code.dstore(out, 2);
+          return;
+
+        case "x":
+          leaf(out, this::loadX, this::loadX, this::loadX);
+          return;
+        case "y":
+          leaf(out, this::loadY, this::loadY, this::loadY);
+          return;
+        case "0xy":
+          leaf(out, constant(0), this::loadX, this::loadY);
+          return;
+        case "0yx":
+          leaf(out, constant(0), this::loadY, this::loadX);
+          return;
+        case "x0y":
+          leaf(out, this::loadX, constant(0), this::loadY);
+          return;
+        case "y0x":
+          leaf(out, this::loadY, constant(0), this::loadX);
+          return;
+        case "xy0":
+          leaf(out, this::loadX, this::loadY, constant(0));
+          return;
+        case "yx0":
+          leaf(out, this::loadY, this::loadX, constant(0));
+          return;
+        case "t": // always zero in a still; an animation replaces it before it gets here
+          leaf(out, constant(0), constant(0), constant(0));
+          return;
+        case "black":
+          leaf(out, constant(-1), constant(-1), constant(-1));
+          return;
+        case "white":
+          leaf(out, constant(1), constant(1), constant(1));
+          return;
+        case "red":
+          leaf(out, constant(1), constant(-1), constant(-1));
+          return;
+        case "green":
+          leaf(out, constant(-1), constant(1), constant(-1));
+          return;
+        case "blue":
+          leaf(out, constant(-1), constant(-1), constant(1));
+          return;
+
+        case "constant-color":
+        case "constant-number":
+          var color = gene.assemble().render(0, 0);
+          leaf(out, constant(color.r), constant(color.g), constant(color.b));
+          return;
+
+        default:
+          // isLowerable() should have prevented us from getting here
+          throw new IllegalStateException("no lowering for " + gene);
+      }
+    }
+
+    private void unary(int out, int in, Runnable op) {
+      for (var channel = 0; channel < 3; channel++) {
+        code.dload(in, channel);
+        op.run();
+        code.dstore(out, channel);
+      }
+    }
+
+    private void unaryMath(int out, int in, String method) {
+      unary(out, in, () -> code.invokeStatic(MATH, method, "(D)D", 0));
+    }
+
+    private void unaryAllele(int out, int in, String method) {
+      unary(out, in, () -> code.invokeStaticInterface(ALLELE, method, "(D)D", 0));
+    }
+
+    private void binary(int out, int[] kids, Runnable op) {
+      for (var channel = 0; channel < 3; channel++) {
+        code.dload(kids[0], channel);
+        code.dload(kids[1], channel);
+        op.run();
+        code.dstore(out, channel);
+      }
+    }
+
+    private void ternary(int out, int[] kids, Runnable op, boolean needsNoise) {
+      for (var channel = 0; channel < 3; channel++) {
+        if (needsNoise) {
+          noiseReceiver();
+        }
+        code.dload(kids[0], channel);
+        code.dload(kids[1], channel);
+        code.dload(kids[2], channel);
+        op.run();
+        code.dstore(out, channel);
+      }
+    }
+
+    private void noiseReceiver() {
+      code.field(Code.GETSTATIC, pool.fieldRef(ALLELE, "simplexNoise", "L" + NOISE + ";"), 1);
+    }
+
+    /** Stores the double on top of the stack into all three channels of the output. */
+    private void broadcast(int out) {
+      code.op(Code.DUP2, 2);
+      code.dstore(out, 0);
+      code.op(Code.DUP2, 2);
+      code.dstore(out, 1);
+      code.dstore(out, 2);
+    }
+
+    /**
+     * Emits <code>kr * in.r + kg * in.g + kb * in.b</code> into the given output channel, skipping
+     * terms with a zero coefficient and multiplications by one, so we get the exact same floating
+     * point operations as the closure version.
+     */
+    private void linear(int out, int channel, int in, double kr, double kg, double kb) {
+      var coefficients = new double[] {kr, kg, kb};
+      var first = true;
+      for (var i = 0; i < 3; i++) {
+        var k = coefficients[i];
+        if (k == 0.0) {
+          continue;
+        }
+        code.dload(in, i);
+        if (k != 1.0) {
+          code.ldc(k);
+          code.op(Code.DMUL, -2);
+        }
+        if (!first) {
+          code.op(Code.DADD, -2);
+        }
+        first = false;
+      }
+      code.dstore(out, channel);
+    }
+
+    private void leaf(int out, Runnable r, Runnable g, Runnable b) {
+      r.run();
+      code.dstore(out, 0);
+      g.run();
+      code.dstore(out, 1);
+      b.run();
+      code.dstore(out, 2);
+    }
+
+    private void loadX() {
+      code.dloadSlot(SLOT_X);
+    }
+
+    private void loadY() {
+      code.dloadSlot(SLOT_Y);
+    }
+
+    private Runnable constant(double value) {
+      return () -> code.ldc(value);
+    }
+
+    /** Assembles the complete class file, once render() has been emitted. */
+    private byte[] classFile() {
+      var init = new Code(pool);
+      init.op(Code.ALOAD_0, 1);
+      init.invokeSpecial("java/lang/Object", "<init>", "()V", -1);
+      init.op(Code.ALOAD_0, 1);
+      init.op(Code.ALOAD_1, 1);
+      init.field(Code.PUTFIELD, pool.fieldRef(internalName, FALLBACKS, FALLBACKS_DESC), -2);
+      init.op(Code.RETURN, 0);
+
+      // we have to intern every name in the constant pool before we can write the pool out
+      var thisClass = pool.classRef(internalName);
+      var superClass = pool.classRef("java/lang/Object");
+      var imageFunction = pool.classRef(IMAGE_FUNCTION);
+      var fallbacksName = pool.utf8(FALLBACKS);
+      var fallbacksDesc = pool.utf8(FALLBACKS_DESC);
+      var initName = pool.utf8("<init>");
+      var initDesc = pool.utf8("(" + FALLBACKS_DESC + ")V");
+      var renderName = pool.utf8("render");
+      var renderDesc = pool.utf8(RENDER_DESC);
+      var codeName = pool.utf8("Code");
+
+      var out = new Bytes();
+      out.u4(0xCAFEBABE);
+      out.u2(0); // minor version
+      out.u2(
+          52); // major version: Java 8, since we don't emit branches, we don't need StackMapTables
+      pool.writeTo(out);
+      out.u2(0x0001 | 0x0010 | 0x0020); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+      out.u2(thisClass);
+      out.u2(superClass);
+      out.u2(1); // interfaces
+      out.u2(imageFunction);
+
+      out.u2(1); // fields
+      out.u2(0x0002 | 0x0010); // ACC_PRIVATE | ACC_FINAL
+      out.u2(fallbacksName);
+      out.u2(fallbacksDesc);
+      out.u2(0); // attributes
+
+      out.u2(2); // methods
+      method(out, initName, initDesc, codeName, init, 2);
+      method(out, renderName, renderDesc, codeName, code, FIRST_REGISTER_SLOT + 6 * numRegisters);
+
+      out.u2(0); // class attributes
+      return out.toByteArray();
+    }
+
+    private static void method(Bytes out, int name, int desc, int codeName, Code body, int locals) {
+      out.u2(0x0001); // ACC_PUBLIC
+      out.u2(name);
+      out.u2(desc);
+      out.u2(1); // attributes: just the code
+      out.u2(codeName);
+      out.u4(12 + body.length());
+      out.u2(body.maxStack());
+      out.u2(locals);
+      out.u4(body.length());
+      body.writeTo(out);
+      out.u2(0); // exception table
+      out.u2(0); // code attributes
+    }
+  }
+
+  /**
+   * We lower the intrinsic alleles by name, so we're careful to only accept the actual instances
+   * from {@link Allele#INTRINSIC_ALLELE_MAP} (and constants, which are made fresh each time).
+   * Somebody else's allele that happens to share a name gets the fallback treatment.
+   */
+  private static boolean isLowerable(Allele gene) {
+    var name = gene.getName();
+    return name.equals("constant-color")
+        || name.equals("constant-number")
+        || INTRINSIC_ALLELE_MAP.get(name).exists(intrinsic -> intrinsic == gene);
+  }
+
+  /** A growable array of bytes, written big-endian, as the class file format requires. */
+  private static final class Bytes {
+    private byte[] data = new byte[256];
+    private int length = 0;
+
+    void u1(int value) {
+      if (length == data.length) {
+        data = Arrays.copyOf(data, length * 2);
+      }
+      data[length++] = (byte) value;
+    }
+
+    void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    void u4(int value) {
+      u2(value >>> 16);
+      u2(value);
+    }
+
+    void u8(long value) {
+      u4((int) (value >>> 32));
+      u4((int) value);
+    }
+
+    void append(Bytes other) {
+      for (var i = 0; i < other.length; i++) {
+        u1(other.data[i]);
+      }
+    }
+
+    int length() {
+      return length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(data, length);
+    }
+  }
+
+  /** The constant pool, with deduplication of entries. */
+  private static final class ConstantPool {
+    private final Bytes bytes = new Bytes();
+    private final HashMap<String, Integer> entries = new HashMap<>();
+    private int count = 1; // constant pool indices start at one
+
+    int utf8(String value) {
+      var key = "U" + value;
+      var index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      bytes.u1(1);
+      bytes.u2(value.length()); // all our names are ASCII, so modified UTF-8 is just the bytes
+      for (var i = 0; i < value.length(); i++) {
+        bytes.u1(value.charAt(i));
+      }
+      entries.put(key, count);
+      return count++;
+    }
+
+    int classRef(String internalName) {
+      return intern("C" + internalName, 7, utf8(internalName), -1);
+    }
+
+    int nameAndType(String name, String desc) {
+      return intern("N" + name + ":" + desc, 12, utf8(name), utf8(desc));
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+      return intern(
+          "F" + owner + "." + name + ":" + desc, 9, classRef(owner), nameAndType(name, desc));
+    }
+
+    int methodRef(String owner, String name, String desc) {
+      return intern("M" + owner + "." + name + desc, 10, classRef(owner), nameAndType(name, desc));
+    }
+
+    int interfaceMethodRef(String owner, String name, String desc) {
+      return intern("I" + owner + "." + name + desc, 11, classRef(owner), nameAndType(name, desc));
+    }
+
+    int doubleConstant(double value) {
+      var bits = Double.doubleToRawLongBits(value);
+      var key = "D" + bits;
+      var index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      bytes.u1(6);
+      bytes.u8(bits);
+      entries.put(key, count);
+      var result = count;
+      count += 2; // doubles famously take up two constant pool slots
+      return result;
+    }
+
+    private int intern(String key, int tag, int first, int second) {
+      var index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      bytes.u1(tag);
+      bytes.u2(first);
+      if (second >= 0) {
+        bytes.u2(second);
+      }
+      entries.put(key, count);
+      return count++;
+    }
+
+    void writeTo(Bytes out) {
+      out.u2(count);
+      out.append(bytes);
+    }
+  }
+
+  /** A method body under construction, tracking the operand stack depth as we go. */
+  private static final class Code {
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int AALOAD = 0x32;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int DSTORE = 0x39;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int WIDE = 0xc4;
+
+    private final ConstantPool pool;
+    private final Bytes bytes = new Bytes();
+    private int stack = 0;
+    private int maxStack = 0;
+
+    Code(ConstantPool pool) {
+      this.pool = pool;
+    }
+
+    int length() {
+      return bytes.length();
+    }
+
+    int maxStack() {
+      return maxStack;
+    }
+
+    void writeTo(Bytes out) {
+      out.append(bytes);
+    }
+
+    private void adjust(int delta) {
+      stack += delta;
+      maxStack = Math.max(maxStack, stack);
+    }
+
+    void op(int opcode, int stackDelta) {
+      bytes.u1(opcode);
+      adjust(stackDelta);
+    }
+
+    void sipush(int value) {
+      bytes.u1(SIPUSH);
+      bytes.u2(value);
+      adjust(1);
+    }
+
+    void ldc(double value) {
+      if (Double.doubleToRawLongBits(value) == 0L) {
+        bytes.u1(DCONST_0);
+      } else if (value == 1.0) {
+        bytes.u1(DCONST_1);
+      } else {
+        bytes.u1(LDC2_W);
+        bytes.u2(pool.doubleConstant(value));
+      }
+      adjust(2);
+    }
+
+    void dload(int register, int channel) {
+      dloadSlot(FIRST_REGISTER_SLOT + 6 * register + 2 * channel);
+    }
+
+    void dstore(int register, int channel) {
+      local(DSTORE, 0x47, FIRST_REGISTER_SLOT + 6 * register + 2 * channel);
+      adjust(-2);
+    }
+
+    void dloadSlot(int slot) {
+      local(DLOAD, 0x26, slot);
+      adjust(2);
+    }
+
+    private void local(int opcode, int shortForm, int slot) {
+      if (slot <= 3) {
+        bytes.u1(shortForm + slot);
+      } else if (slot <= 255) {
+        bytes.u1(opcode);
+        bytes.u1(slot);
+      } else {
+        bytes.u1(WIDE);
+        bytes.u1(opcode);
+        bytes.u2(slot);
+      }
+    }
+
+    void field(int opcode, int fieldRef, int stackDelta) {
+      bytes.u1(opcode);
+      bytes.u2(fieldRef);
+      adjust(stackDelta);
+    }
+
+    void invokeStatic(String owner, String name, String desc, int stackDelta) {
+      bytes.u1(INVOKESTATIC);
+      bytes.u2(pool.methodRef(owner, name, desc));
+      adjust(stackDelta);
+    }
+
+    void invokeStaticInterface(String owner, String name, String desc, int stackDelta) {
+      bytes.u1(INVOKESTATIC);
+      bytes.u2(pool.interfaceMethodRef(owner, name, desc));
+      adjust(stackDelta);
+    }
+
+    void invokeVirtual(String owner, String name, String desc, int stackDelta) {
+      bytes.u1(INVOKEVIRTUAL);
+      bytes.u2(pool.methodRef(owner, name, desc));
+      adjust(stackDelta);
+    }
+
+    void invokeSpecial(String owner, String name, String desc, int stackDelta) {
+      bytes.u1(INVOKESPECIAL);
+      bytes.u2(pool.methodRef(owner, name, desc));
+      adjust(stackDelta);
+    }
+
+    void invokeInterface(String owner, String name, String desc, int argSlots, int stackDelta) {
+      bytes.u1(INVOKEINTERFACE);
+      bytes.u2(pool.interfaceMethodRef(owner, name, desc));
+      bytes.u1(argSlots);
+      bytes.u1(0);
+      adjust(stackDelta);
+    }
+  }
+}
@@ -0,0 +1,488 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.prettypictures.Allele.INTRINSIC_ALLELE_MAP;
+
+import edu.rice.util.Log;
+import io.vavr.collection.List;
+import java.util.ArrayDeque;
+
+/**
+ * Simplifies a {@link GeneTree} before we render it. Bred trees are full of subtrees that don't
+ * depend on the pixel coordinates at all, like <code>sine(constant-number)</code>, as well as
+ * pointless structures like <code>negate(negate(...))</code>. Left alone, these get recomputed at
+ * every pixel. The optimizer does two things, bottom-up:
+ *
+ * <ul>
+ *   <li><b>Constant folding:</b> any subtree that doesn't depend on (x, y) is evaluated once and
+ *       replaced with a <code>constant-color</code> leaf holding the exact result.
+ *   <li><b>Algebraic simplification:</b> a handful of rewrites that produce exactly the same
+ *       values, like <code>negate(negate(a)) = a</code>, <code>min(a, a) = a</code>, <code>
+ *       clip(clip(a)) = clip(a)</code>, and <code>mul(a, 1) = a</code>.
+ * </ul>
+ *
+ * <p>Every rewrite produces bit-for-bit the same value as the original, for every input, including
+ * NaN, the infinities, and negative zero. That rules out some tempting rewrites. For example,
+ * <code>
+ * add(a, 0)</code> isn't <code>a</code> when <code>a</code> is -0.0, and <code>dissolve(a, b, 0)
+ * </code>, which computes <code>1 * a + 0 * b</code>, isn't <code>a</code> when <code>b</code> is
+ * infinite or NaN. To make rewrites like that one safe, we track a little bit of range information
+ * about every subtree: an upper bound on its magnitude (which tells us it can never be infinite or
+ * NaN) and whether it could ever be -0.0.
+ *
+ * <p>We only touch alleles we know to be pure functions of their inputs: the intrinsic alleles,
+ * constants, and our own external images. Anything else is left exactly as it was.
+ */
+public class GeneTreeOptimizer {
+  private static final String TAG = "GeneTreeOptimizer";
+
+  // never instantiate this class
+  private GeneTreeOptimizer() {}
+
+  /** The result of {@link #optimize(GeneTree)}: a simplified tree and how much smaller it got. */
+  public static final class Optimized {
+    public final GeneTree tree;
+    public final int nodesRemoved;
+
+    private Optimized(GeneTree tree, int nodesRemoved) {
+      this.tree = tree;
+      this.nodesRemoved = nodesRemoved;
+    }
+  }
+
+  /**
+   * Returns a tree that renders the same image as the given tree, with constant subtrees folded and
+   * simplifications applied, along with the number of nodes that saved. If nothing could be
+   * simplified, the original tree comes back, unchanged.
+   */
+  public static Optimized optimize(GeneTree tree) {
+    // Engineering note: as in GeneProgram, this is a post-order traversal with an explicit stack,
+    // so deep trees can't overflow the Java stack. The "values" stack holds the optimized
+    // versions of the children we've finished, along with the sizes of the originals.
+    var frames = new ArrayDeque<Frame>();
+    var values = new ArrayDeque<Node>();
+    frames.push(new Frame(tree));
+
+    while (!frames.isEmpty()) {
+      var frame = frames.peek();
+      if (frame.next < frame.children.length()) {
+        frames.push(new Frame(frame.children.get(frame.next++)));
+      } else {
+        frames.pop();
+        var kids = new Node[frame.children.length()];
+        for (var i = kids.length - 1; i >= 0; i--) {
+          kids[i] = values.pop();
+        }
+        values.push(simplify(frame.tree, kids));
+      }
+    }
+
+    var result = values.pop();
+    var removed = result.originalSize - result.size;
+    if (removed > 0) {
+      Log.i(TAG, () -> "removed " + removed + " of " + result.originalSize + " nodes");
+    }
+    return new Optimized(result.tree, removed);
+  }
+
+  /** One node in our walk over the original tree. */
+  private static final class Frame {
+    final GeneTree tree;
+    final List<GeneTree> children;
+    int next = 0;
+
+    Frame(GeneTree tree) {
+      this.tree = tree;
+      this.children = tree.getChildren().toList();
+    }
+  }
+
+  /**
+   * An optimized subtree, with its (optimized) children, its size, and the size of the original it
+   * replaces.
+   */
+  private static final class Node {
+    final GeneTree tree;
+    final Node[] kids;
+    final int size;
+    final int originalSize;
+    final boolean constant;
+
+    // Range information: every value this subtree produces has a magnitude of at most "bound"
+    // (which is infinite if we don't know, or if it might be infinite or NaN), and is only ever
+    // -0.0 if "negativeZero" is true.
+    final double bound;
+    final boolean negativeZero;
+
+    Node(
+        GeneTree tree,
+        Node[] kids,
+        int originalSize,
+        boolean constant,
+        double bound,
+        boolean negativeZero) {
+      this.tree = tree;
+      this.kids = kids;
+      this.originalSize = originalSize;
+      this.constant = constant;
+      this.bound = bound;
+      this.negativeZero = negativeZero;
+
+      var size = 1;
+      for (var kid : kids) {
+        size += kid.size;
+      }
+      this.size = size;
+    }
+
+    /** The same subtree, standing in for an original of a different size. */
+    Node replacing(int originalSize) {
+      return new Node(tree, kids, originalSize, constant, bound, negativeZero);
+    }
+
+    /** Is this subtree always finite, and small enough that the usual arithmetic can't overflow? */
+    boolean finite() {
+      return bound <= SAFE_BOUND;
+    }
+  }
+
+  private static final Node[] NO_KIDS = new Node[0];
+
+  /**
+   * We assume that pixel coordinates are never larger than this. In practice, they're within
+   * [-1,1], or not far off when zoomed out.
+   */
+  private static final double COORDINATE_BOUND = 1e100;
+
+  /**
+   * Bounds are computed with ordinary floating point arithmetic, which could round down a bit, so
+   * we only trust that a subtree is finite when its bound is well short of overflowing.
+   */
+  private static final double SAFE_BOUND = 1e300;
+
+  /** Given a node of the original tree and its already-optimized children, optimizes the node. */
+  private static Node simplify(GeneTree original, Node[] kids) {
+    var gene = original.getGene();
+    var originalSize = 1;
+    var allConstant = true;
+    var changed = false;
+    var children = List.<GeneTree>empty();
+    for (var i = kids.length - 1; i >= 0; i--) {
+      originalSize += kids[i].originalSize;
+      allConstant &= kids[i].constant;
+      changed |= kids[i].tree != original.getChildren().get(i);
+      children = children.prepend(kids[i].tree);
+    }
+
+    if (!GeneProgram.isLowerable(gene)) {
+      // Something we don't understand. We can still use its simplified children.
+      var tree = changed ? GeneTree.geneTree(gene, children).get() : original;
+      return new Node(tree, kids, originalSize, false, Double.POSITIVE_INFINITY, true);
+    }
+
+    if (kids.length == 0) {
+      if (GeneProgram.opcode(gene.getName()) == GeneProgram.CONSTANT) {
+        return constantNode(original, 1);
+      }
+      // a coordinate leaf, like "x" or "0xy"
+      return new Node(original, NO_KIDS, 1, false, COORDINATE_BOUND, true);
+    }
+
+    if (allConstant) {
+      // Every child is now a constant leaf, so rendering this node is cheap and doesn't care
+      // about (x, y). Whatever color comes out is exactly what we'd get at every pixel.
+      var color = gene.assemble(children.map(GeneTree::toImageFunction)).render(0, 0);
+      return constantNode(GeneTree.constantColorTree(color).get(), originalSize);
+    }
+
+    var rewritten = rewrite(gene.getName(), kids);
+    if (rewritten != null) {
+      return rewritten.replacing(originalSize);
+    }
+
+    var tree = changed ? GeneTree.geneTree(gene, children).get() : original;
+    return node(tree, kids, originalSize);
+  }
+
+  /** Makes a node for a constant leaf, working out its range from its value. */
+  private static Node constantNode(GeneTree leaf, int originalSize) {
+    var color = constantOf(leaf);
+    var bound = Math.max(Math.abs(color.r), Math.max(Math.abs(color.g), Math.abs(color.b)));
+    var negativeZero =
+        isNegativeZero(color.r) || isNegativeZero(color.g) || isNegativeZero(color.b);
+    return new Node(
+        leaf,
+        NO_KIDS,
+        originalSize,
+        true,
+        Double.isNaN(bound) ? Double.POSITIVE_INFINITY : bound,
+        negativeZero);
+  }
+
+  /** Makes a node for an intrinsic allele with the given children, working out its range. */
+  private static Node node(GeneTree tree, Node[] kids, int originalSize) {
+    var name = tree.getGene().getName();
+    var bound = bound(name, kids);
+    return new Node(
+        tree,
+        kids,
+        originalSize,
+        false,
+        // 0 * inf is NaN, which is no bound at all, and fails every comparison
+        !(bound <= SAFE_BOUND) ? Double.POSITIVE_INFINITY : bound,
+        negativeZero(name, kids));
+  }
+
+  /**
+   * A bound on the magnitude of an intrinsic allele's output, given its children, or infinity if
+   * the output might be infinite or NaN, or we just don't know.
+   */
+  private static double bound(String name, Node[] kids) {
+    var a = kids.length > 0 ? kids[0].bound : 0.0;
+    var b = kids.length > 1 ? kids[1].bound : 0.0;
+    var c = kids.length > 2 ? kids[2].bound : 0.0;
+    var all = Math.max(a, Math.max(b, c));
+    var inf = Double.POSITIVE_INFINITY;
+
+    // Everything below is finite when its inputs are, with one exception: sign(NaN) is 1.
+    switch (name) {
+      case "sign":
+      case "external-image":
+        return 1.0;
+      case "sine":
+      case "cosine":
+      case "tanh":
+      case "wrap":
+      case "clip":
+      case "mantissa":
+        return !(all < inf) ? inf : 1.0;
+      case "arctan":
+      case "arctan2":
+        return !(all < inf) ? inf : 4.0;
+      case "color-perlin":
+      case "grey-perlin":
+        // the same bounds as the range analysis, so the two never disagree; see Intervals
+        return !(all <= Intervals.NOISE_INPUT_LIMIT) ? inf : Intervals.NOISE_BOUND;
+      case "grey-perlin-4d":
+        return !(all <= Intervals.NOISE_INPUT_LIMIT) ? inf : Intervals.NOISE_4D_BOUND;
+      case "negate":
+      case "abs":
+      case "clamp-negative":
+      case "clamp-positive":
+      case "max":
+      case "min":
+      case "red-channel":
+      case "green-channel":
+      case "blue-channel":
+      case "color-mix":
+        return all;
+      case "floor":
+      case "ceiling":
+        return a + 1.0;
+      case "exp":
+        return a < 700 ? Math.exp(a) : inf;
+      case "add":
+      case "sub":
+        return a + b;
+      case "mul":
+      case "inner-product":
+        return a * b;
+      case "dissolve":
+        return (1 + c) * a + c * b;
+      case "rgb-to-ycrcb":
+      case "ycrcb-to-rgb":
+        // no output is a combination of the inputs with coefficients adding up to more than 4
+        return 4 * a;
+      default:
+        // log and div can blow up even with perfectly ordinary inputs
+        return inf;
+    }
+  }
+
+  /** Could an intrinsic allele ever output -0.0, given its children? */
+  private static boolean negativeZero(String name, Node[] kids) {
+    switch (name) {
+      case "sign": // -1 or 1
+      case "cosine": // never exactly zero
+      case "abs":
+      case "exp":
+      case "wrap": // z * 2 - 1 is +0.0 when it's zero
+      case "mantissa": // likewise
+        return false;
+      case "sine":
+      case "arctan":
+      case "tanh":
+      case "clip":
+      case "floor":
+      case "clamp-negative":
+      case "clamp-positive":
+      case "red-channel":
+      case "green-channel":
+      case "blue-channel":
+        // these only yield -0.0 when given -0.0
+        return kids[0].negativeZero;
+      case "max":
+      case "min":
+      case "color-mix":
+        return kids[0].negativeZero
+            || kids[1].negativeZero
+            || (kids.length > 2 && kids[2].negativeZero);
+      default:
+        return true;
+    }
+  }
+
+  private static boolean isNegativeZero(double x) {
+    return Double.doubleToRawLongBits(x) == Double.doubleToRawLongBits(-0.0);
+  }
+
+  /**
+   * Algebraic simplifications, given the name of an intrinsic allele and its optimized children.
+   * Returns the replacement, or null if there's nothing to do.
+   */
+  private static Node rewrite(String name, Node[] kids) {
+    switch (name) {
+      case "negate":
+        // -(-a) = a
+        return isGene(kids[0], "negate") ? kids[0].kids[0] : null;
+
+      case "abs":
+        // |(|a|)| = |a|, and |-a| = |a|
+        if (isGene(kids[0], "abs")) {
+          return kids[0];
+        } else if (isGene(kids[0], "negate")) {
+          return withChildren(name, kids[0].kids[0]);
+        }
+        return null;
+
+      case "sign":
+      case "clip":
+      case "floor":
+      case "ceiling":
+        // All of these are idempotent: f(f(a)) = f(a). Also, sign() is always -1 or 1, which
+        // clip() leaves alone, and floor() and ceiling() always yield integers (or NaN or
+        // infinity), which floor() and ceiling() leave alone.
+        var integral = isGene(kids[0], "floor") || isGene(kids[0], "ceiling");
+        var unchanged =
+            isGene(kids[0], name)
+                || (name.equals("clip") && isGene(kids[0], "sign"))
+                || ((name.equals("floor") || name.equals("ceiling")) && integral);
+        return unchanged ? kids[0] : null;
+
+      case "min":
+      case "max":
+        // min(a, a) = max(a, a) = a
+        return sameTree(kids[0].tree, kids[1].tree) ? kids[0] : null;
+
+      case "mul":
+        // a * 1 = 1 * a = a
+        if (isConstant(kids[1], 1.0)) {
+          return kids[0];
+        } else if (isConstant(kids[0], 1.0)) {
+          return kids[1];
+        }
+        return null;
+
+      case "div":
+        // a / 1 = a
+        return isConstant(kids[1], 1.0) ? kids[0] : null;
+
+      case "sub":
+        // a - 0 = a (but not 0 + a, which turns -0.0 into 0.0)
+        return isConstant(kids[1], 0.0) ? kids[0] : null;
+
+      case "dissolve":
+        // With t = 0, we compute 1 * a + 0 * b, which is exactly a, so long as b is finite (so
+        // 0 * b is a zero) and a isn't -0.0 (since -0.0 + 0.0 is 0.0). Likewise for t = 1.
+        if (isConstant(kids[2], 0.0) && kids[1].finite() && !kids[0].negativeZero) {
+          return kids[0];
+        } else if (isConstant(kids[2], 1.0) && kids[0].finite() && !kids[1].negativeZero) {
+          return kids[1];
+        }
+        return null;
+
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isGene(Node node, String name) {
+    var gene = node.tree.getGene();
+    return gene.getName().equals(name)
+        && INTRINSIC_ALLELE_MAP.get(name).exists(intrinsic -> intrinsic == gene);
+  }
+
+  private static Node withChildren(String name, Node... kids) {
+    return node(GeneTree.geneTree(name, List.of(kids).map(kid -> kid.tree)).get(), kids, 0);
+  }
+
+  /** Is the node a constant with exactly the given value in all three channels? */
+  private static boolean isConstant(Node node, double value) {
+    if (!node.constant) {
+      return false;
+    }
+    var color = constantOf(node.tree);
+    return sameValue(color.r, value) && sameValue(color.g, value) && sameValue(color.b, value);
+  }
+
+  private static RgbColor constantOf(GeneTree leaf) {
+    return leaf.getGene().assemble().render(0, 0);
+  }
+
+  private static boolean sameValue(double a, double b) {
+    return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+  }
+
+  /**
+   * Exact structural equality. Unlike {@link GeneTree#equals(Object)}, which treats constants
+   * within a small tolerance as equal, constants here must match bit for bit, and alleles must be
+   * the very same instances.
+   */
+  static boolean sameTree(GeneTree a, GeneTree b) {
+    var as = new ArrayDeque<GeneTree>();
+    var bs = new ArrayDeque<GeneTree>();
+    as.push(a);
+    bs.push(b);
+    while (!as.isEmpty()) {
+      var x = as.pop();
+      var y = bs.pop();
+      if (x == y) {
+        continue;
+      }
+      if (!sameGene(x.getGene(), y.getGene())) {
+        return false;
+      }
+      x.getChildren().forEach(as::push);
+      y.getChildren().forEach(bs::push);
+    }
+    return true;
+  }
+
+  private static boolean sameGene(Allele a, Allele b) {
+    if (a == b) {
+      return true;
+    }
+    var name = a.getName();
+    if (!name.equals(b.getName())
+        || !GeneProgram.isLowerable(a)
+        || !GeneProgram.isLowerable(b)
+        || a.numChildren() != 0
+        || GeneProgram.opcode(name) != GeneProgram.CONSTANT) {
+      return false;
+    }
+    var x = a.assemble().render(0, 0);
+    var y = b.assemble().render(0, 0);
+    return sameValue(x.r, y.r) && sameValue(x.g, y.g) && sameValue(x.b, y.b);
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.prettypictures.GeneTree.constantNumberTree;
+import static edu.rice.prettypictures.GeneTree.geneLeaf;
+import static edu.rice.prettypictures.GeneTree.geneTree;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import org.junit.jupiter.api.Test;
+
+public class GeneTreeOptimizerTest {
+  /** Counts the pixels where two images of the same size differ. */
+  private static int differences(BufferedImage a, BufferedImage b) {
+    var count = 0;
+    for (var y = 0; y < a.getHeight(); y++) {
+      for (var x = 0; x < a.getWidth(); x++) {
+        if (a.getRGB(x, y) != b.getRGB(x, y)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testZeroTimesInfinityIsNotFinite() {
+    // 0 * log(x) is NaN wherever log(x) is infinite or NaN, and sine passes that along, so the
+    // dissolve can't drop its second operand, even with t = 0
+    var tree =
+        geneTree(
+                "dissolve",
+                geneTree("abs", geneLeaf("x")),
+                geneTree(
+                    "sine", geneTree("mul", constantNumberTree(0), geneTree("log", geneLeaf("x")))),
+                constantNumberTree(0))
+            .get();
+
+    var expected = tree.toImageFunction().toImage(8, 8);
+    assertEquals(0, differences(expected, tree.toOptimizedTree().toImageFunction().toImage(8, 8)));
+    assertEquals(0, differences(expected, tree.toCompiledImageFunction().toImage(8, 8)));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.util.Performance.nanoBenchmarkVal;
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import edu.rice.util.Log;
+import io.vavr.collection.Seq;
+import io.vavr.control.Option;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders every image of a generation at once, for the breeder's grid of thumbnails. The client
+ * asks for the images of a generation one after another, all at the same size, so the first request
+ * for a new generation renders the whole grid in one go (see {@link GeneProgram#toImages(int, int,
+ * CancellationToken)}), and the requests for the rest of it wait for that and take their images
+ * from it. That size is the generation's grid size, and any other size, like a single image at full
+ * size, isn't ours to render: {@link #image(Seq, int, int, int, CancellationToken)} says so, and
+ * the caller renders that one tree by itself.
+ */
+final class GenerationImages {
+  private static final String TAG = "GenerationImages";
+
+  /** How often a request waiting on a generation's images checks whether it's been cancelled. */
+  private static final long POLL_MILLIS = 20;
+
+  /** One generation's images, rendered at its grid size, or on their way. */
+  private static final class Render {
+    final Seq<GeneTree> genes;
+    final int width;
+    final int height;
+    final CompletableFuture<Seq<BufferedImage>> images = new CompletableFuture<>();
+
+    Render(Seq<GeneTree> genes, int width, int height) {
+      this.genes = genes;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  // Engineering note: only the latest generation is worth keeping, since the breeder only ever
+  // shows one at a time. Whoever first asks for a new generation swaps in its Render, and so
+  // starts rendering it; everybody else asking for that generation waits on its future, and never
+  // on a lock, so requests for other sizes, other precisions, and other trees go right ahead. The
+  // images are never written again once they're done, which is what lets them be shared.
+  private static final AtomicReference<Render> latest = new AtomicReference<>();
+
+  private GenerationImages() {}
+
+  /**
+   * Returns image number <code>imageNum</code> of the given generation, rendered with all the
+   * others, if the given size is the generation's grid size, which is whatever size it was first
+   * asked for at. Returns none for any other size. The image belongs to us, and mustn't be changed
+   * or given back to the {@link RasterPool}. Gives up if the token is cancelled. If the render of
+   * the whole generation is cancelled, which is up to whoever started it, the next request starts
+   * another.
+   *
+   * @throws CancellationException if the token was cancelled before the image was ready
+   */
+  static Option<BufferedImage> image(
+      Seq<GeneTree> genes, int imageNum, int width, int height, CancellationToken token) {
+    while (true) {
+      var render = latest.get();
+      if (render == null || render.genes != genes) {
+        var fresh = new Render(genes, width, height);
+        if (!latest.compareAndSet(render, fresh)) {
+          continue; // somebody else just swapped in a generation; see whose it is
+        }
+        run(fresh, token);
+        render = fresh;
+      }
+      if (render.width != width || render.height != height) {
+        return none();
+      }
+      var images = await(render, token);
+      if (images.isDefined()) {
+        return some(images.get().get(imageNum));
+      }
+      // whoever started the render gave up on it, and took it out of latest, so try again
+    }
+  }
+
+  /** Renders the whole generation, with the given token, and completes its future. */
+  private static void run(Render render, CancellationToken token) {
+    try {
+      token.throwIfCancelled();
+      var program = GeneProgram.of(render.genes.map(GeneTree::toOptimizedTree));
+      var results = nanoBenchmarkVal(() -> program.toImages(render.width, render.height, token));
+      Log.iformat(
+          TAG,
+          "rendered all %d images of the generation (%dx%d), time: %.3f ms, %d of %d nodes shared",
+          render.genes.length(),
+          render.width,
+          render.height,
+          results._1 / 1_000_000.0,
+          program.duplicatesEliminated(),
+          program.treeSize());
+      // these are just as good for scaling down as anything else, and they won't change either
+      render
+          .genes
+          .zip(results._2)
+          .forEach(pair -> SourceImageCache.offer(pair._1, Precision.DOUBLE, pair._2));
+      render.images.complete(results._2);
+    } catch (RuntimeException e) {
+      latest.compareAndSet(render, null);
+      render.images.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the generation's images, or returns none if the render failed or was cancelled.
+   *
+   * @throws CancellationException if our own token was cancelled first
+   */
+  private static Option<Seq<BufferedImage>> await(Render render, CancellationToken token) {
+    while (true) {
+      token.throwIfCancelled();
+      try {
+        return some(render.images.get(POLL_MILLIS, TimeUnit.MILLISECONDS));
+      } catch (TimeoutException e) {
+        // not done yet, so check the token again
+      } catch (ExecutionException | CancellationException e) {
+        return none();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("interrupted");
+      }
+    }
+  }
+}
@@ -12,42 +12,185 @@
 
 package edu.rice.prettypictures;
 
+import static io.vavr.control.Option.none;
+
+import io.vavr.control.Option;
 import java.awt.image.BufferedImage;
-import java.util.stream.IntStream;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 @FunctionalInterface
 public interface ImageFunction {
+  /** {@link #toImage(int, int)} renders square tiles of this many pixels on a side. */
+  int TILE_SIZE = 64;
+
+  /**
+   * The first pass of {@link #toImageProgressively(int, int, PassListener)} renders one pixel out
+   * of each square of this many pixels on a side.
+   */
+  int COARSEST_PASS = 8;
+
+  /** What {@link #toImageProgressively(int, int, PassListener)} tells about each of its passes. */
+  @FunctionalInterface
+  interface PassListener {
+    /**
+     * Called once another pass of the image is done, with every pixel of the image filled in from a
+     * grid of pixels rendered <code>pixelSize</code> apart, each of them standing in for the square
+     * of that size to its lower right. The last pass has a pixel size of 1. The image will change
+     * as soon as this returns, so anything that wants to keep it must copy (or encode) it first.
+     */
+    void passRendered(BufferedImage image, int pixelSize);
+  }
+
   /**
    * We're defining an ImageFunction as something where we can loop over (x,y) in the range of
    * [-1,1] and render to {@link RgbColor}.
    */
   RgbColor render(double x, double y);
 
-  /** Renders the given ImageFunction to a BufferedImage at the given integer pixel resolution. */
+  /**
+   * Renders the color at (x, y) onto a stack of colors, writing the red, green, and blue values to
+   * <code>stack[top]</code>, <code>stack[top + 1]</code>, and <code>stack[top + 2]</code>. The
+   * function may use everything above that as scratch space, up to {@link #stackSize()} colors
+   * (i.e., three times as many doubles) in all, starting from <code>top</code>.
+   *
+   * <p>By default, this just calls {@link #render(double, double)} and copies out the result. The
+   * image functions assembled from {@link Allele}s implement it directly, with every node of the
+   * tree rendering into the same stack, so they can render a pixel without allocating anything.
+   */
+  default void renderInto(double x, double y, double[] stack, int top) {
+    var color = render(x, y);
+    stack[top] = color.r;
+    stack[top + 1] = color.g;
+    stack[top + 2] = color.b;
+  }
+
+  /**
+   * The number of colors of stack space needed by {@link #renderInto(double, double, double[],
+   * int)}, including the result. By default, just the one.
+   */
+  default int stackSize() {
+    return 1;
+  }
+
+  /**
+   * Renders a whole batch of <code>n</code> pixels at once, at the coordinates <code>(xs[i], ys[i])
+   * </code>. The results are written to <code>out</code> in planar form: all the reds in <code>
+   * out[0, n)</code>, then all the greens in <code>out[n, 2n)</code>, then all the blues in <code>
+   * out[2n, 3n)</code>.
+   *
+   * <p>By default, this just calls {@link #renderInto(double, double, double[], int)} for each
+   * pixel, with a stack from the calling thread's {@link TileArena}. Image functions that can do
+   * better, like {@link GeneProgram#toImageFunction()}, evaluate each node of the tree for the
+   * entire batch at once, turning millions of tiny calls into a few thousand tight loops over
+   * arrays.
+   */
+  default void renderBatch(double[] xs, double[] ys, int n, double[] out) {
+    var stack = TileArena.get().buffer(TileArena.STACK, 3 * stackSize());
+    for (var i = 0; i < n; i++) {
+      renderInto(xs[i], ys[i], stack, 0);
+      out[i] = stack[0];
+      out[n + i] = stack[1];
+      out[2 * n + i] = stack[2];
+    }
+  }
+
+  /**
+   * Renders a rectangular tile of <code>width * height</code> pixels, where every pixel in column
+   * <code>i</code> has x-coordinate <code>columns[i]</code> and every pixel in row <code>j</code>
+   * has y-coordinate <code>rows[j]</code>. The results are written to <code>out</code> in planar
+   * form, as with {@link #renderBatch(double[], double[], int, double[])}, with the pixels in
+   * row-major order: pixel <code>(i, j)</code> is at <code>j * width + i</code>.
+   *
+   * <p>By default, this just fills in the coordinates of every pixel and calls {@link
+   * #renderBatch(double[], double[], int, double[])}. Knowing that the pixels form a grid lets
+   * {@link GeneProgram#toImageFunction()} do better: anything that depends only on x need only be
+   * computed once per column, and anything that depends only on y once per row.
+   */
+  default void renderTile(double[] columns, int width, double[] rows, int height, double[] out) {
+    var n = width * height;
+    var arena = TileArena.get();
+    var xs = arena.buffer(TileArena.XS, n);
+    var ys = arena.buffer(TileArena.YS, n);
+    for (var y = 0; y < height; y++) {
+      System.arraycopy(columns, 0, xs, y * width, width);
+      Arrays.fill(ys, y * width, (y + 1) * width, rows[y]);
+    }
+    renderBatch(xs, ys, n, out);
+  }
+
+  /**
+   * Like {@link #renderTile(double[], int, double[], int, double[])}, except that if every pixel of
+   * the tile is sure to come out the same color, the function may skip rendering the tile, leaving
+   * <code>out</code> alone, and instead return that color, packed as with {@link RgbColor#toRgb()}.
+   * Otherwise, renders the tile and returns none.
+   *
+   * <p>By default, this always renders the tile. {@link GeneProgram#toImageFunction()} analyzes the
+   * range of values each node can take on across the tile, which can prove that a tile is flat.
+   */
+  default Option<Integer> renderTileUnlessFlat(
+      double[] columns, int width, double[] rows, int height, double[] out) {
+    renderTile(columns, width, rows, height, out);
+    return none();
+  }
+
+  /**
+   * Whether this function is sure to be continuous everywhere in the rectangle of coordinates from
+   * <code>xlo</code> to <code>xhi</code> and from <code>ylo</code> to <code>yhi</code>, with no
+   * floor, sign, wrap, or anything like them jumping from one value to another in there. Renderers
+   * that interpolate between samples, like {@link AdaptiveRenderer}, can use this to be sure they
+   * don't smear a sharp edge.
+   *
+   * <p>By default, nothing is known, so this returns false. {@link GeneProgram#toImageFunction()}
+   * works it out from the range of every node over the rectangle.
+   */
+  default boolean isContinuousOver(double xlo, double xhi, double ylo, double yhi) {
+    return false;
+  }
+
+  /**
+   * The {@link GeneProgram} that renders this function's tiles and batches, if there is one, so
+   * that whoever renders with it can say what the program saved. By default, there isn't one.
+   */
+  default Option<GeneProgram> program() {
+    return none();
+  }
+
+  /**
+   * Renders the given ImageFunction to a BufferedImage at the given integer pixel resolution. The
+   * image comes from {@link RasterPool}, so a caller that's done with it can hand it back with
+   * {@link RasterPool#release(BufferedImage)}.
+   */
   default BufferedImage toImage(int xsize, int ysize) {
-    // For increased parallelism, our code is going to fill up the following array of ints,
-    // which we'll later copy to a BufferedImage. Detailed performance notes below.
-    var output = new int[ysize][xsize];
-
-    IntStream.rangeClosed(0, ysize - 1)
-        .parallel()
-        .forEach(
-            y -> {
-              var dy = 1.0 - 2.0 * y / (double) ysize;
-
-              for (int x = 0; x < xsize; x++) {
-                var dx = -1.0 + 2.0 * x / (double) xsize;
-
-                output[y][x] = render(dx, dy).toRgb();
-              }
-            });
-
-    // There's no point trying to do this loop in parallel; see the note below.
-    var image = new BufferedImage(xsize, ysize, BufferedImage.TYPE_INT_ARGB);
-    for (var y = 0; y < ysize; y++) {
-      for (var x = 0; x < xsize; x++) {
-        image.setRGB(x, y, output[y][x]);
-      }
+    return toImage(xsize, ysize, CancellationToken.NONE);
+  }
+
+  /**
+   * Like {@link #toImage(int, int)}, but gives up if <code>token</code> is cancelled, in which case
+   * the image goes back to the pool.
+   *
+   * @throws CancellationException if the token was cancelled before the image was done
+   */
+  default BufferedImage toImage(int xsize, int ysize, CancellationToken token) {
+    return toImage(xsize, ysize, Viewport.DEFAULT, token);
+  }
+
+  /**
+   * Like {@link #toImage(int, int, CancellationToken)}, but showing the given part of the plane,
+   * rather than x and y from -1 to 1.
+   *
+   * @throws CancellationException if the token was cancelled before the image was done
+   */
+  default BufferedImage toImage(int xsize, int ysize, Viewport viewport, CancellationToken token) {
+    // Tiles are rendered straight into the pixels of the image, in parallel. Detailed performance
+    // notes below, and in RasterPool.
+    var image = RasterPool.acquire(xsize, ysize);
+
+    try {
+      renderRows(xsize, ysize, 0, ysize, viewport, RasterPool.pixels(image), token);
+    } catch (CancellationException e) {
+      RasterPool.release(image);
+      throw e;
     }
 
     return image;
@@ -109,10 +252,114 @@ public interface ImageFunction {
     // come from improving something else, such as the time spent
     // inside rendering a single pixel.
 
+    // Later on, we switched from rendering one row at a time to
+    // rendering square tiles, via renderBatch(). A tile is a more
+    // even unit of work than a row (narrow thumbnails have short
+    // rows), and it lets a GeneProgram run each node of the tree over
+    // thousands of pixels at a time, in tight loops that the JIT can
+    // optimize far better than one call per node per pixel. Since a
+    // tile is a grid, we hand it over as a row of x-coordinates and
+    // a column of y-coordinates, via renderTile(), which lets a
+    // GeneProgram compute anything that only depends on x (or only
+    // on y) once per column (or row) rather than once per pixel.
+
     // If we *really* wanted to make this go faster, we'd find a way
     // to run it on a GPU, since computing pixels quickly is pretty
     // much the whole point of having a GPU, and high-end GPUs will
     // have thousands of cores which would do this kind parallel job
     // very well.
   }
+
+  /**
+   * Renders rows <code>ystart</code> up to <code>ystart + height</code> of the <code>xsize</code>
+   * by <code>ysize</code> image of the given viewport into <code>output</code>, in row-major order,
+   * with <code>xsize</code> pixels per row, starting from index 0. This lets an image far too big
+   * to hold in memory all at once be rendered a band at a time (see {@link PosterExport}), and
+   * {@link #toImage(int, int, Viewport, CancellationToken)} is just the one band that covers the
+   * whole image. Gives up if <code>token</code> is cancelled, leaving <code>output</code> partly
+   * written.
+   *
+   * @throws CancellationException if the token was cancelled before the rows were done
+   */
+  default void renderRows(
+      int xsize,
+      int ysize,
+      int ystart,
+      int height,
+      Viewport viewport,
+      int[] output,
+      CancellationToken token) {
+    TileScheduler.forEachTile(
+        xsize,
+        height,
+        TILE_SIZE,
+        token,
+        (xstart, tileStart, width, tileHeight) -> {
+          var n = width * tileHeight;
+
+          var arena = TileArena.get();
+          var columns = arena.buffer(TileArena.COLUMNS, width);
+          var rows = arena.buffer(TileArena.ROWS, tileHeight);
+          var colors = arena.buffer(TileArena.OUTPUT, 3 * n);
+
+          for (var x = 0; x < width; x++) {
+            columns[x] = viewport.x(xstart + x, xsize);
+          }
+          for (var y = 0; y < tileHeight; y++) {
+            rows[y] = viewport.y(ystart + tileStart + y, ysize);
+          }
+
+          var flat = renderTileUnlessFlat(columns, width, rows, tileHeight, colors);
+          if (flat.isDefined()) {
+            for (var y = 0; y < tileHeight; y++) {
+              var row = (tileStart + y) * xsize + xstart;
+              Arrays.fill(output, row, row + width, flat.get());
+            }
+            return;
+          }
+
+          for (var y = 0; y < tileHeight; y++) {
+            var row = (tileStart + y) * xsize + xstart;
+            for (var x = 0; x < width; x++) {
+              var i = y * width + x;
+              output[row + x] = RgbColor.toRgb(colors[i], colors[n + i], colors[2 * n + i]);
+            }
+          }
+        });
+  }
+
+  /**
+   * Renders this ImageFunction to a BufferedImage at the given integer pixel resolution, like
+   * {@link #toImage(int, int)}, except coarse to fine: first one pixel out of every {@link
+   * #COARSEST_PASS} square, then half as far apart, and so on until every pixel is rendered,
+   * calling <code>listener</code> after each pass with the image as it stands. Pixels rendered in
+   * one pass aren't rendered again in the next, so the whole thing costs only a little more than
+   * <code>toImage</code>, and the final image is the same. As with <code>toImage</code>, the image
+   * comes from {@link RasterPool}.
+   */
+  default BufferedImage toImageProgressively(int xsize, int ysize, PassListener listener) {
+    return toImageProgressively(xsize, ysize, listener, CancellationToken.NONE);
+  }
+
+  /**
+   * Like {@link #toImageProgressively(int, int, PassListener)}, but gives up if <code>token</code>
+   * is cancelled, in which case the image goes back to the pool.
+   *
+   * @throws CancellationException if the token was cancelled before the image was done
+   */
+  default BufferedImage toImageProgressively(
+      int xsize, int ysize, PassListener listener, CancellationToken token) {
+    return toImageProgressively(xsize, ysize, Viewport.DEFAULT, listener, token);
+  }
+
+  /**
+   * Like {@link #toImageProgressively(int, int, PassListener, CancellationToken)}, but showing the
+   * given part of the plane, as with {@link #toImage(int, int, Viewport, CancellationToken)}.
+   *
+   * @throws CancellationException if the token was cancelled before the image was done
+   */
+  default BufferedImage toImageProgressively(
+      int xsize, int ysize, Viewport viewport, PassListener listener, CancellationToken token) {
+    return ProgressiveRenderer.render(this, xsize, ysize, viewport, listener, token);
+  }
 }
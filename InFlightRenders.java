@@ -0,0 +1,78 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the renders the server is working on, and who asked for them, so that it can
+ * cancel the ones nobody is waiting for anymore (see {@link CancellationToken}). A render is
+ * cancelled when the same client asks for the same image again, since it must have given up on the
+ * first request, or asks for an image from a different generation, since the breeder only ever
+ * shows one generation at a time, or tells us it's going away.
+ */
+final class InFlightRenders {
+  private static final Set<Render> renders = ConcurrentHashMap.newKeySet();
+
+  private InFlightRenders() {}
+
+  private static final class Render {
+    final String client;
+    final int generation;
+    final Object key;
+    final CancellationToken token = new CancellationToken();
+
+    Render(String client, int generation, Object key) {
+      this.client = client;
+      this.generation = generation;
+      this.key = key;
+    }
+  }
+
+  /**
+   * Registers a render that <code>client</code> asked for, of the image from the given generation
+   * identified by <code>key</code> (anything with sensible <code>equals()</code> and <code>
+   * hashCode()</code>), and returns the token to render it with. Any render that this one
+   * supersedes is cancelled. Once the render is done, one way or another, the caller must pass the
+   * token to {@link #end(CancellationToken)}.
+   */
+  static CancellationToken begin(String client, int generation, Object key) {
+    var render = new Render(client, generation, key);
+    for (var other : renders) {
+      if (other.client.equals(client)
+          && (other.generation != generation || other.key.equals(key))) {
+        other.token.cancel();
+      }
+    }
+    renders.add(render);
+    return render.token;
+  }
+
+  /** Forgets about the render that was given the token. */
+  static void end(CancellationToken token) {
+    renders.removeIf(render -> render.token == token);
+  }
+
+  /** Cancels every render the given client asked for, and returns how many there were. */
+  static int cancelAll(String client) {
+    var cancelled = 0;
+    for (var render : renders) {
+      if (render.client.equals(client) && !render.token.isCancelled()) {
+        render.token.cancel();
+        cancelled++;
+      }
+    }
+    return cancelled;
+  }
+}
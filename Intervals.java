@@ -0,0 +1,417 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+/**
+ * Interval arithmetic for the lowered alleles, as used by {@link GeneProgram} to work out, for a
+ * whole tile at once, the range of values each instruction can produce. Ranges are kept in two
+ * arrays, <code>lo</code> and <code>hi</code>, laid out just like the registers of a scalar
+ * program: three doubles per register, one per channel. Each method computes the range of one
+ * channel of one instruction, given the ranges of its operands, at offsets <code>a</code>, <code>b
+ * </code>, and <code>c</code>, writing it at offset <code>d</code>.
+ *
+ * <p>A range <code>[lo, hi]</code> promises that every value the instruction computes, on every
+ * pixel of the tile, lies between <code>lo</code> and <code>hi</code> in the total order of {@link
+ * Double#compare(double, double)}, in which -0.0 comes just before 0.0. Ranges are always finite.
+ * Where we can't promise anything, such as for a value that might be infinite or NaN, both ends of
+ * the range are NaN, which we call "top". Almost every operation on top yields top, since NaN
+ * propagates through arithmetic, but the methods that compare things have to check for it.
+ *
+ * <p>We don't need outward rounding to make the ranges sound. Floating-point rounding is monotonic,
+ * so if <code>a &lt;= a'</code> then <code>fl(a + b) &lt;= fl(a' + b)</code>, and likewise for the
+ * other arithmetic operators. The transcendental functions in {@link Math} are required to be
+ * semi-monotonic, which gives us the same guarantee for atan, tanh, exp, and log. So long as we
+ * compute the ends of a range with the same operations, in the same order, as the renderer computes
+ * each pixel, every pixel lands inside the range. A range whose ends are the same double, bit for
+ * bit, is therefore a promise that every pixel computes exactly that double.
+ */
+final class Intervals {
+  // Engineering note: the noise functions have no neat bound, so NOISE_BOUND is a loose one, and
+  // GeneTreeOptimizer uses it too, so that the two analyses agree. Each 3D OpenSimplex lattice
+  // point contributes at most (2 - r^2)^4 * |g| * r, where |g| <= 12.4 is the length of its
+  // gradient, which is at most 58.2, and no more than eight lattice points contribute to any one
+  // point. That's at most 466, divided by the normalization constant of 103, or 4.5. In practice,
+  // the noise stays within [-1, 1]. The inputs, though, have to be small enough that the noise
+  // function's arithmetic doesn't overflow, which is what NOISE_INPUT_LIMIT is for.
+
+  static final double NOISE_BOUND = 6.0;
+
+  // The same goes for the 4D noise: its gradients are at most sqrt(12) long, (2 - r^2)^4 * r is
+  // at most 4.71, and at most 13 lattice points contribute to a point, which is 212, divided by
+  // the 4D normalization constant of 30, or 7.1.
+  static final double NOISE_4D_BOUND = 8.0;
+  static final double NOISE_INPUT_LIMIT = 1e9;
+
+  // never instantiate this class
+  private Intervals() {}
+
+  /** Sets the range at <code>d</code>, or sets it to top if either end isn't finite. */
+  static void set(double[] lo, double[] hi, int d, double low, double high) {
+    if (Double.isFinite(low) && Double.isFinite(high)) {
+      lo[d] = low;
+      hi[d] = high;
+    } else {
+      top(lo, hi, d);
+    }
+  }
+
+  /** Sets the range at <code>d</code> to top: it could be anything. */
+  static void top(double[] lo, double[] hi, int d) {
+    lo[d] = Double.NaN;
+    hi[d] = Double.NaN;
+  }
+
+  /** Returns whether the range at <code>a</code> is top. */
+  static boolean isTop(double[] lo, int a) {
+    return Double.isNaN(lo[a]);
+  }
+
+  /**
+   * Returns whether the range at <code>a</code> is a single double, i.e., whether every pixel
+   * computes exactly <code>lo[a]</code>.
+   */
+  static boolean isPoint(double[] lo, double[] hi, int a) {
+    return !isTop(lo, a) && Double.doubleToRawLongBits(lo[a]) == Double.doubleToRawLongBits(hi[a]);
+  }
+
+  /**
+   * Returns whether every value in the range at <code>a</code> is at most every value in the range
+   * at <code>b</code>, so that max(a, b) is always b and min(a, b) is always a.
+   */
+  static boolean isBelow(double[] lo, double[] hi, int a, int b) {
+    return !isTop(lo, a) && !isTop(lo, b) && Double.compare(hi[a], lo[b]) <= 0;
+  }
+
+  /** Sets the range at <code>d</code> to <code>[low, high]</code>, unless a is top. */
+  private static void bounded(double[] lo, double[] hi, int a, int d, double low, double high) {
+    if (isTop(lo, a)) {
+      top(lo, hi, d);
+    } else {
+      set(lo, hi, d, low, high);
+    }
+  }
+
+  /** d = sin(a) or cos(a), either of which is within [-1, 1] for any finite a. */
+  static void sinusoid(double[] lo, double[] hi, int a, int d) {
+    bounded(lo, hi, a, d, -1.0, 1.0);
+  }
+
+  /**
+   * d = sin(a). Math.sin() is semi-monotonic, so wherever sine is monotonic across the range, its
+   * results are, too, and the ends of the range bound them. Otherwise, [-1, 1].
+   */
+  static void sine(double[] lo, double[] hi, int a, int d) {
+    if (isMonotonicSinusoid(lo[a], hi[a], 0.5)) {
+      ordered(lo, hi, d, Math.sin(lo[a]), Math.sin(hi[a]));
+    } else {
+      sinusoid(lo, hi, a, d);
+    }
+  }
+
+  /** d = cos(a), which works just like {@link #sine(double[], double[], int, int)}. */
+  static void cosine(double[] lo, double[] hi, int a, int d) {
+    if (isMonotonicSinusoid(lo[a], hi[a], 0.0)) {
+      ordered(lo, hi, d, Math.cos(lo[a]), Math.cos(hi[a]));
+    } else {
+      sinusoid(lo, hi, a, d);
+    }
+  }
+
+  // Whether [x0, x1] stays clear of the turning points, at (k + offset) * pi, of sine (offset 1/2)
+  // or cosine (offset 0), with a little room to spare for the rounding in working that out. Far
+  // from zero, we don't even try.
+  private static boolean isMonotonicSinusoid(double x0, double x1, double offset) {
+    if (!(Math.abs(x0) < 1e6 && Math.abs(x1) < 1e6)) {
+      return false;
+    }
+    return Math.floor(x0 / Math.PI - offset - 1e-9) == Math.floor(x1 / Math.PI - offset + 1e-9);
+  }
+
+  // Sets d to the range between two values, whichever way around they are.
+  private static void ordered(double[] lo, double[] hi, int d, double v0, double v1) {
+    set(lo, hi, d, Math.min(v0, v1), Math.max(v0, v1));
+  }
+
+  /** d = atan(a). */
+  static void atan(double[] lo, double[] hi, int a, int d) {
+    set(lo, hi, d, Math.atan(lo[a]), Math.atan(hi[a]));
+  }
+
+  /** d = tanh(a). */
+  static void tanh(double[] lo, double[] hi, int a, int d) {
+    set(lo, hi, d, Math.tanh(lo[a]), Math.tanh(hi[a]));
+  }
+
+  /** d = exp(a). */
+  static void exp(double[] lo, double[] hi, int a, int d) {
+    set(lo, hi, d, Math.exp(lo[a]), Math.exp(hi[a]));
+  }
+
+  /** d = log(a), which is NaN for anything less than zero. */
+  static void log(double[] lo, double[] hi, int a, int d) {
+    if (lo[a] >= 0.0) {
+      set(lo, hi, d, Math.log(lo[a]), Math.log(hi[a]));
+    } else {
+      top(lo, hi, d);
+    }
+  }
+
+  /**
+   * d = an approximation of a transcendental function, as in {@link FastMath}, which we only know
+   * to be somewhere near the range of the real thing.
+   */
+  static void approximate(double[] lo, double[] hi, int a, int d, double bound) {
+    bounded(lo, hi, a, d, -bound, bound);
+  }
+
+  /** d = -a. */
+  static void negate(double[] lo, double[] hi, int a, int d) {
+    set(lo, hi, d, -hi[a], -lo[a]);
+  }
+
+  /** d = |a|. */
+  static void abs(double[] lo, double[] hi, int a, int d) {
+    var low = lo[a];
+    var high = hi[a];
+    if (Double.compare(low, 0.0) >= 0) {
+      set(lo, hi, d, low, high);
+    } else if (Double.compare(high, -0.0) <= 0) {
+      set(lo, hi, d, -high, -low);
+    } else {
+      set(lo, hi, d, 0.0, Math.max(-low, high));
+    }
+  }
+
+  /** d = sign(a), as in {@link Allele#sign(double)}. */
+  static void sign(double[] lo, double[] hi, int a, int d) {
+    if (lo[a] >= 0.0) {
+      set(lo, hi, d, 1.0, 1.0);
+    } else if (hi[a] < 0.0) {
+      set(lo, hi, d, -1.0, -1.0);
+    } else {
+      set(lo, hi, d, -1.0, 1.0); // which is also right for top, since sign(NaN) is 1
+    }
+  }
+
+  /** d = clampNegative(a), as in {@link Allele#clampNegative(double)}. */
+  static void clampNegative(double[] lo, double[] hi, int a, int d) {
+    if (isTop(lo, a)) {
+      top(lo, hi, d);
+    } else if (hi[a] < 0.0) {
+      set(lo, hi, d, 0.0, 0.0);
+    } else if (lo[a] >= 0.0) {
+      set(lo, hi, d, lo[a], hi[a]);
+    } else {
+      set(lo, hi, d, -0.0, Math.max(0.0, hi[a]));
+    }
+  }
+
+  /** d = clampPositive(a), as in {@link Allele#clampPositive(double)}. */
+  static void clampPositive(double[] lo, double[] hi, int a, int d) {
+    if (isTop(lo, a)) {
+      top(lo, hi, d);
+    } else if (lo[a] > 0.0) {
+      set(lo, hi, d, 0.0, 0.0);
+    } else if (hi[a] <= 0.0) {
+      set(lo, hi, d, lo[a], hi[a]);
+    } else {
+      set(lo, hi, d, lo[a], 0.0);
+    }
+  }
+
+  /** d = floor(a). */
+  static void floor(double[] lo, double[] hi, int a, int d) {
+    set(lo, hi, d, Math.floor(lo[a]), Math.floor(hi[a]));
+  }
+
+  /** d = ceiling(a). */
+  static void ceiling(double[] lo, double[] hi, int a, int d) {
+    set(lo, hi, d, Math.ceil(lo[a]), Math.ceil(hi[a]));
+  }
+
+  /** d = wrap(a) or mantissa(a), either of which is within [-1, 1] for any finite a. */
+  static void unit(double[] lo, double[] hi, int a, int d) {
+    bounded(lo, hi, a, d, -1.0, 1.0);
+  }
+
+  /** d = clip(a), as in {@link Allele#clip(double)}. */
+  static void clip(double[] lo, double[] hi, int a, int d) {
+    set(lo, hi, d, Allele.clip(lo[a]), Allele.clip(hi[a]));
+  }
+
+  /** d = max(a, b). */
+  static void max(double[] lo, double[] hi, int a, int b, int d) {
+    set(lo, hi, d, Math.max(lo[a], lo[b]), Math.max(hi[a], hi[b]));
+  }
+
+  /** d = min(a, b). */
+  static void min(double[] lo, double[] hi, int a, int b, int d) {
+    set(lo, hi, d, Math.min(lo[a], lo[b]), Math.min(hi[a], hi[b]));
+  }
+
+  /** d = atan2(a, b), which is within [-pi, pi] unless a or b is NaN. */
+  static void atan2(double[] lo, double[] hi, int a, int b, int d, double bound) {
+    if (isTop(lo, a) || isTop(lo, b)) {
+      top(lo, hi, d);
+    } else {
+      set(lo, hi, d, -bound, bound);
+    }
+  }
+
+  /** d = a / b, as in {@link Allele#divide(double, double)}. */
+  static void divide(double[] lo, double[] hi, int a, int b, int d) {
+    if (lo[b] > 0.0 || hi[b] < 0.0) {
+      var q0 = lo[a] / lo[b];
+      var q1 = lo[a] / hi[b];
+      var q2 = hi[a] / lo[b];
+      var q3 = hi[a] / hi[b];
+      set(lo, hi, d, Math.min(Math.min(q0, q1), Math.min(q2, q3)), max(q0, q1, q2, q3));
+    } else {
+      top(lo, hi, d); // anything divided by something near zero could be huge
+    }
+  }
+
+  /** d = a * b. */
+  static void multiply(double[] lo, double[] hi, int a, int b, int d) {
+    set(lo, hi, d, productLow(lo[a], hi[a], lo[b], hi[b]), productHigh(lo[a], hi[a], lo[b], hi[b]));
+  }
+
+  /** d = a + b. */
+  static void add(double[] lo, double[] hi, int a, int b, int d) {
+    set(lo, hi, d, lo[a] + lo[b], hi[a] + hi[b]);
+  }
+
+  /** d = a - b. */
+  static void subtract(double[] lo, double[] hi, int a, int b, int d) {
+    set(lo, hi, d, lo[a] - hi[b], hi[a] - lo[b]);
+  }
+
+  /** d = dissolve(a, b, t), as in {@link Allele#dissolve(double, double, double)}. */
+  static void dissolve(double[] lo, double[] hi, int a, int b, int t, int d) {
+    // (1.0 - t) * a + t * b, one operator at a time
+    var oneLow = 1.0 - hi[t];
+    var oneHigh = 1.0 - lo[t];
+    set(
+        lo,
+        hi,
+        d,
+        productLow(oneLow, oneHigh, lo[a], hi[a]) + productLow(lo[t], hi[t], lo[b], hi[b]),
+        productHigh(oneLow, oneHigh, lo[a], hi[a]) + productHigh(lo[t], hi[t], lo[b], hi[b]));
+  }
+
+  /** d = noise(a, b, c), from {@link OpenSimplexNoise#eval(double, double, double)}. */
+  static void noise(double[] lo, double[] hi, int a, int b, int c, int d) {
+    if (isSmall(lo, hi, a) && isSmall(lo, hi, b) && isSmall(lo, hi, c)) {
+      set(lo, hi, d, -NOISE_BOUND, NOISE_BOUND);
+    } else {
+      top(lo, hi, d);
+    }
+  }
+
+  /** d = noise(a, b, c, w), from {@link OpenSimplexNoise#eval(double, double, double, double)}. */
+  static void noise4d(double[] lo, double[] hi, int a, int b, int c, int w, int d) {
+    if (isSmall(lo, hi, a) && isSmall(lo, hi, b) && isSmall(lo, hi, c) && isSmall(lo, hi, w)) {
+      set(lo, hi, d, -NOISE_4D_BOUND, NOISE_4D_BOUND);
+    } else {
+      top(lo, hi, d);
+    }
+  }
+
+  /** Returns whether the range at <code>a</code> is small enough to feed to the noise function. */
+  private static boolean isSmall(double[] lo, double[] hi, int a) {
+    return lo[a] >= -NOISE_INPUT_LIMIT && hi[a] <= NOISE_INPUT_LIMIT;
+  }
+
+  // The color space conversions compute each channel with the same operators, in the same order,
+  // as GeneProgram does for each pixel, which is what keeps the ranges sound.
+
+  /** d = rgb-to-ycrcb(a), all three channels at once, since each depends on all of a. */
+  static void rgbToYcrcb(double[] lo, double[] hi, int a, int d) {
+    var rl = lo[a];
+    var rh = hi[a];
+    var gl = lo[a + 1];
+    var gh = hi[a + 1];
+    var bl = lo[a + 2];
+    var bh = hi[a + 2];
+    set(
+        lo,
+        hi,
+        d,
+        scaledLow(.299, rl, rh) + scaledLow(.587, gl, gh) + scaledLow(.114, bl, bh),
+        scaledHigh(.299, rl, rh) + scaledHigh(.587, gl, gh) + scaledHigh(.114, bl, bh));
+    set(
+        lo,
+        hi,
+        d + 1,
+        scaledLow(.701 / 1.402, rl, rh)
+            - scaledHigh(.587 / 1.402, gl, gh)
+            - scaledHigh(.114 / 1.402, bl, bh),
+        scaledHigh(.701 / 1.402, rl, rh)
+            - scaledLow(.587 / 1.402, gl, gh)
+            - scaledLow(.114 / 1.402, bl, bh));
+    set(
+        lo,
+        hi,
+        d + 2,
+        scaledLow(-.299 / 1.772, rl, rh)
+            - scaledHigh(.587 / 1.772, gl, gh)
+            + scaledLow(.886 / 1.772, bl, bh),
+        scaledHigh(-.299 / 1.772, rl, rh)
+            - scaledLow(.587 / 1.772, gl, gh)
+            + scaledHigh(.886 / 1.772, bl, bh));
+  }
+
+  /** d = ycrcb-to-rgb(a), all three channels at once, since each depends on all of a. */
+  static void ycrcbToRgb(double[] lo, double[] hi, int a, int d) {
+    var yl = lo[a];
+    var yh = hi[a];
+    var rl = lo[a + 1];
+    var rh = hi[a + 1];
+    var bl = lo[a + 2];
+    var bh = hi[a + 2];
+    set(lo, hi, d, yl + scaledLow(1.402, rl, rh), yh + scaledHigh(1.402, rl, rh));
+    set(
+        lo,
+        hi,
+        d + 1,
+        yl - scaledHigh(.299 * 1.402 / .587, rl, rh) - scaledHigh(.114 * 1.772 / .587, bl, bh),
+        yh - scaledLow(.299 * 1.402 / .587, rl, rh) - scaledLow(.114 * 1.772 / .587, bl, bh));
+    set(lo, hi, d + 2, yl + scaledLow(1.772, bl, bh), yh + scaledHigh(1.772, bl, bh));
+  }
+
+  /** The low end of the range of <code>k * a</code>, for a constant <code>k</code>. */
+  private static double scaledLow(double k, double low, double high) {
+    return Math.min(k * low, k * high);
+  }
+
+  /** The high end of the range of <code>k * a</code>, for a constant <code>k</code>. */
+  private static double scaledHigh(double k, double low, double high) {
+    return Math.max(k * low, k * high);
+  }
+
+  /** The low end of the range of the product of <code>[al, ah]</code> and <code>[bl, bh]</code>. */
+  private static double productLow(double al, double ah, double bl, double bh) {
+    return Math.min(Math.min(al * bl, al * bh), Math.min(ah * bl, ah * bh));
+  }
+
+  /**
+   * The high end of the range of the product of <code>[al, ah]</code> and <code>[bl, bh]</code>.
+   */
+  private static double productHigh(double al, double ah, double bl, double bh) {
+    return max(al * bl, al * bh, ah * bl, ah * bh);
+  }
+
+  private static double max(double q0, double q1, double q2, double q3) {
+    return Math.max(Math.max(q0, q1), Math.max(q2, q3));
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import org.junit.jupiter.api.Test;
+
+public class IntervalsTest {
+  private static final int NUM_RANGES = 2000;
+  private static final int NUM_SAMPLES = 20;
+
+  // everything from tiny to far past the noise functions' input limit
+  private static final double[] SCALES = {1e-6, 1e-2, 1.0, 3.0, 100.0, 1e6, 1e10};
+
+  // the values an operand with a top range might have
+  private static final double[] WILD = {
+    Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 1e300, -1e300, 0.0, -0.0
+  };
+
+  private interface UnaryRange {
+    void apply(double[] lo, double[] hi, int a, int d);
+  }
+
+  private interface BinaryRange {
+    void apply(double[] lo, double[] hi, int a, int b, int d);
+  }
+
+  private interface TernaryRange {
+    void apply(double[] lo, double[] hi, int a, int b, int c, int d);
+  }
+
+  private interface TernaryOperator {
+    double apply(double a, double b, double c);
+  }
+
+  /**
+   * Sets the range at <code>a</code> to something random: now and then top, or a single value, or
+   * one that starts or ends at zero, but usually a range around zero at one of the {@link #SCALES}.
+   */
+  private static void randomRange(Random random, double[] lo, double[] hi, int a) {
+    var kind = random.nextInt(20);
+    var scale = SCALES[random.nextInt(SCALES.length)];
+    var v0 = (2.0 * random.nextDouble() - 1.0) * scale;
+    var v1 = (2.0 * random.nextDouble() - 1.0) * scale;
+    if (kind == 0) {
+      Intervals.top(lo, hi, a);
+    } else if (kind == 1) {
+      Intervals.set(lo, hi, a, v0, v0);
+    } else if (kind == 2) {
+      Intervals.set(lo, hi, a, random.nextBoolean() ? 0.0 : -0.0, Math.abs(v0));
+    } else if (kind == 3) {
+      Intervals.set(lo, hi, a, -Math.abs(v0), random.nextBoolean() ? 0.0 : -0.0);
+    } else {
+      Intervals.set(lo, hi, a, Math.min(v0, v1), Math.max(v0, v1));
+    }
+  }
+
+  /** A value somewhere in the range at <code>a</code>, quite often one of its ends. */
+  private static double sample(Random random, double[] lo, double[] hi, int a) {
+    if (Intervals.isTop(lo, a)) {
+      return random.nextBoolean()
+          ? WILD[random.nextInt(WILD.length)]
+          : (2.0 * random.nextDouble() - 1.0) * SCALES[random.nextInt(SCALES.length)];
+    }
+    switch (random.nextInt(4)) {
+      case 0:
+        return lo[a];
+      case 1:
+        return hi[a];
+      default:
+        return Math.min(hi[a], lo[a] + random.nextDouble() * (hi[a] - lo[a]));
+    }
+  }
+
+  /**
+   * Whether the range at <code>d</code> promises to hold the given value; see {@link Intervals}.
+   */
+  private static boolean contains(double[] lo, double[] hi, int d, double value) {
+    return Intervals.isTop(lo, d)
+        || (Double.compare(lo[d], value) <= 0 && Double.compare(value, hi[d]) <= 0);
+  }
+
+  private static String describe(double[] lo, double[] hi, int a) {
+    return "[" + lo[a] + ", " + hi[a] + "]";
+  }
+
+  private static void checkUnary(String name, UnaryRange range, DoubleUnaryOperator op) {
+    var random = new Random(name.hashCode());
+    var lo = new double[2];
+    var hi = new double[2];
+    for (var i = 0; i < NUM_RANGES; i++) {
+      randomRange(random, lo, hi, 0);
+      range.apply(lo, hi, 0, 1);
+      for (var s = 0; s < NUM_SAMPLES; s++) {
+        var a = sample(random, lo, hi, 0);
+        var result = op.applyAsDouble(a);
+        assertTrue(
+            contains(lo, hi, 1, result),
+            name + "(" + a + ") = " + result + ", not in " + describe(lo, hi, 1));
+      }
+    }
+  }
+
+  private static void checkBinary(String name, BinaryRange range, DoubleBinaryOperator op) {
+    var random = new Random(name.hashCode());
+    var lo = new double[3];
+    var hi = new double[3];
+    for (var i = 0; i < NUM_RANGES; i++) {
+      randomRange(random, lo, hi, 0);
+      randomRange(random, lo, hi, 1);
+      range.apply(lo, hi, 0, 1, 2);
+      for (var s = 0; s < NUM_SAMPLES; s++) {
+        var a = sample(random, lo, hi, 0);
+        var b = sample(random, lo, hi, 1);
+        var result = op.applyAsDouble(a, b);
+        assertTrue(
+            contains(lo, hi, 2, result),
+            name + "(" + a + ", " + b + ") = " + result + ", not in " + describe(lo, hi, 2));
+      }
+    }
+  }
+
+  private static void checkTernary(String name, TernaryRange range, TernaryOperator op) {
+    var random = new Random(name.hashCode());
+    var lo = new double[4];
+    var hi = new double[4];
+    for (var i = 0; i < NUM_RANGES; i++) {
+      randomRange(random, lo, hi, 0);
+      randomRange(random, lo, hi, 1);
+      randomRange(random, lo, hi, 2);
+      range.apply(lo, hi, 0, 1, 2, 3);
+      for (var s = 0; s < NUM_SAMPLES; s++) {
+        var a = sample(random, lo, hi, 0);
+        var b = sample(random, lo, hi, 1);
+        var c = sample(random, lo, hi, 2);
+        var result = op.apply(a, b, c);
+        assertTrue(
+            contains(lo, hi, 3, result),
+            String.format(
+                "%s(%s, %s, %s) = %s, not in %s", name, a, b, c, result, describe(lo, hi, 3)));
+      }
+    }
+  }
+
+  @Test
+  public void testTranscendentals() {
+    checkUnary("sine", Intervals::sine, Math::sin);
+    checkUnary("cosine", Intervals::cosine, Math::cos);
+    checkUnary("sinusoid", Intervals::sinusoid, Math::sin);
+    checkUnary("atan", Intervals::atan, Math::atan);
+    checkUnary("tanh", Intervals::tanh, Math::tanh);
+    checkUnary("exp", Intervals::exp, Math::exp);
+    checkUnary("log", Intervals::log, Math::log);
+  }
+
+  @Test
+  public void testPiecewise() {
+    checkUnary("negate", Intervals::negate, a -> -a);
+    checkUnary("abs", Intervals::abs, Math::abs);
+    checkUnary("sign", Intervals::sign, Allele::sign);
+    checkUnary("clamp-negative", Intervals::clampNegative, Allele::clampNegative);
+    checkUnary("clamp-positive", Intervals::clampPositive, Allele::clampPositive);
+    checkUnary("floor", Intervals::floor, Math::floor);
+    checkUnary("ceiling", Intervals::ceiling, Math::ceil);
+    checkUnary("wrap", Intervals::unit, Allele::wrap);
+    checkUnary("mantissa", Intervals::unit, Allele::getMantissa);
+    checkUnary("clip", Intervals::clip, Allele::clip);
+  }
+
+  @Test
+  public void testArithmetic() {
+    checkBinary("max", Intervals::max, Math::max);
+    checkBinary("min", Intervals::min, Math::min);
+    checkBinary(
+        "atan2",
+        (lo, hi, a, b, d) -> Intervals.atan2(lo, hi, a, b, d, Math.nextUp(Math.PI)),
+        Math::atan2);
+    checkBinary("divide", Intervals::divide, Allele::divide);
+    checkBinary("multiply", Intervals::multiply, (a, b) -> a * b);
+    checkBinary("add", Intervals::add, Double::sum);
+    checkBinary("subtract", Intervals::subtract, (a, b) -> a - b);
+    checkTernary("dissolve", Intervals::dissolve, Allele::dissolve);
+  }
+
+  @Test
+  public void testNoise() {
+    checkTernary("noise", Intervals::noise, Allele.simplexNoise::eval);
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG file a few rows at a time, so that an image far too big to hold in memory can be
+ * written as it's rendered (see {@link PosterExport}). The image is 8-bit RGB, without alpha, like
+ * the images the renderers make.
+ *
+ * <p>Every so often, the writer can be asked for a {@link Checkpoint}: everything up to that row is
+ * then on disk, and a later writer can {@link #resume(Path, int, int, Checkpoint)} from there, even
+ * if this one never got to finish, so an export that's interrupted needn't start over.
+ */
+final class PngBandWriter implements Closeable {
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+  // the biggest IDAT chunk we write; a reader has to buffer a whole chunk to check its CRC
+  static final int MAX_CHUNK_BYTES = 1 << 20;
+
+  private static final int ADLER_BASE = 65521;
+
+  /**
+   * Where a writer had got to: how many rows it had written, how many bytes of the file they make,
+   * and the Adler-32 checksum of the image data so far, which the end of the file needs.
+   */
+  static final class Checkpoint {
+    final long rows;
+    final long offset;
+    final long adler;
+
+    Checkpoint(long rows, long offset, long adler) {
+      this.rows = rows;
+      this.offset = offset;
+      this.adler = adler;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Checkpoint(%d rows, %d bytes)", rows, offset);
+    }
+  }
+
+  private final FileChannel channel;
+  private final int width;
+  private final int height;
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final Adler32 rowAdler = new Adler32();
+  private final byte[] scanline;
+  private final byte[] deflated = new byte[64 * 1024];
+  private final ByteBuffer chunk = ByteBuffer.allocate(MAX_CHUNK_BYTES);
+  private long rows;
+  private long adler;
+
+  private PngBandWriter(FileChannel channel, int width, int height, long rows, long adler) {
+    this.channel = channel;
+    this.width = width;
+    this.height = height;
+    this.scanline = new byte[1 + 3 * width];
+    this.rows = rows;
+    this.adler = adler;
+  }
+
+  /**
+   * Starts a new PNG file of the given size, replacing whatever was there.
+   *
+   * @throws IllegalArgumentException if the width or height isn't positive, or the width is more
+   *     than fits in a row
+   */
+  static PngBandWriter create(Path file, int width, int height) throws IOException {
+    if (width <= 0 || height <= 0 || width > (Integer.MAX_VALUE - 1) / 3) {
+      throw new IllegalArgumentException("bad PNG size: " + width + "x" + height);
+    }
+    var channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    var writer = new PngBandWriter(channel, width, height, 0, 1);
+    writeHeader(channel, width, height);
+
+    // the image data is one zlib stream, spread across as many IDAT chunks as it takes; we write
+    // its header and trailer ourselves, since we have to be able to pick it up in the middle
+    writer.chunk.put((byte) 0x78).put((byte) 0x9c);
+    return writer;
+  }
+
+  /**
+   * Picks up writing a PNG file of the given size where an earlier writer left off, throwing away
+   * anything in the file after the checkpoint.
+   *
+   * @throws IOException if the file is shorter than the checkpoint says it should be
+   */
+  static PngBandWriter resume(Path file, int width, int height, Checkpoint checkpoint)
+      throws IOException {
+    var channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    if (channel.size() < checkpoint.offset) {
+      channel.close();
+      throw new IOException("file is shorter than its checkpoint: " + file);
+    }
+    channel.truncate(checkpoint.offset);
+    channel.position(checkpoint.offset);
+    return new PngBandWriter(channel, width, height, checkpoint.rows, checkpoint.adler);
+  }
+
+  /** How many rows have been written so far. */
+  long rowsWritten() {
+    return rows;
+  }
+
+  /**
+   * Writes the next <code>count</code> rows of the image, from <code>pixels</code>, which holds
+   * them in row-major order, as packed RGB ints like {@link RgbColor#toRgb(double, double, double)}
+   * makes. Whatever is in the top byte is ignored.
+   *
+   * @throws IllegalStateException if that's more rows than the image has left
+   */
+  void writeRows(int[] pixels, int count) throws IOException {
+    if (count > height - rows) {
+      throw new IllegalStateException("too many rows: " + (rows + count) + " of " + height);
+    }
+    for (var y = 0; y < count; y++) {
+      filterRow(pixels, y * width, width, scanline);
+      rowAdler.reset();
+      rowAdler.update(scanline);
+      adler = combineAdler(adler, rowAdler.getValue(), scanline.length);
+
+      deflater.setInput(scanline);
+      while (!deflater.needsInput()) {
+        emit(deflater.deflate(deflated, 0, deflated.length, Deflater.NO_FLUSH));
+      }
+      rows++;
+    }
+  }
+
+  /**
+   * Gets everything written so far onto the disk, and returns a checkpoint that a later writer can
+   * resume from. Compression restarts from scratch after each checkpoint, so they shouldn't be too
+   * close together; every few megabytes of pixels is plenty.
+   */
+  Checkpoint checkpoint() throws IOException {
+    // a full flush ends the deflate stream's current block on a byte boundary, and forgets
+    // everything before it, so a new Deflater can carry on from here as if it were this one
+    int count;
+    do {
+      count = deflater.deflate(deflated, 0, deflated.length, Deflater.FULL_FLUSH);
+      emit(count);
+    } while (count == deflated.length);
+    flushChunk();
+    channel.force(false);
+    return new Checkpoint(rows, channel.position(), adler);
+  }
+
+  /**
+   * Ends the image, once every row has been written, and closes the file.
+   *
+   * @throws IllegalStateException if some rows haven't been written yet
+   */
+  void finish() throws IOException {
+    if (rows != height) {
+      throw new IllegalStateException("only " + rows + " of " + height + " rows written");
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      emit(deflater.deflate(deflated));
+    }
+    ensureChunkRoom(4);
+    chunk.putInt((int) adler);
+    flushChunk();
+    writeChunk("IEND", new byte[0], 0);
+    channel.force(false);
+    close();
+  }
+
+  @Override
+  public void close() throws IOException {
+    deflater.end();
+    channel.close();
+  }
+
+  private void emit(int count) throws IOException {
+    var offset = 0;
+    while (offset < count) {
+      ensureChunkRoom(1);
+      var n = Math.min(count - offset, chunk.remaining());
+      chunk.put(deflated, offset, n);
+      offset += n;
+    }
+  }
+
+  private void ensureChunkRoom(int bytes) throws IOException {
+    if (chunk.remaining() < bytes) {
+      flushChunk();
+    }
+  }
+
+  private void flushChunk() throws IOException {
+    if (chunk.position() > 0) {
+      writeChunk("IDAT", chunk.array(), chunk.position());
+      chunk.clear();
+    }
+  }
+
+  /** Writes the PNG signature and the header chunk for an 8-bit RGB image of the given size. */
+  static void writeHeader(FileChannel channel, int width, int height) throws IOException {
+    var header = ByteBuffer.allocate(13);
+    header.putInt(width).putInt(height);
+    header.put((byte) 8); // bits per channel
+    header.put((byte) 2); // truecolor, no alpha
+    header.put((byte) 0); // deflate
+    header.put((byte) 0); // the only filter method there is, which picks a filter for each row
+    header.put((byte) 0); // not interlaced
+    writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+    writeChunk(channel, "IHDR", header.array(), 13);
+  }
+
+  /**
+   * Fills <code>scanline</code>, which must be <code>1 + 3 * width</code> bytes, with the PNG
+   * scanline for the row of <code>width</code> pixels starting at <code>offset</code>.
+   */
+  static void filterRow(int[] pixels, int offset, int width, byte[] scanline) {
+    // The "sub" filter stores each byte as the difference from the same channel of the pixel to
+    // its left, which makes smooth gradients, like most of our images, far more compressible than
+    // the raw pixels, and unlike the filters that look at the row above, it doesn't need anything
+    // from a previous band to pick up after a checkpoint.
+    scanline[0] = 1;
+    var previous = 0;
+    for (var x = 0; x < width; x++) {
+      var pixel = pixels[offset + x];
+      var i = 1 + 3 * x;
+      scanline[i] = (byte) ((pixel >> 16) - (previous >> 16));
+      scanline[i + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+      scanline[i + 2] = (byte) (pixel - previous);
+      previous = pixel;
+    }
+  }
+
+  private void writeChunk(String type, byte[] data, int length) throws IOException {
+    writeChunk(channel, type, data, length);
+  }
+
+  /** Writes a PNG chunk of the given type, with its length and CRC, to the channel. */
+  static void writeChunk(FileChannel channel, String type, byte[] data, int length)
+      throws IOException {
+    var typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    var crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+
+    var header = ByteBuffer.allocate(8);
+    header.putInt(length).put(typeBytes).flip();
+    var trailer = ByteBuffer.allocate(4);
+    trailer.putInt((int) crc.getValue()).flip();
+    writeFully(channel, header);
+    writeFully(channel, ByteBuffer.wrap(data, 0, length));
+    writeFully(channel, trailer);
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  // The Adler-32 checksum of two byte strings, one after the other, from the checksums of each
+  // of them and the length of the second, as in zlib's adler32_combine(). This lets us carry on
+  // the checksum from a checkpoint, which java.util.zip.Adler32 can't start from.
+  static long combineAdler(long adler1, long adler2, long length2) {
+    var remainder = length2 % ADLER_BASE;
+    var sum1 = adler1 & 0xffff;
+    var sum2 = (remainder * sum1) % ADLER_BASE;
+    sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+    sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+    sum1 %= ADLER_BASE;
+    sum2 %= ADLER_BASE;
+    return (sum2 << 16) | sum1;
+  }
+}
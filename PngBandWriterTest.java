@@ -0,0 +1,144 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+public class PngBandWriterTest {
+  /** An image's worth of packed RGB pixels: smooth gradients, with a little noise thrown in. */
+  private static int[] pixels(Random random, int width, int height) {
+    var result = new int[width * height];
+    for (var y = 0; y < height; y++) {
+      for (var x = 0; x < width; x++) {
+        var red = 255 * x / width;
+        var green = 255 * y / height;
+        var blue = random.nextInt(8) * 32;
+        result[y * width + x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+      }
+    }
+    return result;
+  }
+
+  /** The rows from <code>start</code> up to <code>end</code> of an image, in row-major order. */
+  private static int[] rows(int[] pixels, int width, int start, int end) {
+    var result = new int[(end - start) * width];
+    System.arraycopy(pixels, start * width, result, 0, result.length);
+    return result;
+  }
+
+  /** Counts the pixels of the PNG file that aren't the given pixels. */
+  private static int differences(Path file, int[] pixels, int width, int height)
+      throws IOException {
+    var image = ImageIO.read(file.toFile());
+    assertEquals(width, image.getWidth());
+    assertEquals(height, image.getHeight());
+    var count = 0;
+    for (var y = 0; y < height; y++) {
+      for (var x = 0; x < width; x++) {
+        if ((image.getRGB(x, y) & 0xffffff) != (pixels[y * width + x] & 0xffffff)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testWriteInBands() throws IOException {
+    var random = new Random(23);
+    var width = 301;
+    var height = 97;
+    var pixels = pixels(random, width, height);
+    var file = Files.createTempFile("bands", ".png");
+    try {
+      var writer = PngBandWriter.create(file, width, height);
+      for (var start = 0; start < height; start += 10) {
+        var end = Math.min(height, start + 10);
+        writer.writeRows(rows(pixels, width, start, end), end - start);
+        if (start % 30 == 0) {
+          writer.checkpoint();
+        }
+      }
+      writer.finish();
+      assertEquals(0, differences(file, pixels, width, height));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testResumeFromCheckpoint() throws IOException {
+    var random = new Random(24);
+    var width = 1000;
+    var height = 400;
+    var pixels = pixels(random, width, height);
+    var file = Files.createTempFile("resume", ".png");
+    try {
+      // the first writer gets past its checkpoint, and then stops before finishing, leaving
+      // rows after the checkpoint that the second one has to throw away and write again
+      var first = PngBandWriter.create(file, width, height);
+      first.writeRows(rows(pixels, width, 0, 150), 150);
+      var checkpoint = first.checkpoint();
+      assertEquals(150L, checkpoint.rows);
+      first.writeRows(rows(pixels, width, 150, 300), 150);
+      first.close();
+
+      var second = PngBandWriter.resume(file, width, height, checkpoint);
+      assertEquals(150L, second.rowsWritten());
+      second.writeRows(rows(pixels, width, 150, height), height - 150);
+      second.finish();
+      assertEquals(0, differences(file, pixels, width, height));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testCombineAdler() {
+    var random = new Random(25);
+    // lengths either side of the modulus, and of the 5552 bytes zlib sums at a time
+    int[] lengths = {0, 1, 2, 100, 5552, 5553, 65520, 65521, 65522, 200_000};
+    for (var first : lengths) {
+      for (var second : lengths) {
+        var bytes = new byte[first + second];
+        // all ones makes the sums grow as fast as they can
+        if (random.nextBoolean()) {
+          random.nextBytes(bytes);
+        } else {
+          Arrays.fill(bytes, (byte) 0xff);
+        }
+
+        var whole = new Adler32();
+        whole.update(bytes);
+        var head = new Adler32();
+        head.update(bytes, 0, first);
+        var tail = new Adler32();
+        tail.update(bytes, first, second);
+
+        assertEquals(
+            whole.getValue(),
+            PngBandWriter.combineAdler(head.getValue(), tail.getValue(), second),
+            first + " + " + second + " bytes");
+      }
+    }
+  }
+}
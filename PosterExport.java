@@ -0,0 +1,313 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import edu.rice.autograder.annotations.GradeCoverage;
+import edu.rice.io.Files;
+import edu.rice.json.Parser;
+import edu.rice.util.Log;
+import io.vavr.control.Option;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders an image function to a PNG file of any size that a PNG can be, like a poster-sized print
+ * of a bred image, without ever holding the whole image in memory. The image is rendered a band of
+ * rows at a time, each band in parallel as usual (see {@link TileScheduler}), and each band is
+ * compressed and written to the file on a thread of its own while the next band renders. At most
+ * {@link #BANDS_IN_FLIGHT} bands are in memory at once.
+ *
+ * <p>After every band, the export records how far it has got in a file next to the PNG, named like
+ * it with <code>.progress</code> on the end. If the export is interrupted, running it again with
+ * the same image and size picks up from the last band that was written, rather than starting over.
+ * The progress file is removed once the PNG is done.
+ *
+ * <p>Run it with the name of a file holding a gene tree as JSON (as the <code>/string/</code> route
+ * makes), the width and height, the name of the PNG to write, and optionally a {@link Precision}.
+ */
+@GradeCoverage(project = "PP1", exclude = true)
+@GradeCoverage(project = "PP2", exclude = true)
+@GradeCoverage(project = "PP3", exclude = true)
+public class PosterExport {
+  private static final String TAG = "PosterExport";
+
+  /** How many bands, rendering, waiting to be written, or being written, there are at most. */
+  static final int BANDS_IN_FLIGHT = 3;
+
+  /** The most pixels in a band, if nobody asks for something else: 4 megapixels, or 16 MB. */
+  static final int MAX_BAND_PIXELS = 4 * 1024 * 1024;
+
+  /** What {@link #export} tells about its progress, after each band is on disk. */
+  public interface ProgressListener {
+    /** Called with how many of the image's rows have been written, and how long it's taken. */
+    void rowsWritten(long rows, long totalRows, long nanos);
+  }
+
+  // never instantiate this class
+  private PosterExport() {}
+
+  /** Main entry point. See the class comment for the arguments. */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4) {
+      Log.e(TAG, "usage: PosterExport tree.json width height output.png [precision]");
+      return;
+    }
+    var tree =
+        Files.read(args[0])
+            .toOption()
+            .flatMap(json -> Parser.parseJsonValue(json))
+            .flatMap(json -> GeneTree.of(json));
+    if (tree.isEmpty()) {
+      Log.e(TAG, () -> "couldn't read a gene tree from " + args[0]);
+      return;
+    }
+    var width = Integer.parseInt(args[1]);
+    var height = Integer.parseInt(args[2]);
+    var precision = Precision.of(args.length > 4 ? args[4] : null).getOrElse(Precision.DOUBLE);
+
+    export(
+        tree.get().toCompiledImageFunction(precision),
+        width,
+        height,
+        Viewport.DEFAULT,
+        Path.of(args[3]),
+        tree.get().toJson() + " " + precision,
+        defaultBandHeight(width),
+        (rows, totalRows, nanos) ->
+            Log.iformat(
+                TAG,
+                "%d of %d rows (%.1f%%), %.1f s, about %.0f s to go",
+                rows,
+                totalRows,
+                100.0 * rows / totalRows,
+                nanos / 1e9,
+                nanos / 1e9 * (totalRows - rows) / Math.max(1, rows)),
+        CancellationToken.NONE);
+  }
+
+  /**
+   * How many rows go in each band of an image of the given width, if nobody asks for something
+   * else: as many whole rows of tiles as fit in {@link #MAX_BAND_PIXELS}, and at least one.
+   */
+  static int defaultBandHeight(int width) {
+    var tileRows = MAX_BAND_PIXELS / ((long) width * ImageFunction.TILE_SIZE);
+    return (int) Math.max(1, tileRows) * ImageFunction.TILE_SIZE;
+  }
+
+  /**
+   * Renders the given function, as seen through the given viewport, to a PNG file of the given
+   * size, <code>bandHeight</code> rows at a time. If an earlier export of the same thing to the
+   * same file was interrupted, carries on from where it got to. The <code>description</code> is
+   * anything that identifies what's being rendered, like the tree and the precision, so that we
+   * never resume an export of something else; it's only compared with what it was last time. Gives
+   * up if <code>token</code> is cancelled, leaving the file ready to be resumed.
+   *
+   * @throws IllegalArgumentException if the size or band height isn't positive, or a band is more
+   *     pixels than fit in an array
+   * @throws CancellationException if the token was cancelled before the image was done
+   */
+  public static void export(
+      ImageFunction function,
+      int xsize,
+      int ysize,
+      Viewport viewport,
+      Path file,
+      String description,
+      int bandHeight,
+      ProgressListener listener,
+      CancellationToken token)
+      throws IOException {
+    if (bandHeight <= 0 || (long) xsize * bandHeight > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("bad band height: " + bandHeight);
+    }
+    var start = System.nanoTime();
+    var progressFile = Path.of(file + ".progress");
+    var fingerprint = fingerprint(xsize, ysize, viewport, description);
+
+    var checkpoint = readCheckpoint(progressFile, fingerprint);
+    PngBandWriter writer;
+    if (checkpoint.isDefined() && java.nio.file.Files.exists(file)) {
+      Log.iformat(TAG, "resuming %s after %d of %d rows", file, checkpoint.get().rows, ysize);
+      writer = PngBandWriter.resume(file, xsize, ysize, checkpoint.get());
+    } else {
+      writer = PngBandWriter.create(file, xsize, ysize);
+    }
+
+    // Engineering note: compressing the pixels takes about as long as rendering them for simple
+    // trees, and deflate is stuck on one thread, so it mustn't hold up the render pool. Bands go
+    // round in a loop: the render pool fills a free band, the writer thread compresses and writes
+    // it and hands it back, and meanwhile the next band is rendering. With three bands, the
+    // render pool always has one to fill while the writer works on another.
+    var free = new ArrayBlockingQueue<int[]>(BANDS_IN_FLIGHT);
+    var writes = new ArrayDeque<Future<?>>();
+    var executor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              var thread = new Thread(runnable, "poster-writer");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    var written = false;
+    try {
+      for (var i = 0; i < BANDS_IN_FLIGHT; i++) {
+        free.add(new int[xsize * Math.min(bandHeight, ysize)]);
+      }
+
+      for (var ystart = (int) writer.rowsWritten(); ystart < ysize; ystart += bandHeight) {
+        var band = free.take();
+        // if the writer failed, it won't be handing back any more bands, so there's no point
+        // in rendering this one
+        while (!writes.isEmpty() && writes.peek().isDone()) {
+          writes.poll().get();
+        }
+
+        var rows = Math.min(bandHeight, ysize - ystart);
+        function.renderRows(xsize, ysize, ystart, rows, viewport, band, token);
+        writes.add(
+            executor.submit(
+                () -> {
+                  try {
+                    writer.writeRows(band, rows);
+                    var saved = writer.checkpoint();
+                    writeCheckpoint(progressFile, fingerprint, saved);
+                    listener.rowsWritten(saved.rows, ysize, System.nanoTime() - start);
+                  } finally {
+                    free.add(band);
+                  }
+                  return null;
+                }));
+      }
+      while (!writes.isEmpty()) {
+        writes.poll().get();
+      }
+      written = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("export interrupted");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException("failed to write " + file, e.getCause());
+    } finally {
+      // whatever happens, let the writer finish what it has, so the checkpoint is good
+      executor.shutdown();
+      awaitQuietly(executor);
+      if (!written) {
+        writer.close();
+      }
+    }
+
+    writer.finish();
+    java.nio.file.Files.deleteIfExists(progressFile);
+    Log.iformat(
+        TAG,
+        "exported %s (%dx%d), time: %.3f s",
+        file,
+        xsize,
+        ysize,
+        (System.nanoTime() - start) / 1e9);
+  }
+
+  private static void awaitQuietly(ExecutorService executor) {
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        Log.i(TAG, "waiting for the last band to be written");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // The progress file is a Properties file, with the checkpoint and the fingerprint of the export
+  // it belongs to. It's written to a temporary file and moved into place, so it's never half
+  // written, and only after the PNG it describes is on disk.
+
+  private static Option<PngBandWriter.Checkpoint> readCheckpoint(
+      Path progressFile, String fingerprint) {
+    var properties = new Properties();
+    try (InputStream input = java.nio.file.Files.newInputStream(progressFile)) {
+      properties.load(input);
+      if (!fingerprint.equals(properties.getProperty("fingerprint"))) {
+        Log.i(TAG, () -> progressFile + " is for a different export; starting over");
+        return none();
+      }
+      return some(
+          new PngBandWriter.Checkpoint(
+              Long.parseLong(properties.getProperty("rows")),
+              Long.parseLong(properties.getProperty("offset")),
+              Long.parseLong(properties.getProperty("adler"))));
+    } catch (IOException | RuntimeException e) {
+      // no progress file, or not one we can use, so there's nothing to resume
+      return none();
+    }
+  }
+
+  private static void writeCheckpoint(
+      Path progressFile, String fingerprint, PngBandWriter.Checkpoint checkpoint)
+      throws IOException {
+    var properties = new Properties();
+    properties.setProperty("fingerprint", fingerprint);
+    properties.setProperty("rows", Long.toString(checkpoint.rows));
+    properties.setProperty("offset", Long.toString(checkpoint.offset));
+    properties.setProperty("adler", Long.toString(checkpoint.adler));
+
+    var temporary = Path.of(progressFile + ".tmp");
+    try (OutputStream output = java.nio.file.Files.newOutputStream(temporary)) {
+      properties.store(output, "PosterExport progress");
+    }
+    java.nio.file.Files.move(
+        temporary,
+        progressFile,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String fingerprint(int xsize, int ysize, Viewport viewport, String description) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      digest.update(
+          String.join(
+                  " ",
+                  xsize + "x" + ysize,
+                  Double.toString(viewport.centerX),
+                  Double.toString(viewport.centerY),
+                  Double.toString(viewport.scale),
+                  description)
+              .getBytes(StandardCharsets.UTF_8));
+      return String.format("%064x", new BigInteger(1, digest.digest()));
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to have SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import io.vavr.control.Option;
+import java.awt.image.BufferedImage;
+
+/**
+ * How precisely to compute the pixels of an image. Every render request can pick its own: a
+ * thumbnail that's going to be rounded to eight bits per channel doesn't need the same care as an
+ * export that someone might zoom into.
+ */
+public enum Precision {
+  /** Double precision throughout. This is the reference: every other engine is measured by it. */
+  DOUBLE,
+
+  /**
+   * Like {@link #DOUBLE}, but with the transcendental alleles (sine, cosine, arctan, arctan2, tanh,
+   * and log) computed for whole tiles of pixels by the approximations in {@link FastMath}, rather
+   * than by {@link Math}. Good enough for thumbnails, which is where speed matters most. {@link
+   * #DOUBLE} is the "strict" tier, for exports.
+   */
+  FAST;
+
+  /** Parses a precision by name, as in a request's query string, ignoring case. */
+  public static Option<Precision> of(String name) {
+    if (name == null) {
+      return none();
+    }
+    for (var precision : values()) {
+      if (precision.name().equalsIgnoreCase(name)) {
+        return some(precision);
+      }
+    }
+    return none();
+  }
+
+  /**
+   * Returns the largest difference between two images, in any channel of any pixel, measured in
+   * eight-bit steps. Zero means the images are identical. The images must be the same size.
+   */
+  public static int maxChannelError(BufferedImage expected, BufferedImage actual) {
+    if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()) {
+      throw new IllegalArgumentException("images must be the same size");
+    }
+
+    var maxError = 0;
+    for (var y = 0; y < expected.getHeight(); y++) {
+      for (var x = 0; x < expected.getWidth(); x++) {
+        var a = expected.getRGB(x, y);
+        var b = actual.getRGB(x, y);
+        for (var shift = 0; shift <= 16; shift += 8) {
+          var error = Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+          maxError = Math.max(maxError, error);
+        }
+      }
+    }
+    return maxError;
+  }
+}
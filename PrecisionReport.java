@@ -0,0 +1,102 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import edu.rice.autograder.annotations.GradeCoverage;
+import edu.rice.util.Log;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Measures how far each of the faster {@link Precision} tiers strays from {@link Precision#DOUBLE},
+ * and how much faster it is, by rendering a batch of random trees every way. Run it with optional
+ * arguments: the number of trees (default 200), the image size (default 256), and the random seed
+ * (default 215).
+ */
+@GradeCoverage(project = "PP1", exclude = true)
+@GradeCoverage(project = "PP2", exclude = true)
+@GradeCoverage(project = "PP3", exclude = true)
+public class PrecisionReport {
+  private static final String TAG = "PrecisionReport";
+  private static final int MAX_DEPTH = 8;
+
+  // never instantiate this class
+  private PrecisionReport() {}
+
+  /** Main entry point. See the class comment for the arguments. */
+  public static void main(String[] args) {
+    var numTrees = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    var size = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+    var random = new Random(args.length > 2 ? Long.parseLong(args[2]) : 215);
+
+    // everything is indexed by Precision.ordinal(), with DOUBLE as the reference
+    var precisions = Precision.values();
+    var worstError = new int[precisions.length];
+    var worstTree = new String[precisions.length];
+    var histogram = new int[precisions.length][4]; // trees off by 0, 1, 2, or more steps
+    var nanos = new long[precisions.length];
+
+    for (var i = 0; i < numTrees; i++) {
+      var tree = RandomGeneTree.randomTreeOption(1 + i % MAX_DEPTH, random).get();
+      var program = tree.toOptimizedTree().toProgram();
+
+      BufferedImage expected = null;
+      for (var precision : precisions) {
+        var function = program.toImageFunction(precision);
+        var start = System.nanoTime();
+        var image = function.toImage(size, size);
+        // skip the first few, while the JIT warms up
+        if (i >= MAX_DEPTH) {
+          nanos[precision.ordinal()] += System.nanoTime() - start;
+        }
+
+        if (precision == Precision.DOUBLE) {
+          expected = image;
+        } else {
+          var p = precision.ordinal();
+          var error = Precision.maxChannelError(expected, image);
+          histogram[p][Math.min(error, histogram[p].length - 1)]++;
+          if (error > worstError[p]) {
+            worstError[p] = error;
+            worstTree[p] = tree.toString();
+          }
+        }
+      }
+    }
+
+    Log.iformat(TAG, "%d trees at %dx%d", numTrees, size, size);
+    for (var precision : precisions) {
+      var p = precision.ordinal();
+      Log.iformat(
+          TAG,
+          "%s: %.3f ms (%.2fx)",
+          precision,
+          nanos[p] / 1_000_000.0,
+          nanos[Precision.DOUBLE.ordinal()] / (double) nanos[p]);
+      if (precision != Precision.DOUBLE) {
+        Log.iformat(
+            TAG,
+            "%s max channel error, in 8-bit steps: 0 in %d trees, 1 in %d, 2 in %d, 3+ in %d",
+            precision,
+            histogram[p][0],
+            histogram[p][1],
+            histogram[p][2],
+            histogram[p][3]);
+        if (worstError[p] > 0) {
+          Log.iformat(
+              TAG, "%s worst error: %d steps, for %s", precision, worstError[p], worstTree[p]);
+        }
+      }
+    }
+  }
+}
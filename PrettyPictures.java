@@ -31,11 +31,17 @@ import edu.rice.json.Parser;
 import edu.rice.json.Value;
 import edu.rice.json.Value.JObject;
 import edu.rice.util.Log;
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
 import io.vavr.collection.HashMap;
 import io.vavr.collection.List;
 import io.vavr.collection.Map;
 import io.vavr.collection.Seq;
+import io.vavr.control.Option;
+import io.vavr.control.Try;
+import java.awt.image.BufferedImage;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
 
 /**
  * Web server for Pretty Pictures. "Run" this and it will launch your browser with our
@@ -55,6 +61,10 @@ import java.util.Random;
 @GradeCoverage(project = "PP3", exclude = true)
 public class PrettyPicturesServerWeek3 {
   private static final String TAG = "PrettyPicturesServerWeek3";
+
+  /** How many pixels on a side the tiles of the /tile/ route are. */
+  private static final int TILE_PIXELS = 256;
+
   private static int testNumber = 0; // mutated by the /test route
   private static Seq<GeneTree> testGenes = List.empty(); // mutated by the /test route
   private static int testGenesLength = 1; // mutated by the /test route
@@ -101,6 +111,19 @@ public class PrettyPicturesServerWeek3 {
      * GET /image/gen/:gen/img/:img/height/:height/width/:width/
      * This handler is used to request a specific image from a specific generation.
      * Return image number :img from generation number :gen as a :width by :height png.
+     * An optional ?precision=fast or double (the default) picks the rendering engine.
+     * An optional ?adaptive=threshold renders with an AdaptiveRenderer, interpolating where the
+     * colors differ by no more than the threshold, and &strict=true keeps its edges exact.
+     * An optional ?budget=milliseconds (by default, the prettypictures.renderBudgetMillis system
+     * property, if it's set) renders only as finely as it can in that time, interpolating the
+     * rest, and says how coarse it had to go in its X-Pixel-Size header.
+     * An optional ?antialias=grid2, rgss, or grid4 supersamples, in that pattern, the pixels that
+     * differ from a neighbor by more than &contrast=steps (by default 32) in any 8-bit channel.
+     * An optional ?progressive=true returns a coarse preview as soon as there is one, with its
+     * X-Pixel-Size header saying how coarse; asking again with &finer=N (the pixel size you have)
+     * returns the next pass of the same render, until the pixel size is 1 (see RenderProgress).
+     * Without adaptive, budget, or antialias, an image we've already rendered at least as big is
+     * scaled down rather than rendered again (see SourceImageCache).
      * Hint: Remember that Images.imageToPng returns a Try<byte[]>, and so you will
      *   need to get() the byte[] out of the Try<>. Remember also to set the response
      *   type to "image/png".
@@ -127,6 +150,31 @@ public class PrettyPicturesServerWeek3 {
                   .onEmpty(
                       () -> Log.e(TAG, () -> "failed to decode image height: " + request.url()))
                   .getOrElse(1);
+          final var precision =
+              Precision.of(request.queryParams("precision")).getOrElse(Precision.DOUBLE);
+          final var adaptive =
+              Option.of(request.queryParams("adaptive"))
+                  .flatMap(threshold -> stringToOptionInteger(threshold))
+                  .filter(threshold -> threshold >= 0)
+                  .map(
+                      threshold ->
+                          new AdaptiveRenderer(
+                              threshold, "true".equalsIgnoreCase(request.queryParams("strict"))));
+          final var antialias =
+              Antialiaser.Pattern.of(request.queryParams("antialias"))
+                  .map(
+                      pattern ->
+                          new Antialiaser(
+                              Option.of(request.queryParams("contrast"))
+                                  .flatMap(contrast -> stringToOptionInteger(contrast))
+                                  .filter(contrast -> contrast >= 0)
+                                  .getOrElse(Antialiaser.DEFAULT_THRESHOLD),
+                              pattern));
+          final var budget =
+              Option.of(request.queryParams("budget"))
+                  .flatMap(millis -> stringToOptionInteger(millis))
+                  .orElse(Option.of(Integer.getInteger("prettypictures.renderBudgetMillis")))
+                  .filter(millis -> millis > 0);
           // TODO: - Bad Requests, check this again - Bad requests check only if we're not in a
           // test, since tests should be the same every time
           // -----Don't spam the breed button or this might mess up -----
@@ -160,23 +208,183 @@ public class PrettyPicturesServerWeek3 {
             default:
               // should never get here testgenes needs no update
           }
-          var results =
-              nanoBenchmarkVal(
-                  () -> testGenes.get(imageNum).toImageFunction().toImage(width, height));
+          final var genes = testGenes;
+          if ("true".equalsIgnoreCase(request.queryParams("progressive"))) {
+            final var finer =
+                Option.of(request.queryParams("finer"))
+                    .flatMap(size -> stringToOptionInteger(size))
+                    .getOrElse(Integer.MAX_VALUE);
+            return RenderProgress.passFinerThan(
+                    Tuple.of(genes.get(imageNum), width, height, precision),
+                    finer,
+                    () -> genes.get(imageNum).toCompiledImageFunction(precision),
+                    width,
+                    height,
+                    // so that, like any other render, a new generation or /cancel/ stops it
+                    () ->
+                        InFlightRenders.begin(
+                            request.ip(), genNum, request.url() + "?" + request.queryString()))
+                .map(
+                    pass -> {
+                      Log.iformat(
+                          TAG,
+                          "progressive gen: %d, image: %02d (%dx%d, %s), pixel size %d",
+                          genNum,
+                          imageNum,
+                          width,
+                          height,
+                          precision,
+                          pass.pixelSize);
+                      response.type("image/png");
+                      response.header("X-Pixel-Size", Integer.toString(pass.pixelSize));
+                      return pass.png;
+                    })
+                .getOrElse(
+                    () -> {
+                      response.status(300); // error!
+                      return stringToUTF8("Internal failure");
+                    });
+          }
+
+          // The client asks for every image of a generation, one after another, so at full
+          // precision we render the whole grid in one go and hand out the results; see
+          // GenerationImages. Any other size gets a render of its own tree. And the client
+          // asks for the same image at different sizes, so we keep the biggest image of each tree
+          // we've rendered, and scale it down for anything smaller; see SourceImageCache.
+          final var plain = adaptive.isEmpty() && budget.isEmpty() && antialias.isEmpty();
+          final var cached = precision == Precision.DOUBLE && plain;
+          final var tree = genes.get(imageNum);
+          final var pixelSize = new int[] {1}; // a render within budget may settle for more
+          final var shared = new boolean[] {false}; // whether a cache hangs onto the image
+          // If the client asks for this image again, or moves on to another generation, before
+          // we're done, there's no point in carrying on; see InFlightRenders.
+          final var token =
+              InFlightRenders.begin(
+                  request.ip(), genNum, request.url() + "?" + request.queryString());
+          // the image, and the GeneProgram that rendered it, if we rendered it at all
+          final Tuple2<Long, Tuple2<BufferedImage, Option<GeneProgram>>> results;
+          try {
+            results =
+                nanoBenchmarkVal(
+                    () -> {
+                      if (plain) {
+                        var scaled = SourceImageCache.scaledTo(tree, precision, width, height);
+                        if (scaled.isDefined()) {
+                          Log.iformat(
+                              TAG,
+                              "scaled gen: %d, image: %02d down from a bigger render",
+                              genNum,
+                              imageNum);
+                          return Tuple.of(scaled.get(), Option.<GeneProgram>none());
+                        }
+                      }
+                      if (cached) {
+                        var grid = GenerationImages.image(genes, imageNum, width, height, token);
+                        if (grid.isDefined()) {
+                          shared[0] = true;
+                          return Tuple.of(grid.get(), Option.<GeneProgram>none());
+                        }
+                      }
+                      var function = tree.toCompiledImageFunction(precision);
+                      if (antialias.isDefined()) {
+                        var rendered = antialias.get().render(function, width, height, token);
+                        Log.iformat(
+                            TAG,
+                            "antialiased (%s, contrast %d): supersampled %.1f%% of pixels, "
+                                + "%.1f%% of the samples for supersampling them all",
+                            antialias.get().pattern(),
+                            antialias.get().threshold(),
+                            100.0 * rendered.fractionSupersampled(),
+                            100.0 * rendered.fractionOfBruteForce());
+                        return Tuple.of(rendered.image, function.program());
+                      }
+                      if (adaptive.isEmpty() && budget.isEmpty()) {
+                        var image = function.toImage(width, height, token);
+                        shared[0] = SourceImageCache.offer(tree, precision, image);
+                        return Tuple.of(image, function.program());
+                      }
+                      if (adaptive.isEmpty()) {
+                        var rendered =
+                            ProgressiveRenderer.renderWithin(
+                                function, width, height, budget.get() * 1_000_000L, token);
+                        pixelSize[0] = rendered.pixelSize;
+                        Log.iformat(
+                            TAG,
+                            "budget %d ms: rendered %.1f%% of pixels (pixel size %d)",
+                            budget.get(),
+                            100.0 * rendered.fractionRendered(),
+                            rendered.pixelSize);
+                        return Tuple.of(rendered.image, function.program());
+                      }
+                      var rendered = adaptive.get().render(function, width, height, token);
+                      Log.iformat(
+                          TAG,
+                          "adaptive (threshold %d%s): evaluated %.1f%% of pixels",
+                          adaptive.get().threshold(),
+                          adaptive.get().isStrict() ? ", strict" : "",
+                          100.0 * rendered.fractionEvaluated());
+                      return Tuple.of(rendered.image, function.program());
+                    });
+          } catch (CancellationException e) {
+            Log.iformat(
+                TAG,
+                "cancelled gen: %d, image: %02d (%dx%d, %s)",
+                genNum,
+                imageNum,
+                width,
+                height,
+                precision);
+            response.status(300); // error!
+            return stringToUTF8("Render cancelled");
+          } finally {
+            InFlightRenders.end(token);
+          }
           Log.iformat(
               TAG,
-              "rendered gen: %d, image: %02d (%dx%d), time: %.3f ms (%.3f μs/pixel)",
+              "rendered gen: %d, image: %02d (%dx%d, %s), time: %.3f ms (%.3f μs/pixel)",
               genNum,
               imageNum,
               width,
               height,
+              precision,
               results._1 / 1_000_000.0,
               results._1 / (1_000.0 * width * height));
+          Log.i(TAG, () -> "render pool: " + TileScheduler.stats());
 
-          return imageToPng(results._2)
-              .map(
+          // identical subtrees are only evaluated once per pixel, and subtrees that only depend on
+          // x or only on y once per column or row; see GeneProgram. That's only worth saying about
+          // the program that just rendered this image: a scaled-down image wasn't rendered at all,
+          // and GenerationImages logs what its program for the whole generation saved.
+          results._2._2.forEach(
+              program -> {
+                if (program.duplicatesEliminated() > 0) {
+                  Log.iformat(
+                      TAG,
+                      "shared subtrees saved %d node evaluations per pixel rendered",
+                      program.duplicatesEliminated());
+                }
+                if (program.hoisted() > 0) {
+                  Log.iformat(
+                      TAG,
+                      "%d of %d nodes depend on at most one of x and y",
+                      program.hoisted(),
+                      program.size());
+                }
+              });
+
+          final var png = imageToPng(results._2._1);
+          if (!shared[0]) {
+            // nobody else has seen this image, so its pixels can go back to the pool; the
+            // generation cache and the source image cache, on the other hand, hang onto theirs
+            RasterPool.release(results._2._1);
+          }
+
+          return png.map(
                   imageBytes -> {
                     response.type("image/png");
+                    if (budget.isDefined()) {
+                      response.header("X-Pixel-Size", Integer.toString(pixelSize[0]));
+                    }
                     return imageBytes;
                   })
               .getOrElse(
@@ -186,6 +394,159 @@ public class PrettyPicturesServerWeek3 {
                   });
         });
 
+    /*
+     * GET /tile/gen/:gen/img/:img/z/:z/x/:x/y/:y/
+     * One TILE_PIXELS-square tile of image number :img from generation number :gen, as a png, for
+     * a map-style viewer that zooms and pans around an image (see Viewport.tile): zoom level :z
+     * is a grid of 2^z by 2^z tiles covering the same area as the whole image at zoom level 0,
+     * with tile :x, :y counting from the top left. Tiles outside the grid show more of the plane.
+     * An optional ?precision=fast or double (the default) picks the rendering engine.
+     * Tiles are cached (see TileCache), so panning only renders the tiles that come into view.
+     */
+    get(
+        "/tile/gen/:gen/img/:img/z/:z/x/:x/y/:y/",
+        (request, response) -> {
+          final var params = request.params();
+          final var genNum = stringToOptionInteger(params.get(":gen"));
+          final var imageNum = stringToOptionInteger(params.get(":img"));
+          final var z = stringToOptionInteger(params.get(":z"));
+          final var x = stringToOptionLong(params.get(":x"));
+          final var y = stringToOptionLong(params.get(":y"));
+          final var precision =
+              Precision.of(request.queryParams("precision")).getOrElse(Precision.DOUBLE);
+          final var tree =
+              genNum
+                  .flatMap(gen -> generationGenes(gen))
+                  .flatMap(
+                      genes ->
+                          imageNum.filter(img -> img >= 0 && img < genes.length()).map(genes::get));
+          if (tree.isEmpty()
+              || z.isEmpty()
+              || x.isEmpty()
+              || y.isEmpty()
+              || !Viewport.isTile(z.get(), x.get(), y.get())) {
+            Log.e(TAG, () -> "bogus tile: " + request.url());
+            response.status(300); // error!
+            return stringToUTF8("Bad arguments");
+          }
+
+          final var key = TileCache.key(tree.get(), z.get(), x.get(), y.get(), precision);
+          final var cachedTile = TileCache.get(key);
+          if (cachedTile.isDefined()) {
+            response.type("image/png");
+            return cachedTile.get();
+          }
+
+          // A viewer asks for every tile on the screen at once, and this client's requests for
+          // the other tiles mustn't cancel each other; only a change of generation does that.
+          final var token = InFlightRenders.begin(request.ip(), genNum.get(), request.url());
+          final Tuple2<Long, BufferedImage> results;
+          try {
+            results =
+                nanoBenchmarkVal(
+                    () ->
+                        tree.get()
+                            .toCompiledImageFunction(precision)
+                            .toImage(
+                                TILE_PIXELS,
+                                TILE_PIXELS,
+                                Viewport.tile(z.get(), x.get(), y.get()),
+                                token));
+          } catch (CancellationException e) {
+            Log.iformat(TAG, "cancelled tile: %s", request.url());
+            response.status(300); // error!
+            return stringToUTF8("Render cancelled");
+          } finally {
+            InFlightRenders.end(token);
+          }
+          Log.iformat(
+              TAG,
+              "rendered tile gen: %d, image: %02d, z/x/y: %d/%d/%d (%s), time: %.3f ms",
+              genNum.get(),
+              imageNum.get(),
+              z.get(),
+              x.get(),
+              y.get(),
+              precision,
+              results._1 / 1_000_000.0);
+
+          final var png = imageToPng(results._2);
+          RasterPool.release(results._2);
+          return png.map(
+                  imageBytes -> {
+                    TileCache.put(key, imageBytes);
+                    response.type("image/png");
+                    return imageBytes;
+                  })
+              .getOrElse(
+                  () -> {
+                    response.status(300); // error!
+                    return stringToUTF8("Internal failure");
+                  });
+        });
+
+    /*
+     * GET /stats/
+     * How busy the render pool is (see TileScheduler): how many renders are under way, how much
+     * work is queued up for it, how long tiles have been taking to render, how much work was
+     * abandoned by renders that were cancelled, and how the tile cache (see TileCache) and the
+     * cache of images to scale down (see SourceImageCache) are doing.
+     */
+    get(
+        "/stats/",
+        (request, response) -> {
+          final var stats = TileScheduler.stats();
+          final var tiles = TileCache.stats();
+          final var sources = SourceImageCache.stats();
+          response.type("application/json");
+          return jobject(
+                  jpair(
+                      "response",
+                      jobject(
+                          jpair("poolSize", stats.poolSize),
+                          jpair("parallelism", stats.parallelism),
+                          jpair("activeThreads", stats.activeThreads),
+                          jpair("activeRenders", stats.activeRenders),
+                          jpair("queuedTasks", stats.queuedTasks),
+                          jpair("pendingTiles", stats.pendingTiles),
+                          jpair("rendersCompleted", stats.rendersCompleted),
+                          jpair("tilesRendered", stats.tilesRendered),
+                          jpair("rendersCancelled", stats.rendersCancelled),
+                          jpair("tilesCancelled", stats.tilesCancelled),
+                          jpair("pixelsCancelled", stats.pixelsCancelled),
+                          jpair("meanTileMicros", stats.meanTileMicros),
+                          jpair("medianTileMicros", stats.medianTileMicros),
+                          jpair("p99TileMicros", stats.p99TileMicros),
+                          jpair("maxTileMicros", stats.maxTileMicros),
+                          jpair("cachedTiles", tiles.tiles),
+                          jpair("cachedTileBytes", tiles.bytes),
+                          jpair("tileCacheHits", tiles.hits),
+                          jpair("tileCacheMisses", tiles.misses),
+                          jpair("tileCacheEvictions", tiles.evictions),
+                          jpair("sourceImages", sources.images),
+                          jpair("sourceImageBytes", sources.bytes),
+                          jpair("sourceImageHits", sources.hits),
+                          jpair("sourceImageMisses", sources.misses),
+                          jpair("sourceImageEvictions", sources.evictions))))
+              .toString();
+        });
+
+    /*
+     * POST /cancel/
+     * Cancels every render the calling client is still waiting for (see InFlightRenders), which
+     * it should do when it goes away, since we can't tell when a client has hung up until we try
+     * to send it an image. Returns a JSON response where "response" is keyed to a JObject with
+     * the number of renders cancelled.
+     */
+    post(
+        "/cancel/",
+        (request, response) -> {
+          final var cancelled = InFlightRenders.cancelAll(request.ip());
+          Log.iformat(TAG, "cancelled %d renders for %s", cancelled, request.ip());
+          response.type("application/json");
+          return jobject(jpair("response", jobject(jpair("cancelled", cancelled)))).toString();
+        });
+
     // TODO: implement this handler
     /*
      * POST /test/:number
@@ -419,6 +780,27 @@ public class PrettyPicturesServerWeek3 {
     Files.write("prettypictures-week3.json", JObject.fromMap(newinput).toString());
   }
 
+  /**
+   * Returns the given generation of whichever set of images the client has loaded (see the /test
+   * route), or none if there's no such generation.
+   */
+  private static Option<Seq<GeneTree>> generationGenes(int genNum) {
+    switch (testNumber) {
+      case 4:
+        return breedingStateRecorder.get(genNum);
+      case 3:
+        return mutationStateRecorder.get(genNum);
+      case 0:
+        return stateRecorder.get(genNum);
+      default:
+        return Option.of(testGenes);
+    }
+  }
+
+  private static Option<Long> stringToOptionLong(String input) {
+    return Try.of(() -> Long.parseLong(input)).toOption();
+  }
+
   private static String customJsonResponse(
       int numGenerations, int currentGeneration, int numImages) {
     return jobject(
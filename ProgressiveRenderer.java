@@ -0,0 +1,369 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Renders an image coarse to fine, for {@link ImageFunction#toImageProgressively(int, int,
+ * ImageFunction.PassListener)}. The first pass renders every eighth pixel of every eighth row and
+ * blows each of them up into an 8x8 block, and each pass after that halves the size of the blocks,
+ * until the last pass fills in the remaining pixels one by one.
+ *
+ * <p>The same passes let {@link #renderWithin(ImageFunction, int, int, long, CancellationToken)}
+ * keep to a time budget, stopping after whichever pass it can afford and interpolating the rest.
+ */
+final class ProgressiveRenderer {
+  private ProgressiveRenderer() {}
+
+  // Engineering note: no pixel is ever rendered twice. The pixels a pass with blocks of size s
+  // adds are those whose coordinates are both multiples of s, but not both multiples of 2s, since
+  // the previous pass already did those. That's not a grid, but it's exactly two of them: the odd
+  // multiples of s across by every multiple of s down, plus the even multiples across by the odd
+  // ones down. So every pass still goes through renderTile(), and a GeneProgram still gets to
+  // compute its x-only and y-only subtrees once per column or row. All four passes together
+  // render the same pixels as toImage(), so the final image is identical to what it renders, and
+  // the three previews along the way only add up to a quarter of the pixels.
+
+  /**
+   * See {@link ImageFunction#toImageProgressively(int, int, Viewport, ImageFunction.PassListener,
+   * CancellationToken)}.
+   */
+  static BufferedImage render(
+      ImageFunction function,
+      int xsize,
+      int ysize,
+      Viewport viewport,
+      ImageFunction.PassListener listener,
+      CancellationToken token) {
+    return renderPasses(function, xsize, ysize, viewport, listener, Long.MAX_VALUE, token).image;
+  }
+
+  /**
+   * Renders the function at the given size, aiming to be done within <code>budgetNanos</code>
+   * nanoseconds. The image is rendered coarse to fine, as with {@link
+   * ImageFunction#toImageProgressively(int, int, ImageFunction.PassListener)}, and once it looks
+   * like the next pass would go over budget, going by how long the pixels rendered so far took, the
+   * pixels in between the ones we have are interpolated instead. The first pass is always rendered,
+   * so the image is never coarser than one pixel in every {@link ImageFunction#COARSEST_PASS}
+   * square, however small the budget. If <code>token</code> is cancelled, gives up altogether.
+   *
+   * @throws CancellationException if the token was cancelled before the render was done
+   */
+  static Result renderWithin(
+      ImageFunction function, int xsize, int ysize, long budgetNanos, CancellationToken token) {
+    return renderWithin(function, xsize, ysize, Viewport.DEFAULT, budgetNanos, token);
+  }
+
+  /**
+   * Like {@link #renderWithin(ImageFunction, int, int, long, CancellationToken)}, but showing the
+   * given part of the plane (see {@link Viewport}).
+   *
+   * @throws CancellationException if the token was cancelled before the render was done
+   */
+  static Result renderWithin(
+      ImageFunction function,
+      int xsize,
+      int ysize,
+      Viewport viewport,
+      long budgetNanos,
+      CancellationToken token) {
+    return renderPasses(
+        function, xsize, ysize, viewport, (image, pixelSize) -> {}, budgetNanos, token);
+  }
+
+  /** What {@link #renderWithin(ImageFunction, int, int, long, CancellationToken)} returns. */
+  static final class Result {
+    /** The image, which comes from {@link RasterPool}. */
+    final BufferedImage image;
+
+    /**
+     * How many pixels apart the pixels that were actually rendered are: 1 if the image was rendered
+     * in full, or more if the rest had to be interpolated to stay within budget.
+     */
+    final int pixelSize;
+
+    /** How long the render took, in nanoseconds. */
+    final long nanos;
+
+    private Result(BufferedImage image, int pixelSize, long nanos) {
+      this.image = image;
+      this.pixelSize = pixelSize;
+      this.nanos = nanos;
+    }
+
+    /** The fraction of the pixels of the image that were rendered, rather than interpolated. */
+    double fractionRendered() {
+      var width = image.getWidth();
+      var height = image.getHeight();
+      return samples(width, height, pixelSize) / (double) Math.max(1, width * height);
+    }
+  }
+
+  // Engineering note: we can't know how expensive a tree is until we've rendered some of it, and
+  // its cost per pixel can vary by orders of magnitude from one tree to the next, so rather than
+  // guess from the size of the tree, we measure. The first pass renders 1/64 of the pixels, which
+  // tells us what each pixel costs, for a fraction of the budget. Each pass after that renders
+  // three times as many pixels as all the passes before it put together, so the estimate for the
+  // next pass is what we've spent so far, scaled up by how many more pixels it has. Pixel costs
+  // average out over thousands of pixels, so the estimates are pretty good, and if anything a bit
+  // high, since the per-tile overheads are spread thinner over bigger passes.
+
+  private static Result renderPasses(
+      ImageFunction function,
+      int xsize,
+      int ysize,
+      Viewport viewport,
+      ImageFunction.PassListener listener,
+      long budgetNanos,
+      CancellationToken token) {
+    var start = System.nanoTime();
+    var image = RasterPool.acquire(xsize, ysize);
+    var output = RasterPool.pixels(image);
+
+    // The first pass asks each tile whether it's flat, and if so, later passes leave it alone.
+    var tileSize = ImageFunction.TILE_SIZE;
+    var tilesAcross = (xsize + tileSize - 1) / tileSize;
+    var flat = new boolean[Math.max(0, tilesAcross * ((ysize + tileSize - 1) / tileSize))];
+
+    try {
+      for (var size = ImageFunction.COARSEST_PASS; size >= 1; size /= 2) {
+        renderPass(function, xsize, ysize, viewport, size, flat, output, token);
+        listener.passRendered(image, size);
+
+        if (size > 1 && budgetNanos != Long.MAX_VALUE) {
+          var spent = System.nanoTime() - start;
+          var rendered = samples(xsize, ysize, size);
+          var next = samples(xsize, ysize, size / 2) - rendered;
+          if (spent + (double) spent * next / rendered > budgetNanos) {
+            interpolate(output, xsize, ysize, size, flat, token);
+            return new Result(image, size, System.nanoTime() - start);
+          }
+        }
+      }
+    } catch (CancellationException e) {
+      RasterPool.release(image);
+      throw e;
+    }
+
+    return new Result(image, 1, System.nanoTime() - start);
+  }
+
+  // Renders the pixels that the pass with the given block size adds to every tile that isn't flat,
+  // and then blows each pixel rendered so far up into a block of that size.
+  private static void renderPass(
+      ImageFunction function,
+      int xsize,
+      int ysize,
+      Viewport viewport,
+      int size,
+      boolean[] flat,
+      int[] output,
+      CancellationToken token) {
+    var tileSize = ImageFunction.TILE_SIZE;
+    var tilesAcross = (xsize + tileSize - 1) / tileSize;
+    TileScheduler.forEachTile(
+        xsize,
+        ysize,
+        tileSize,
+        token,
+        (xstart, ystart, width, height) -> {
+          var tile = (ystart / tileSize) * tilesAcross + xstart / tileSize;
+          if (size == ImageFunction.COARSEST_PASS) {
+            flat[tile] =
+                fillIfFlat(function, xsize, ysize, viewport, xstart, ystart, width, height, output);
+          }
+          if (flat[tile]) {
+            return;
+          }
+
+          if (size == ImageFunction.COARSEST_PASS) {
+            renderGrid(
+                function, xsize, ysize, viewport, xstart, ystart, width, height, 0, size, 0, size,
+                output);
+          } else {
+            renderGrid(
+                function, xsize, ysize, viewport, xstart, ystart, width, height, size, 2 * size, 0,
+                size, output);
+            renderGrid(
+                function, xsize, ysize, viewport, xstart, ystart, width, height, 0, 2 * size, size,
+                2 * size, output);
+          }
+
+          if (size > 1) {
+            for (var y = 0; y < height; y += size) {
+              for (var x = 0; x < width; x += size) {
+                var color = output[(ystart + y) * xsize + xstart + x];
+                var xend = xstart + Math.min(width, x + size);
+                for (var row = y; row < Math.min(height, y + size); row++) {
+                  var offset = (ystart + row) * xsize;
+                  Arrays.fill(output, offset + xstart + x, offset + xend, color);
+                }
+              }
+            }
+          }
+        });
+  }
+
+  // How many pixels an image has whose coordinates are both multiples of pixelSize.
+  private static long samples(int xsize, int ysize, int pixelSize) {
+    return (long) ((xsize + pixelSize - 1) / pixelSize) * ((ysize + pixelSize - 1) / pixelSize);
+  }
+
+  // Replaces the blocks of the given size, a power of two, with bilinear interpolation between
+  // the pixels at their corners, except in tiles that are flat anyway. Past the last column or row
+  // of rendered pixels, at the right and bottom edges, the colors are carried straight across.
+  private static void interpolate(
+      int[] output, int xsize, int ysize, int size, boolean[] flat, CancellationToken token) {
+    var tileSize = ImageFunction.TILE_SIZE;
+    var tilesAcross = (xsize + tileSize - 1) / tileSize;
+    var lastColumn = (xsize - 1) / size * size;
+    var lastRow = (ysize - 1) / size * size;
+    var log = Integer.numberOfTrailingZeros(size);
+    TileScheduler.forEachTile(
+        xsize,
+        ysize,
+        tileSize,
+        token,
+        (xstart, ystart, width, height) -> {
+          if (flat[(ystart / tileSize) * tilesAcross + xstart / tileSize]) {
+            return;
+          }
+          for (var y = ystart; y < ystart + height; y++) {
+            var y0 = y >> log << log;
+            var top = y0 * xsize;
+            var bottom = Math.min(y0 + size, lastRow) * xsize;
+            var dy = y - y0;
+            for (var x = xstart; x < xstart + width; x++) {
+              var x0 = x >> log << log;
+              var dx = x - x0;
+              if (dx == 0 && dy == 0) {
+                continue; // one of the pixels we rendered
+              }
+              var x1 = Math.min(x0 + size, lastColumn);
+              output[y * xsize + x] =
+                  mix(
+                      output[top + x0],
+                      output[top + x1],
+                      output[bottom + x0],
+                      output[bottom + x1],
+                      (size - dx) * (size - dy),
+                      dx * (size - dy),
+                      (size - dx) * dy,
+                      dx * dy,
+                      2 * log);
+            }
+          }
+        });
+  }
+
+  // Mixes four packed RGB colors, with weights adding up to 1 << shift, which is at most 64. With
+  // weights that small, red and blue can be mixed together in one int, in 16 bits apiece.
+  private static int mix(
+      int c00, int c10, int c01, int c11, int w00, int w10, int w01, int w11, int shift) {
+    var half = 1 << shift >> 1;
+    var redBlue =
+        (c00 & 0xff00ff) * w00
+            + (c10 & 0xff00ff) * w10
+            + (c01 & 0xff00ff) * w01
+            + (c11 & 0xff00ff) * w11
+            + (half << 16 | half);
+    var green =
+        (c00 & 0xff00) * w00
+            + (c10 & 0xff00) * w10
+            + (c01 & 0xff00) * w01
+            + (c11 & 0xff00) * w11
+            + (half << 8);
+    return 0xff000000 | (redBlue >>> shift) & 0xff00ff | (green >>> shift) & 0xff00;
+  }
+
+  // Renders the pixels of a tile in columns left, left + xstep, left + 2 * xstep, ... and rows
+  // top, top + ystep, ..., straight into the image.
+  private static void renderGrid(
+      ImageFunction function,
+      int xsize,
+      int ysize,
+      Viewport viewport,
+      int xstart,
+      int ystart,
+      int width,
+      int height,
+      int left,
+      int xstep,
+      int top,
+      int ystep,
+      int[] output) {
+    var gridWidth = Math.max(0, (width - left + xstep - 1) / xstep);
+    var gridHeight = Math.max(0, (height - top + ystep - 1) / ystep);
+    if (gridWidth == 0 || gridHeight == 0) {
+      return;
+    }
+    var n = gridWidth * gridHeight;
+
+    var arena = TileArena.get();
+    var columns = arena.buffer(TileArena.COLUMNS, gridWidth);
+    var rows = arena.buffer(TileArena.ROWS, gridHeight);
+    var colors = arena.buffer(TileArena.OUTPUT, 3 * n);
+    for (var i = 0; i < gridWidth; i++) {
+      columns[i] = viewport.x(xstart + left + i * xstep, xsize);
+    }
+    for (var j = 0; j < gridHeight; j++) {
+      rows[j] = viewport.y(ystart + top + j * ystep, ysize);
+    }
+
+    function.renderTile(columns, gridWidth, rows, gridHeight, colors);
+
+    for (var j = 0; j < gridHeight; j++) {
+      var row = (ystart + top + j * ystep) * xsize + xstart + left;
+      for (var i = 0; i < gridWidth; i++) {
+        var k = j * gridWidth + i;
+        output[row + i * xstep] = RgbColor.toRgb(colors[k], colors[n + k], colors[2 * n + k]);
+      }
+    }
+  }
+
+  // If the function can prove the whole tile is one color, fills it in and returns true. Asking
+  // about the grid of the tile's four corners covers the same rectangle as the whole tile, for
+  // the price of rendering at most four pixels if it isn't flat.
+  private static boolean fillIfFlat(
+      ImageFunction function,
+      int xsize,
+      int ysize,
+      Viewport viewport,
+      int xstart,
+      int ystart,
+      int width,
+      int height,
+      int[] output) {
+    var arena = TileArena.get();
+    var columns = arena.buffer(TileArena.COLUMNS, 2);
+    var rows = arena.buffer(TileArena.ROWS, 2);
+    var colors = arena.buffer(TileArena.OUTPUT, 3 * 4);
+    columns[0] = viewport.x(xstart, xsize);
+    columns[1] = viewport.x(xstart + width - 1, xsize);
+    rows[0] = viewport.y(ystart, ysize);
+    rows[1] = viewport.y(ystart + height - 1, ysize);
+
+    var color = function.renderTileUnlessFlat(columns, 2, rows, 2, colors);
+    if (color.isEmpty()) {
+      return false;
+    }
+    for (var y = 0; y < height; y++) {
+      var row = (ystart + y) * xsize + xstart;
+      Arrays.fill(output, row, row + width, color.get());
+    }
+    return true;
+  }
+}
@@ -26,8 +26,10 @@ import static edu.rice.prettypictures.GeneTree.geneTreeOption;
 import static io.vavr.control.Option.some;
 
 import edu.rice.util.Log;
+import io.vavr.collection.HashSet;
 import io.vavr.collection.List;
 import io.vavr.collection.Seq;
+import io.vavr.collection.Set;
 import io.vavr.collection.Stream;
 import io.vavr.control.Option;
 import java.util.Random;
@@ -56,12 +58,22 @@ public class RandomGeneTree {
       EXTERNAL_IMAGE_ALLELE_MAP.values().toList();
   private static final int NUM_EXTERNAL_IMAGES = EXTERNAL_IMAGE_GENE_LEAVES.length();
 
+  // The t leaf is always zero in a still, and grey-perlin-4d is only there so that animations can
+  // make grey-perlin move (see Animation), so random trees and mutations never pick them. Leaving
+  // them out also keeps every seeded random tree the same as it was before they existed.
+  private static final Set<String> ANIMATION_ONLY_ALLELES = HashSet.of("t", "grey-perlin-4d");
+  private static final Seq<Allele> RANDOM_ALLELES =
+      INTRINSIC_ALLELE_MAP
+          .values()
+          .filter(gene -> !ANIMATION_ONLY_ALLELES.contains(gene.getName()))
+          .toList();
+
   private static final Seq<Allele> ZERO_ARG_ALLELES =
-      INTRINSIC_ALLELE_MAP.values().filter(gene -> gene.numChildren() == 0).toList();
+      RANDOM_ALLELES.filter(gene -> gene.numChildren() == 0);
   private static final int NUM_ZERO_ARG_ALLELES = ZERO_ARG_ALLELES.length();
 
   private static final Seq<Allele> NON_ZERO_ARG_ALLELES =
-      INTRINSIC_ALLELE_MAP.values().filter(gene -> gene.numChildren() > 0).toList();
+      RANDOM_ALLELES.filter(gene -> gene.numChildren() > 0);
   private static final int NUM_NON_ZERO_ARG_ALLELES = NON_ZERO_ARG_ALLELES.length();
   private static final Allele COLOR_PERLIN = INTRINSIC_ALLELE_MAP.get("color-perlin").get();
   private static final Allele GREY_PERLIN = INTRINSIC_ALLELE_MAP.get("grey-perlin").get();
@@ -196,8 +208,7 @@ public class RandomGeneTree {
         return EXTERNAL_IMAGE_ALLELES.get(random.nextInt(NUM_EXTERNAL_IMAGES));
 
       } else {
-        var choices =
-            INTRINSIC_ALLELE_MAP.values().filter(gene -> gene.numChildren() == numChildren);
+        var choices = RANDOM_ALLELES.filter(gene -> gene.numChildren() == numChildren);
         if (choices.isEmpty()) {
           Log.e(TAG, "we don't have any genes that accept " + numChildren + " children!");
           throw new IllegalArgumentException("no genes available");
@@ -0,0 +1,128 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out <code>TYPE_INT_ARGB</code> BufferedImages whose pixels live in plain <code>int[]
+ * </code> arrays that the renderers can write straight into, and recycles those arrays once whoever
+ * asked for an image is done with it.
+ *
+ * <p>Arrays are kept in buckets by size, going up by quarter powers of two, so an image may be
+ * backed by an array up to a quarter bigger than it needs. The pool holds onto at most the number
+ * of bytes in the <code>prettypictures.rasterPoolBytes</code> system property, by default 64 MB;
+ * anything released beyond that is left for the garbage collector.
+ */
+final class RasterPool {
+  /** The most bytes of idle arrays the pool will hang onto. */
+  static final long MAX_POOLED_BYTES =
+      Long.getLong("prettypictures.rasterPoolBytes", 64L * 1024 * 1024);
+
+  private static final DirectColorModel ARGB = (DirectColorModel) ColorModel.getRGBdefault();
+
+  // Bucket b holds arrays of exactly capacity(b) ints: 4, 5, 6, 7, 8, 10, 12, 14, 16, 20, ...
+  private static final int NUM_BUCKETS = 4 * 29;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final ConcurrentLinkedQueue<int[]>[] buckets =
+      new ConcurrentLinkedQueue[NUM_BUCKETS];
+
+  static {
+    for (var b = 0; b < NUM_BUCKETS; b++) {
+      buckets[b] = new ConcurrentLinkedQueue<>();
+    }
+  }
+
+  private static final AtomicLong pooledBytes = new AtomicLong();
+
+  private RasterPool() {}
+
+  // Engineering note: BufferedImage.setRGB() is synchronized and converts every pixel through the
+  // image's color model, so rendering into an int[][] and then copying it over, as we used to,
+  // takes a second pass over every pixel and twice the memory. A TYPE_INT_ARGB image is just an
+  // int[] in row-major order, with exactly the packing RgbColor.toRgb() produces, so the renderers
+  // now write straight into that array and the image wraps it as it is. And since the server
+  // throws away most images as soon as it has made a PNG of them, recycling their arrays means
+  // that rendering the same sizes over and over doesn't churn through megabytes of garbage.
+
+  /**
+   * Returns a <code>TYPE_INT_ARGB</code> image of the given size, backed by an array from the pool
+   * if there's a suitable one, whose pixels can be written directly via {@link #pixels}. The
+   * initial contents of the pixels are undefined, so the caller must write every one of them.
+   */
+  static BufferedImage acquire(int xsize, int ysize) {
+    var size = Math.max(1, xsize * ysize);
+    var bucket = bucket(size);
+    var pixels = bucket < NUM_BUCKETS ? buckets[bucket].poll() : null;
+    if (pixels != null) {
+      pooledBytes.addAndGet(-4L * pixels.length);
+    } else {
+      pixels = new int[bucket < NUM_BUCKETS ? capacity(bucket) : size];
+    }
+
+    var raster =
+        Raster.createPackedRaster(
+            new DataBufferInt(pixels, size), xsize, ysize, xsize, ARGB.getMasks(), null);
+    return new BufferedImage(ARGB, raster, false, null);
+  }
+
+  /**
+   * Returns the array behind an image from {@link #acquire(int, int)}: the pixel at <code>(x, y)
+   * </code> is at <code>y * width + x</code>.
+   */
+  static int[] pixels(BufferedImage image) {
+    return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Gives the array behind an image from {@link #acquire(int, int)} back to the pool. The caller
+   * must not touch the image after this. Images whose arrays aren't one of the pool's sizes are
+   * ignored.
+   */
+  static void release(BufferedImage image) {
+    if (!(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+      return;
+    }
+    var pixels = pixels(image);
+    var bucket = bucket(pixels.length);
+    if (bucket >= NUM_BUCKETS || capacity(bucket) != pixels.length) {
+      return;
+    }
+    if (pooledBytes.addAndGet(4L * pixels.length) > MAX_POOLED_BYTES) {
+      pooledBytes.addAndGet(-4L * pixels.length);
+      return;
+    }
+    buckets[bucket].offer(pixels);
+  }
+
+  // The smallest bucket whose arrays have room for the given number of ints.
+  private static int bucket(int size) {
+    // start at the right power of two, then walk up the quarters
+    var bucket = Math.max(0, 4 * (31 - Integer.numberOfLeadingZeros(size) - 2));
+    while (bucket < NUM_BUCKETS && capacity(bucket) < size) {
+      bucket++;
+    }
+    return bucket;
+  }
+
+  private static int capacity(int bucket) {
+    return (4 + bucket % 4) << (bucket / 4);
+  }
+}
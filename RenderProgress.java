@@ -0,0 +1,182 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static edu.rice.image.Images.imageToPng;
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import edu.rice.util.Log;
+import io.vavr.control.Option;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of the progressive renders (see {@link ImageFunction#toImageProgressively(int, int,
+ * ImageFunction.PassListener)}) the server has going, so that a client can ask for an image, get
+ * back a coarse preview as soon as the first pass is done, and then keep asking for something finer
+ * than what it has, getting each pass in turn while the render carries on in the background.
+ *
+ * <p>Each render is registered with {@link InFlightRenders}, like any other, so a change of
+ * generation or a cancel request from its client stops it. A render that nobody has asked about for
+ * the number of milliseconds in the <code>prettypictures.progressIdleMillis</code> system property,
+ * by default a minute, is forgotten, and cancelled if it's still going.
+ */
+final class RenderProgress {
+  private static final String TAG = "RenderProgress";
+
+  /** How long a render is kept around after anybody last asked about it. */
+  static final long IDLE_MILLIS = Long.getLong("prettypictures.progressIdleMillis", 60_000L);
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  // Each progressive render runs on a thread of its own, which does the first worker's share of
+  // the tiles, while the render pool lends it helpers as usual (see TileScheduler).
+  private static final ExecutorService executor =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            var thread = new Thread(runnable, "progressive-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private static final ConcurrentHashMap<Object, Progress> renders = new ConcurrentHashMap<>();
+
+  private RenderProgress() {}
+
+  /** One pass of a progressive render, encoded as a PNG. */
+  static final class Pass {
+    /** The image as of this pass. */
+    final byte[] png;
+
+    /** How many pixels apart the pixels rendered so far are; 1 for the finished image. */
+    final int pixelSize;
+
+    private Pass(byte[] png, int pixelSize) {
+      this.png = png;
+      this.pixelSize = pixelSize;
+    }
+  }
+
+  /**
+   * Returns the first pass of the render with the given key whose pixels are smaller than <code>
+   * pixelSize</code>, waiting for it if it isn't done yet, or the finished image if the caller
+   * already has everything else. If there's no such render under way, starts one, rendering the
+   * function from <code>function</code> at the given size, with the token from <code>begin</code>,
+   * which registers it with {@link InFlightRenders}; we hand the token back to {@link
+   * InFlightRenders#end(CancellationToken)} once the render is over. Returns none if the render
+   * fails or is cancelled.
+   *
+   * <p>The key is anything with sensible <code>equals()</code> and <code>hashCode()</code> that
+   * identifies the image, its size, and how it's rendered.
+   */
+  static Option<Pass> passFinerThan(
+      Object key,
+      int pixelSize,
+      Supplier<ImageFunction> function,
+      int xsize,
+      int ysize,
+      Supplier<CancellationToken> begin) {
+    // a render that nobody is waiting for is cancelled, if it's still going
+    var cutoff = System.currentTimeMillis() - IDLE_MILLIS;
+    for (var entry : renders.entrySet()) {
+      if (entry.getValue().lastUsed < cutoff && renders.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().token.cancel();
+      }
+    }
+
+    var progress =
+        renders.computeIfAbsent(key, k -> start(function.get(), xsize, ysize, begin.get()));
+    var pass = progress.await(pixelSize);
+    if (pass.isEmpty() || pass.get().pixelSize == 1) {
+      // the caller has the finished image (or it's never coming), so we're done with this render
+      renders.remove(key, progress);
+    }
+    return pass;
+  }
+
+  private static Progress start(
+      ImageFunction function, int xsize, int ysize, CancellationToken token) {
+    var progress = new Progress(token);
+    executor.execute(
+        () -> {
+          try {
+            var image =
+                function.toImageProgressively(
+                    xsize,
+                    ysize,
+                    (pass, size) ->
+                        imageToPng(pass)
+                            .onSuccess(png -> progress.publish(new Pass(png, size)))
+                            .onFailure(
+                                e -> {
+                                  Log.e(TAG, "failed to encode a pass", e);
+                                  progress.fail();
+                                }),
+                    progress.token);
+            RasterPool.release(image);
+          } catch (CancellationException e) {
+            Log.i(TAG, "abandoned a progressive render nobody was waiting for");
+            progress.fail();
+          } catch (RuntimeException e) {
+            Log.e(TAG, "progressive render failed", e);
+            progress.fail();
+          } finally {
+            InFlightRenders.end(token);
+          }
+        });
+    return progress;
+  }
+
+  // The passes of one render, as they come in. Everything but lastUsed and the token is guarded
+  // by the lock.
+  private static final class Progress {
+    private final CancellationToken token;
+    private Pass latest = null;
+    private boolean failed = false;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    Progress(CancellationToken token) {
+      this.token = token;
+    }
+
+    synchronized void publish(Pass pass) {
+      latest = pass;
+      notifyAll();
+    }
+
+    synchronized void fail() {
+      failed = true;
+      notifyAll();
+    }
+
+    synchronized Option<Pass> await(int pixelSize) {
+      lastUsed = System.currentTimeMillis();
+      try {
+        while (!failed
+            && (latest == null || (latest.pixelSize >= pixelSize && latest.pixelSize > 1))) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return none();
+      }
+      lastUsed = System.currentTimeMillis();
+      return failed ? none() : some(latest);
+    }
+  }
+}
@@ -166,10 +166,22 @@ public class RgbColor {
    * BufferedImage#getRGB(int, int)}.
    */
   public static RgbColor color(int rgb) {
-    var r = (rgb >> 16) & 0xFF;
-    var g = (rgb >> 8) & 0xFF;
-    var b = rgb & 0xFF;
-    return color((r / 127.5) - 1, (g / 127.5) - 1, (b / 127.5) - 1);
+    return color(red(rgb), green(rgb), blue(rgb));
+  }
+
+  /** Extracts the red channel of a packed (ARGB) 32-bit integer, in our usual [-1,1] space. */
+  public static double red(int rgb) {
+    return (((rgb >> 16) & 0xFF) / 127.5) - 1;
+  }
+
+  /** Extracts the green channel of a packed (ARGB) 32-bit integer, in our usual [-1,1] space. */
+  public static double green(int rgb) {
+    return (((rgb >> 8) & 0xFF) / 127.5) - 1;
+  }
+
+  /** Extracts the blue channel of a packed (ARGB) 32-bit integer, in our usual [-1,1] space. */
+  public static double blue(int rgb) {
+    return ((rgb & 0xFF) / 127.5) - 1;
   }
 
   @Override
@@ -188,6 +200,14 @@ public class RgbColor {
    * colors are "solid" rather than "transparent".
    */
   public int toRgb() {
+    return toRgb(r, g, b);
+  }
+
+  /**
+   * Same as {@link #toRgb()}, but starting from three doubles rather than an RgbColor, so renderers
+   * that keep their colors in arrays don't need to allocate anything.
+   */
+  public static int toRgb(double r, double g, double b) {
     return 0xFF000000
         | (0x00FF0000 & (clip(r) << 16))
         | (0x0000FF00 & (clip(g) << 8))
@@ -0,0 +1,292 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import io.vavr.control.Option;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds onto the largest image the server has recently rendered of each tree, so that when the
+ * client asks for the same tree again at a size no bigger than that, as it does when it shows a
+ * grid of thumbnails and then one of them at full size, or the other way around, the image can be
+ * scaled down from the one we have (see {@link #downscale(BufferedImage, int, int)}) rather than
+ * rendered all over again. A bigger render of the same tree replaces the one we had.
+ *
+ * <p>An image rendered at double precision stands in for any precision, since it's what the others
+ * are approximating, but one rendered at a lower precision only stands in for that precision.
+ *
+ * <p>The cache holds onto at most the number of bytes of pixels in the <code>
+ * prettypictures.sourceCacheBytes</code> system property, by default 128 MB, and when it's full,
+ * the images that have gone longest without being asked for are the first to go.
+ */
+final class SourceImageCache {
+  /** The most bytes of pixels the cache will hang onto. */
+  static final long MAX_CACHED_BYTES =
+      Long.getLong("prettypictures.sourceCacheBytes", 128L * 1024 * 1024);
+
+  /** An image we're holding onto, and how precisely it was rendered. */
+  private static final class Source {
+    final BufferedImage image;
+    final Precision precision;
+
+    Source(BufferedImage image, Precision precision) {
+      this.image = image;
+      this.precision = precision;
+    }
+
+    long bytes() {
+      return 4L * image.getWidth() * image.getHeight();
+    }
+  }
+
+  // Engineering note: as with TileCache, a LinkedHashMap in access order is an LRU list with a
+  // hash table on the side, and everything here synchronizes on it. The images in it are never
+  // written again, so they can be read, and scaled down, outside the lock. For the same reason,
+  // they never go back to the RasterPool, not even when they're evicted: whoever is scaling one
+  // down might still be reading it, so the garbage collector gets them instead.
+  private static final LinkedHashMap<GeneTree, Source> sources =
+      new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<GeneTree, Source> eldest) {
+          if (cachedBytes <= MAX_CACHED_BYTES) {
+            return false;
+          }
+          // removeEldestEntry() is only allowed to remove one entry per put(), so we clear out
+          // whatever else needs to go ourselves
+          var iterator = entrySet().iterator();
+          while (cachedBytes > MAX_CACHED_BYTES && iterator.hasNext()) {
+            cachedBytes -= iterator.next().getValue().bytes();
+            iterator.remove();
+            evictions++;
+          }
+          return false;
+        }
+      };
+
+  // guarded by the lock on sources
+  private static long cachedBytes = 0;
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  private SourceImageCache() {}
+
+  /**
+   * Returns an image of the given tree at the given size and precision, scaled down from one we
+   * have, if we have one that's at least that big in both directions. The image comes from the
+   * {@link RasterPool}, and belongs to the caller.
+   */
+  static Option<BufferedImage> scaledTo(GeneTree tree, Precision precision, int width, int height) {
+    Source source;
+    synchronized (sources) {
+      source = sources.get(tree);
+      if (source == null
+          || (source.precision != precision && source.precision != Precision.DOUBLE)
+          || source.image.getWidth() < width
+          || source.image.getHeight() < height) {
+        misses++;
+        return none();
+      }
+      hits++;
+    }
+    return some(downscale(source.image, width, height));
+  }
+
+  /**
+   * Offers an image of the given tree, rendered at the given precision, to the cache, which keeps
+   * it if it's the first one of that tree, or it has more pixels than the one we had, or it's just
+   * as big and more precise. Returns whether it was kept, in which case the caller mustn't give it
+   * back to the {@link RasterPool} or otherwise change it. An image bigger than the whole cache
+   * isn't kept.
+   */
+  static boolean offer(GeneTree tree, Precision precision, BufferedImage image) {
+    var offered = new Source(image, precision);
+    if (offered.bytes() > MAX_CACHED_BYTES) {
+      return false;
+    }
+    synchronized (sources) {
+      var previous = sources.get(tree);
+      if (previous != null) {
+        if (previous.bytes() > offered.bytes()
+            || (previous.bytes() == offered.bytes()
+                && (previous.precision == Precision.DOUBLE || precision != Precision.DOUBLE))) {
+          return false;
+        }
+        sources.remove(tree);
+        cachedBytes -= previous.bytes();
+      }
+      cachedBytes += offered.bytes();
+      sources.put(tree, offered);
+      return true;
+    }
+  }
+
+  /** Snapshot of the cache's contents and how well it's been doing. */
+  static Stats stats() {
+    synchronized (sources) {
+      return new Stats(sources.size(), cachedBytes, hits, misses, evictions);
+    }
+  }
+
+  /** What {@link #stats()} returns. */
+  static final class Stats {
+    final int images;
+    final long bytes;
+    final long hits;
+    final long misses;
+    final long evictions;
+
+    private Stats(int images, long bytes, long hits, long misses, long evictions) {
+      this.images = images;
+      this.bytes = bytes;
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d images (%d bytes), %d hits, %d misses, %d evictions",
+          images, bytes, hits, misses, evictions);
+    }
+  }
+
+  // Engineering note: each pixel of the smaller image is the average of the part of the bigger
+  // image that it covers, with the source pixels at its edges counting for however much of them
+  // it covers. Each pixel of an image from ImageFunction.toImage() is sampled at its top left
+  // corner (see Viewport), so source pixel j of w stands for [j/w, (j+1)/w) of the image's width,
+  // and the averages line up with the pixels they replace. Averaging is separable, so we average
+  // across each row first, then down each column, and each pass only touches a few source pixels
+  // per output pixel. That's a few milliseconds for a full-sized image, where rendering it again
+  // takes anywhere from tens of milliseconds to seconds. The result is a little smoother than
+  // rendering at the smaller size would be, since every source pixel counts, rather than one in
+  // every few, which is no bad thing for a thumbnail.
+
+  /**
+   * Scales an image from the {@link RasterPool} down to the given size, which must be no bigger in
+   * either direction, averaging over the area each pixel covers. The result comes from the pool,
+   * too.
+   *
+   * @throws IllegalArgumentException if the size isn't positive, or is bigger than the image
+   */
+  static BufferedImage downscale(BufferedImage source, int width, int height) {
+    var sourceWidth = source.getWidth();
+    var sourceHeight = source.getHeight();
+    if (width <= 0 || height <= 0 || width > sourceWidth || height > sourceHeight) {
+      throw new IllegalArgumentException(
+          String.format(
+              "can't scale %dx%d down to %dx%d", sourceWidth, sourceHeight, width, height));
+    }
+    var input = RasterPool.pixels(source);
+    var image = RasterPool.acquire(width, height);
+    var output = RasterPool.pixels(image);
+    if (width == sourceWidth && height == sourceHeight) {
+      System.arraycopy(input, 0, output, 0, width * height);
+      return image;
+    }
+
+    var columns = new Span(sourceWidth, width);
+    var rows = new Span(sourceHeight, height);
+
+    // across each row: three channels for each output column of each source row
+    var across = new float[3 * width * sourceHeight];
+    for (var y = 0; y < sourceHeight; y++) {
+      var row = y * sourceWidth;
+      var out = 3 * width * y;
+      for (var x = 0; x < width; x++) {
+        var red = 0.0f;
+        var green = 0.0f;
+        var blue = 0.0f;
+        for (var k = columns.start[x]; k < columns.start[x + 1]; k++) {
+          var pixel = input[row + columns.index[k]];
+          var weight = columns.weight[k];
+          red += weight * ((pixel >> 16) & 0xff);
+          green += weight * ((pixel >> 8) & 0xff);
+          blue += weight * (pixel & 0xff);
+        }
+        across[out + 3 * x] = red;
+        across[out + 3 * x + 1] = green;
+        across[out + 3 * x + 2] = blue;
+      }
+    }
+
+    // then down each column
+    for (var y = 0; y < height; y++) {
+      for (var x = 0; x < width; x++) {
+        var red = 0.0f;
+        var green = 0.0f;
+        var blue = 0.0f;
+        for (var k = rows.start[y]; k < rows.start[y + 1]; k++) {
+          var i = 3 * (width * rows.index[k] + x);
+          var weight = rows.weight[k];
+          red += weight * across[i];
+          green += weight * across[i + 1];
+          blue += weight * across[i + 2];
+        }
+        output[y * width + x] =
+            0xFF000000 | (Math.round(red) << 16) | (Math.round(green) << 8) | Math.round(blue);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Which source pixels each output pixel covers along one direction, and how much each of them
+   * counts for: output pixel i averages source pixels <code>index[k]</code>, with weights <code>
+   * weight[k]</code>, for k from <code>start[i]</code> up to <code>start[i + 1]</code>. The weights
+   * of each output pixel add up to one.
+   */
+  private static final class Span {
+    final int[] start;
+    final int[] index;
+    final float[] weight;
+
+    Span(int sourceSize, int size) {
+      var scale = sourceSize / (double) size;
+      start = new int[size + 1];
+      // each output pixel covers at most ceil(scale) + 1 source pixels
+      var capacity = size * ((int) Math.ceil(scale) + 1);
+      index = new int[capacity];
+      weight = new float[capacity];
+
+      var k = 0;
+      for (var i = 0; i < size; i++) {
+        start[i] = k;
+        var from = i * scale;
+        var to = Math.min(sourceSize, (i + 1) * scale);
+        var first = (int) Math.floor(from);
+        var last = Math.min(sourceSize - 1, (int) Math.ceil(to) - 1);
+        var total = 0.0f;
+        for (var j = first; j <= last; j++) {
+          var overlap = (float) (Math.min(j + 1, to) - Math.max(j, from));
+          if (overlap > 0.0f) {
+            index[k] = j;
+            weight[k] = overlap;
+            total += overlap;
+            k++;
+          }
+        }
+        for (var j = start[i]; j < k; j++) {
+          weight[j] /= total;
+        }
+      }
+      start[size] = k;
+    }
+  }
+}
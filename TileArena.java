@@ -0,0 +1,123 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread scratch space for tile-at-a-time rendering (see {@link
+ * ImageFunction#renderBatch(double[], double[], int, double[])}). Every thread gets its own arena,
+ * and every arena hangs onto its buffers, only growing them when asked for something bigger than
+ * before. Once a thread has rendered a tile or two, rendering allocates nothing at all.
+ *
+ * <p>Buffers are handed out by "slot" so that the different layers of the renderer don't step on
+ * each other. A buffer is only valid until the next request for the same slot on the same thread,
+ * so nobody should hang onto one after they return.
+ */
+final class TileArena {
+  /** X coordinates of the pixels in a tile, filled in by the image renderer. */
+  static final int XS = 0;
+
+  /** Y coordinates of the pixels in a tile, filled in by the image renderer. */
+  static final int YS = 1;
+
+  /** Planar colors of the pixels in a tile, filled in by {@link ImageFunction#renderBatch}. */
+  static final int OUTPUT = 2;
+
+  /** Stack space for {@link ImageFunction#renderInto(double, double, double[], int)}. */
+  static final int STACK = 3;
+
+  /** X coordinates of the columns of a tile, filled in by the image renderer. */
+  static final int COLUMNS = 4;
+
+  /** Y coordinates of the rows of a tile, filled in by the image renderer. */
+  static final int ROWS = 5;
+
+  /** Low ends of the ranges of the registers of a tile, as computed by {@link GeneProgram}. */
+  static final int LOW = 6;
+
+  /** High ends of the ranges of the registers of a tile, as computed by {@link GeneProgram}. */
+  static final int HIGH = 7;
+
+  /** The constants that {@link GeneProgram} fills in for instructions it can prove constant. */
+  static final int FILLS = 8;
+
+  /** What {@link GeneProgram} will do with each instruction of a tile program. Ints. */
+  static final int ACTIONS = 9;
+
+  /** Which of a tile program's registers {@link GeneProgram} still needs. Ints. */
+  static final int LIVE = 10;
+
+  /** The flat colors of the results of a tile, if any, for {@link GeneProgram}. Ints. */
+  static final int FLATS = 11;
+
+  /** Which pixels of a tile {@link AdaptiveRenderer} has evaluated or interpolated. Ints. */
+  static final int SAMPLED = 12;
+
+  /** Where in the image each pixel that {@link Antialiaser} is supersampling goes. Ints. */
+  static final int SUPERSAMPLED = 13;
+
+  private static final int NUM_SLOTS = 14;
+
+  private static final ThreadLocal<TileArena> arenas = ThreadLocal.withInitial(TileArena::new);
+
+  private final double[][] buffers = new double[NUM_SLOTS][0];
+  private double[][] registers = new double[0][0];
+
+  // And for the bookkeeping that comes in ints.
+  private final int[][] intBuffers = new int[NUM_SLOTS][0];
+
+  private TileArena() {}
+
+  /** Fetches the calling thread's arena. */
+  static TileArena get() {
+    return arenas.get();
+  }
+
+  /** Returns the buffer for the given slot, with room for at least <code>size</code> doubles. */
+  double[] buffer(int slot, int size) {
+    if (buffers[slot].length < size) {
+      buffers[slot] = new double[size];
+    }
+    return buffers[slot];
+  }
+
+  /**
+   * Returns <code>count</code> register buffers, each with room for at least <code>size</code>
+   * doubles, for use by {@link GeneProgram}. There may be more than <code>count</code> of them.
+   */
+  double[][] registers(int count, int size) {
+    if (registers.length < count) {
+      registers = Arrays.copyOf(registers, count);
+      for (var i = 0; i < count; i++) {
+        if (registers[i] == null) {
+          registers[i] = new double[0];
+        }
+      }
+    }
+    for (var i = 0; i < count; i++) {
+      if (registers[i].length < size) {
+        registers[i] = new double[size];
+      }
+    }
+    return registers;
+  }
+
+  /** Like {@link #buffer(int, int)}, but for ints. Slots are separate from the double ones. */
+  int[] intBuffer(int slot, int size) {
+    if (intBuffers[slot].length < size) {
+      intBuffers[slot] = new int[size];
+    }
+    return intBuffers[slot];
+  }
+}
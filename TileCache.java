@@ -0,0 +1,138 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import static io.vavr.control.Option.none;
+import static io.vavr.control.Option.some;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple5;
+import io.vavr.control.Option;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds onto the PNGs of the tiles the server has rendered for the <code>/tile/</code> route (see
+ * {@link Viewport#tile(int, long, long)}), so that panning around an image only renders the tiles
+ * that come into view, rather than every tile on the screen all over again. Tiles are keyed by the
+ * tree they're an image of, where they are in the pyramid, and how precisely they were rendered.
+ *
+ * <p>The cache holds onto at most the number of bytes of PNG in the <code>
+ * prettypictures.tileCacheBytes</code> system property, by default 64 MB, and when it's full, the
+ * tiles that have gone longest without being asked for are the first to go.
+ */
+final class TileCache {
+  /** The most bytes of PNG the cache will hang onto. */
+  static final long MAX_CACHED_BYTES =
+      Long.getLong("prettypictures.tileCacheBytes", 64L * 1024 * 1024);
+
+  /** Which tile of which image, and how precisely it was rendered. */
+  static Tuple5<GeneTree, Integer, Long, Long, Precision> key(
+      GeneTree tree, int z, long x, long y, Precision precision) {
+    return Tuple.of(tree, z, x, y, precision);
+  }
+
+  // Engineering note: a LinkedHashMap in access order is exactly an LRU list with a hash table on
+  // the side, and removeEldestEntry() lets it evict as it goes. It isn't thread-safe, even for
+  // get(), since a get() moves the entry to the end of the list, so everything here synchronizes
+  // on the map. That's fine: looking up a tile takes a microsecond, where rendering one takes
+  // milliseconds, and the renders themselves happen outside the lock.
+  private static final LinkedHashMap<Object, byte[]> tiles =
+      new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, byte[]> eldest) {
+          if (cachedBytes <= MAX_CACHED_BYTES) {
+            return false;
+          }
+          // removeEldestEntry() is only allowed to remove one entry per put(), so we clear out
+          // whatever else needs to go ourselves
+          var iterator = entrySet().iterator();
+          while (cachedBytes > MAX_CACHED_BYTES && iterator.hasNext()) {
+            cachedBytes -= iterator.next().getValue().length;
+            iterator.remove();
+            evictions++;
+          }
+          return false;
+        }
+      };
+
+  // guarded by the lock on tiles
+  private static long cachedBytes = 0;
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  private TileCache() {}
+
+  /** Returns the PNG of the tile with the given key, if we have it. */
+  static Option<byte[]> get(Object key) {
+    synchronized (tiles) {
+      var png = tiles.get(key);
+      if (png == null) {
+        misses++;
+        return none();
+      }
+      hits++;
+      return some(png);
+    }
+  }
+
+  /**
+   * Remembers the PNG of the tile with the given key, evicting the least recently used tiles if
+   * need be. A tile bigger than the whole cache isn't kept.
+   */
+  static void put(Object key, byte[] png) {
+    if (png.length > MAX_CACHED_BYTES) {
+      return;
+    }
+    synchronized (tiles) {
+      var previous = tiles.remove(key);
+      if (previous != null) {
+        cachedBytes -= previous.length;
+      }
+      cachedBytes += png.length;
+      tiles.put(key, png);
+    }
+  }
+
+  /** Snapshot of the cache's contents and how well it's been doing. */
+  static Stats stats() {
+    synchronized (tiles) {
+      return new Stats(tiles.size(), cachedBytes, hits, misses, evictions);
+    }
+  }
+
+  /** What {@link #stats()} returns. */
+  static final class Stats {
+    final int tiles;
+    final long bytes;
+    final long hits;
+    final long misses;
+    final long evictions;
+
+    private Stats(int tiles, long bytes, long hits, long misses, long evictions) {
+      this.tiles = tiles;
+      this.bytes = bytes;
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d tiles (%d bytes), %d hits, %d misses, %d evictions",
+          tiles, bytes, hits, misses, evictions);
+    }
+  }
+}
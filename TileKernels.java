@@ -0,0 +1,211 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+/**
+ * Batch kernels for the piecewise arithmetic alleles, as used by {@link
+ * GeneProgram#runBatch(double[], double[], int, double[][], boolean)}. Each kernel applies one
+ * scalar operation to the entries <code>[from, to)</code> of its source arrays, writing to <code>d
+ * </code>. Since the piecewise alleles do the same thing to r, g, and b, the caller can hand us all
+ * three planar channels at once, or just the span of them that anybody reads.
+ *
+ * <p>Every kernel computes exactly what the corresponding scalar function in {@link Allele} does,
+ * down to the sign of zero and the handling of NaN, so a tile rendered with these kernels is
+ * bit-for-bit identical to one rendered a pixel at a time.
+ */
+final class TileKernels {
+  // Engineering note: these loops are written for the JIT's "superword" optimization, which turns
+  // a simple counted loop over arrays into SIMD instructions, as wide as the CPU supports (AVX2 or
+  // AVX-512 on our servers, via -XX:MaxVectorSize), with a scalar loop to mop up the remainder.
+  // That's the same thing you'd write by hand with the jdk.incubator.vector API, which isn't
+  // available on the Java 11 we target. For superword to kick in, each loop must be a plain
+  // int-indexed loop with no calls (other than intrinsics like Math.abs, Math.max, and
+  // Math.floor) and no loop-carried dependencies, and each kernel lives in its own small method
+  // so that it gets compiled, and vectorized, on its own.
+  //
+  // Branches are the enemy of vectorization, so where an exact branch-free form of an operator
+  // exists, we use it. Clip, for example, is a min and a max. Where it doesn't, as with sign
+  // (which maps NaN to 1.0 and -0.0 to 1.0) and the clamps (which must preserve -0.0), we keep
+  // the original conditional, which the JIT can often turn into a conditional move, and accept
+  // that those kernels may stay scalar. Getting the same pixels is more important than getting
+  // them a little faster.
+
+  // never instantiate this class
+  private TileKernels() {}
+
+  /** d = -a. */
+  static void negate(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = -a[i];
+    }
+  }
+
+  /** d = |a|. */
+  static void abs(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = Math.abs(a[i]);
+    }
+  }
+
+  /** d = sign(a), as in {@link Allele#sign(double)}. */
+  static void sign(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = a[i] < 0.0 ? -1.0 : 1.0;
+    }
+  }
+
+  /** d = clampNegative(a), as in {@link Allele#clampNegative(double)}. */
+  static void clampNegative(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      var x = a[i];
+      d[i] = x < 0.0 ? 0.0 : x;
+    }
+  }
+
+  /** d = clampPositive(a), as in {@link Allele#clampPositive(double)}. */
+  static void clampPositive(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      var x = a[i];
+      d[i] = x > 0.0 ? 0.0 : x;
+    }
+  }
+
+  /** d = floor(a). */
+  static void floor(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = Math.floor(a[i]);
+    }
+  }
+
+  /** d = ceiling(a). */
+  static void ceiling(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = Math.ceil(a[i]);
+    }
+  }
+
+  /** d = wrap(a), as in {@link Allele#wrap(double)}. */
+  static void wrap(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      var y = a[i] / 2 + 0.5;
+      d[i] = (y - Math.floor(y)) * 2 - 1;
+    }
+  }
+
+  /** d = clip(a), as in {@link Allele#clip(double)}. */
+  static void clip(double[] a, double[] d, int from, int to) {
+    // Math.min and Math.max agree with clip() on NaN (it passes through) and on -0.0 (it's
+    // between -1 and 1, so it passes through too).
+    for (var i = from; i < to; i++) {
+      d[i] = Math.max(-1.0, Math.min(1.0, a[i]));
+    }
+  }
+
+  /** d = max(a, b). */
+  static void max(double[] a, double[] b, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = Math.max(a[i], b[i]);
+    }
+  }
+
+  /** d = min(a, b). */
+  static void min(double[] a, double[] b, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = Math.min(a[i], b[i]);
+    }
+  }
+
+  /** d = a / b, except zero where b is zero, as in {@link Allele#divide(double, double)}. */
+  static void divide(double[] a, double[] b, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      var y = b[i];
+      d[i] = y == 0.0 ? 0.0 : a[i] / y;
+    }
+  }
+
+  /** d = a * b. */
+  static void multiply(double[] a, double[] b, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = a[i] * b[i];
+    }
+  }
+
+  /** d = a + b. */
+  static void add(double[] a, double[] b, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = a[i] + b[i];
+    }
+  }
+
+  /** d = a - b. */
+  static void subtract(double[] a, double[] b, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = a[i] - b[i];
+    }
+  }
+
+  /** d = dissolve(a, b, t), as in {@link Allele#dissolve(double, double, double)}. */
+  static void dissolve(double[] a, double[] b, double[] t, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      var w = t[i];
+      d[i] = (1.0 - w) * a[i] + w * b[i];
+    }
+  }
+
+  // Kernels for the transcendental alleles with Precision.FAST. These get their own methods for the
+  // same reason as the rest: each one is compiled on its own, with its FastMath function inlined
+  // into the loop, rather than as a call from the middle of GeneProgram's enormous switch, where
+  // the JIT may well have run out of inlining budget.
+
+  /** d = sin(a), as approximated by {@link FastMath#sin(double)}. */
+  static void fastSin(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = FastMath.sin(a[i]);
+    }
+  }
+
+  /** d = cos(a), as approximated by {@link FastMath#cos(double)}. */
+  static void fastCos(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = FastMath.cos(a[i]);
+    }
+  }
+
+  /** d = atan(a), as approximated by {@link FastMath#atan(double)}. */
+  static void fastAtan(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = FastMath.atan(a[i]);
+    }
+  }
+
+  /** d = tanh(a), as approximated by {@link FastMath#tanh(double)}. */
+  static void fastTanh(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = FastMath.tanh(a[i]);
+    }
+  }
+
+  /** d = log(a), as approximated by {@link FastMath#log(double)}. */
+  static void fastLog(double[] a, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = FastMath.log(a[i]);
+    }
+  }
+
+  /** d = atan2(a, b), as approximated by {@link FastMath#atan2(double, double)}. */
+  static void fastAtan2(double[] a, double[] b, double[] d, int from, int to) {
+    for (var i = from; i < to; i++) {
+      d[i] = FastMath.atan2(a[i], b[i]);
+    }
+  }
+}
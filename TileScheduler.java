@@ -0,0 +1,373 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders images tile by tile on a thread pool of its own, rather than the common ForkJoinPool that
+ * every parallel stream in the JVM, and the web server's request threads, are fighting over.
+ *
+ * <p>The size of the pool comes from the <code>prettypictures.renderThreads</code> system property,
+ * defaulting to one thread per processor. Each render is limited to the number of workers in the
+ * <code>prettypictures.renderParallelism</code> property (counting the thread that asked for it),
+ * defaulting to half the pool, so that one huge image can't keep a crowd of thumbnails waiting for
+ * a thread.
+ */
+final class TileScheduler {
+  /** What to do with each tile: render the given rectangle of pixels of the image. */
+  @FunctionalInterface
+  interface TileRenderer {
+    void render(int xstart, int ystart, int width, int height);
+  }
+
+  /** The number of threads in the render pool. */
+  static final int POOL_SIZE =
+      Math.max(
+          1,
+          Integer.getInteger(
+              "prettypictures.renderThreads", Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * The most workers any one render gets, counting the calling thread, unless it asks for a
+   * different limit.
+   */
+  static final int DEFAULT_PARALLELISM =
+      Math.max(
+          1,
+          Math.min(
+              POOL_SIZE,
+              Integer.getInteger("prettypictures.renderParallelism", (POOL_SIZE + 1) / 2)));
+
+  // Engineering note: splitting an image by rows balances badly, since a 64-pixel-wide thumbnail
+  // has only 64 rows to hand out, each of them far too small to be worth a task, and a big image's
+  // rows don't all cost the same. Instead, a render's tiles are numbered, and each of its workers
+  // claims the next unclaimed tile from a shared counter until there are none left. A worker that
+  // lands on cheap tiles just claims more of them, so all the workers finish at about the same
+  // time, no matter how the cost is spread across the image. The thread asking for the render is
+  // always one of the workers, so every render makes progress even when the pool is busy, and the
+  // pool lends it helpers, up to its limit. Since a render only ever has a few helpers, any other
+  // renders that come along find idle threads to help them, rather than queueing up behind
+  // hundreds of tiles of somebody else's image, and helpers that only get a thread after their
+  // render is already done just go away.
+
+  private static final ForkJoinPool pool =
+      new ForkJoinPool(
+          POOL_SIZE,
+          p -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("render-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+          },
+          null,
+          false);
+
+  private static final AtomicInteger activeRenders = new AtomicInteger();
+  private static final AtomicLong pendingTiles = new AtomicLong();
+  private static final LongAdder rendersCompleted = new LongAdder();
+  private static final LongAdder tilesRendered = new LongAdder();
+  private static final LongAdder tileNanos = new LongAdder();
+  private static final LongAdder rendersCancelled = new LongAdder();
+  private static final LongAdder tilesCancelled = new LongAdder();
+  private static final LongAdder pixelsCancelled = new LongAdder();
+  private static final LongAccumulator maxTileNanos = new LongAccumulator(Math::max, 0);
+
+  // Tile latencies by powers of two: bucket i counts the tiles that took [2^(i-1), 2^i) nanos.
+  private static final AtomicLongArray tileHistogram = new AtomicLongArray(64);
+
+  private TileScheduler() {}
+
+  /**
+   * Calls <code>renderer</code> once for every <code>tileSize</code> square (smaller at the right
+   * and bottom edges) of an image of the given size, on at most {@link #DEFAULT_PARALLELISM}
+   * threads, the calling thread and helpers from the render pool, and waits for them all to be
+   * done.
+   */
+  static void forEachTile(int xsize, int ysize, int tileSize, TileRenderer renderer) {
+    forEachTile(xsize, ysize, tileSize, DEFAULT_PARALLELISM, CancellationToken.NONE, renderer);
+  }
+
+  /**
+   * Like {@link #forEachTile(int, int, int, TileRenderer)}, but gives up if <code>token</code> is
+   * cancelled.
+   *
+   * @throws CancellationException if the token was cancelled before every tile was rendered
+   */
+  static void forEachTile(
+      int xsize, int ysize, int tileSize, CancellationToken token, TileRenderer renderer) {
+    forEachTile(xsize, ysize, tileSize, DEFAULT_PARALLELISM, token, renderer);
+  }
+
+  /**
+   * Calls <code>renderer</code> once for every <code>tileSize</code> square (smaller at the right
+   * and bottom edges) of an image of the given size, on at most <code>parallelism</code> threads,
+   * the calling thread and helpers from the render pool, and waits for them all to be done. If the
+   * renderer throws, the remaining tiles are abandoned and the exception is rethrown here. Each
+   * worker checks <code>token</code> before starting on another tile, and once it's cancelled, the
+   * remaining tiles are abandoned too.
+   *
+   * @throws CancellationException if the token was cancelled before every tile was rendered
+   */
+  static void forEachTile(
+      int xsize,
+      int ysize,
+      int tileSize,
+      int parallelism,
+      CancellationToken token,
+      TileRenderer renderer) {
+    if (xsize <= 0 || ysize <= 0) {
+      return;
+    }
+
+    final var tilesAcross = (xsize + tileSize - 1) / tileSize;
+    final var numTiles = tilesAcross * ((ysize + tileSize - 1) / tileSize);
+    final var next = new AtomicInteger();
+
+    Runnable worker =
+        () -> {
+          try {
+            for (var tile = next.getAndIncrement();
+                tile < numTiles;
+                tile = next.getAndIncrement()) {
+              pendingTiles.decrementAndGet();
+              var xstart = (tile % tilesAcross) * tileSize;
+              var ystart = (tile / tilesAcross) * tileSize;
+              if (token.isCancelled()) {
+                // this tile, and every one nobody has claimed yet, will never be rendered
+                var claimed = Math.min(numTiles, next.getAndSet(numTiles));
+                pendingTiles.addAndGet(claimed - numTiles);
+                recordCancelled(xsize, ysize, tileSize, tilesAcross, numTiles, tile, claimed);
+                token.throwIfCancelled();
+              }
+              var start = System.nanoTime();
+              renderer.render(
+                  xstart,
+                  ystart,
+                  Math.min(tileSize, xsize - xstart),
+                  Math.min(tileSize, ysize - ystart));
+              recordTile(System.nanoTime() - start);
+            }
+          } catch (RuntimeException | Error e) {
+            // nobody else need bother with the rest of the tiles
+            var claimed = next.getAndSet(numTiles);
+            if (claimed < numTiles) {
+              pendingTiles.addAndGet(claimed - numTiles);
+            }
+            throw e;
+          }
+        };
+
+    // the calling thread is one of the workers, and the pool supplies the rest
+    var numHelpers = Math.min(POOL_SIZE, Math.min(parallelism, numTiles) - 1);
+    var helpers = new ForkJoinTask<?>[Math.max(0, numHelpers)];
+    var started = new AtomicBoolean[helpers.length];
+    activeRenders.incrementAndGet();
+    pendingTiles.addAndGet(numTiles);
+    Throwable failure = null;
+    try {
+      for (var i = 0; i < helpers.length; i++) {
+        final var mine = new AtomicBoolean();
+        started[i] = mine;
+        helpers[i] =
+            pool.submit(
+                () -> {
+                  if (mine.compareAndSet(false, true)) {
+                    worker.run();
+                  }
+                });
+      }
+
+      try {
+        worker.run();
+      } catch (RuntimeException | Error e) {
+        failure = e;
+      }
+
+      // Every tile has been claimed by now. Helpers that never got a thread needn't bother, and
+      // those that did can only be finishing their last tile.
+      for (var i = 0; i < helpers.length; i++) {
+        if (!started[i].compareAndSet(false, true)) {
+          helpers[i].quietlyJoin();
+          if (failure == null) {
+            failure = helpers[i].getException();
+          }
+        }
+      }
+    } finally {
+      activeRenders.decrementAndGet();
+      rendersCompleted.increment();
+    }
+
+    if (failure instanceof CancellationException) {
+      rendersCancelled.increment();
+    }
+
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+  }
+
+  // Counts the given tile, which its worker claimed but never rendered, and every tile from
+  // claimed on, which nobody claimed at all, as cancelled.
+  private static void recordCancelled(
+      int xsize, int ysize, int tileSize, int tilesAcross, int numTiles, int tile, int claimed) {
+    var pixels = tilePixels(xsize, ysize, tileSize, tilesAcross, tile);
+    for (var t = claimed; t < numTiles; t++) {
+      pixels += tilePixels(xsize, ysize, tileSize, tilesAcross, t);
+    }
+    tilesCancelled.add(1 + numTiles - claimed);
+    pixelsCancelled.add(pixels);
+  }
+
+  private static long tilePixels(int xsize, int ysize, int tileSize, int tilesAcross, int tile) {
+    var xstart = (tile % tilesAcross) * tileSize;
+    var ystart = (tile / tilesAcross) * tileSize;
+    return (long) Math.min(tileSize, xsize - xstart) * Math.min(tileSize, ysize - ystart);
+  }
+
+  private static void recordTile(long nanos) {
+    tilesRendered.increment();
+    tileNanos.add(nanos);
+    maxTileNanos.accumulate(nanos);
+    tileHistogram.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(nanos)));
+  }
+
+  /** A snapshot of how busy the render pool is, and how long its tiles have been taking. */
+  static Stats stats() {
+    var histogram = new long[tileHistogram.length()];
+    for (var i = 0; i < histogram.length; i++) {
+      histogram[i] = tileHistogram.get(i);
+    }
+    var tiles = tilesRendered.sum();
+    return new Stats(
+        POOL_SIZE,
+        DEFAULT_PARALLELISM,
+        pool.getActiveThreadCount(),
+        activeRenders.get(),
+        pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount(),
+        Math.max(0, pendingTiles.get()),
+        rendersCompleted.sum(),
+        tiles,
+        rendersCancelled.sum(),
+        tilesCancelled.sum(),
+        pixelsCancelled.sum(),
+        tiles == 0 ? 0.0 : tileNanos.sum() / (1_000.0 * tiles),
+        percentile(histogram, tiles, 0.5),
+        percentile(histogram, tiles, 0.99),
+        maxTileNanos.get() / 1_000.0);
+  }
+
+  // The upper bound, in microseconds, of the histogram bucket holding the given fraction of tiles.
+  private static double percentile(long[] histogram, long count, double fraction) {
+    if (count == 0) {
+      return 0.0;
+    }
+    var target = (long) Math.ceil(fraction * count);
+    var seen = 0L;
+    for (var i = 0; i < histogram.length; i++) {
+      seen += histogram[i];
+      if (seen >= target) {
+        return Math.scalb(1.0, i) / 1_000.0;
+      }
+    }
+    return Math.scalb(1.0, histogram.length) / 1_000.0;
+  }
+
+  /**
+   * What {@link #stats()} returns. Tile latencies are in microseconds, and the percentiles are
+   * rounded up to the next power of two nanoseconds. The pixels cancelled are all the pixels of the
+   * tiles that cancelled renders abandoned.
+   */
+  static final class Stats {
+    final int poolSize;
+    final int parallelism;
+    final int activeThreads;
+    final int activeRenders;
+    final long queuedTasks;
+    final long pendingTiles;
+    final long rendersCompleted;
+    final long tilesRendered;
+    final long rendersCancelled;
+    final long tilesCancelled;
+    final long pixelsCancelled;
+    final double meanTileMicros;
+    final double medianTileMicros;
+    final double p99TileMicros;
+    final double maxTileMicros;
+
+    private Stats(
+        int poolSize,
+        int parallelism,
+        int activeThreads,
+        int activeRenders,
+        long queuedTasks,
+        long pendingTiles,
+        long rendersCompleted,
+        long tilesRendered,
+        long rendersCancelled,
+        long tilesCancelled,
+        long pixelsCancelled,
+        double meanTileMicros,
+        double medianTileMicros,
+        double p99TileMicros,
+        double maxTileMicros) {
+      this.poolSize = poolSize;
+      this.parallelism = parallelism;
+      this.activeThreads = activeThreads;
+      this.activeRenders = activeRenders;
+      this.queuedTasks = queuedTasks;
+      this.pendingTiles = pendingTiles;
+      this.rendersCompleted = rendersCompleted;
+      this.tilesRendered = tilesRendered;
+      this.rendersCancelled = rendersCancelled;
+      this.tilesCancelled = tilesCancelled;
+      this.pixelsCancelled = pixelsCancelled;
+      this.meanTileMicros = meanTileMicros;
+      this.medianTileMicros = medianTileMicros;
+      this.p99TileMicros = p99TileMicros;
+      this.maxTileMicros = maxTileMicros;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d/%d threads busy, %d renders, %d queued tasks, %d pending tiles; "
+              + "%d tiles, mean %.1f μs, median <%.1f μs, p99 <%.1f μs, max %.1f μs; "
+              + "%d renders cancelled, abandoning %d tiles (%d pixels)",
+          activeThreads,
+          poolSize,
+          activeRenders,
+          queuedTasks,
+          pendingTiles,
+          tilesRendered,
+          meanTileMicros,
+          medianTileMicros,
+          p99TileMicros,
+          maxTileMicros,
+          rendersCancelled,
+          tilesCancelled,
+          pixelsCancelled);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * This code is part of Rice Comp215 and is made available for your
+ * use as a student in Comp215. You are specifically forbidden from
+ * posting this code online in a public fashion (e.g., on a public
+ * GitHub repository) or otherwise making it, or any derivative of it,
+ * available to future Comp215 students. Violations of this rule are
+ * considered Honor Code violations and will result in your being
+ * reported to the Honor Council, even after you've completed the
+ * class, and will result in retroactive reductions to your grade. For
+ * additional details, please see the Comp215 course syllabus.
+ */
+
+package edu.rice.prettypictures;
+
+/**
+ * The part of the plane that an image shows: a square centered on <code>(centerX, centerY)</code>,
+ * reaching <code>scale</code> to either side. The {@link #DEFAULT} viewport, centered on the origin
+ * with a scale of 1, shows x and y from -1 to 1, which is what {@link ImageFunction#toImage(int,
+ * int)} has always rendered. A smaller scale zooms in.
+ *
+ * <p>As with the default viewport, the top left corner of the image is at <code>(centerX - scale,
+ * centerY + scale)</code>, and each pixel is sampled at its own top left corner, so the pixels of
+ * two adjacent viewports of the same scale line up exactly.
+ */
+public class Viewport {
+  /** From -1 to 1 in both x and y. */
+  public static final Viewport DEFAULT = new Viewport(0.0, 0.0, 1.0);
+
+  /**
+   * The deepest zoom level that {@link #tile(int, long, long)} allows. Much beyond this, adjacent
+   * pixels of a 256-pixel tile would be too close together for doubles to tell apart.
+   */
+  public static final int MAX_ZOOM = 40;
+
+  /**
+   * How far {@link #tile(int, long, long)} lets you pan off the grid, as a power of two: at zoom
+   * level <code>z</code>, tile coordinates can go up to <code>2^(z + MAX_PAN_BITS)</code> either
+   * way, about a million times as far as the {@link #DEFAULT} viewport is wide. Any further, and
+   * the arithmetic that finds a tile's center would overflow.
+   */
+  public static final int MAX_PAN_BITS = 20;
+
+  public final double centerX;
+  public final double centerY;
+  public final double scale;
+
+  // for internal use only; see static methods below
+  private Viewport(double centerX, double centerY, double scale) {
+    this.centerX = centerX;
+    this.centerY = centerY;
+    this.scale = scale;
+  }
+
+  /**
+   * Maker-method for a Viewport.
+   *
+   * @throws IllegalArgumentException if the center isn't finite or the scale isn't positive
+   */
+  public static Viewport viewport(double centerX, double centerY, double scale) {
+    if (!Double.isFinite(centerX) || !Double.isFinite(centerY)) {
+      throw new IllegalArgumentException("center must be finite: " + centerX + ", " + centerY);
+    }
+    if (!(scale > 0.0) || !Double.isFinite(scale)) {
+      throw new IllegalArgumentException("scale must be positive: " + scale);
+    }
+    return new Viewport(centerX, centerY, scale);
+  }
+
+  /**
+   * The viewport for tile <code>(x, y)</code> at zoom level <code>z</code> of a map-style tile
+   * pyramid. Zoom level 0 is a single tile showing the {@link #DEFAULT} viewport, and each level
+   * splits every tile of the level above into four, so level <code>z</code> is a grid of <code>
+   * 2^z</code> by <code>2^z</code> tiles, with tile (0, 0) at the top left. Tiles outside that grid
+   * carry on across the plane, out to {@link #MAX_PAN_BITS}.
+   *
+   * @throws IllegalArgumentException if the zoom level is negative or beyond {@link #MAX_ZOOM}, or
+   *     the tile is further off the grid than {@link #MAX_PAN_BITS} allows
+   */
+  public static Viewport tile(int z, long x, long y) {
+    if (z < 0 || z > MAX_ZOOM) {
+      throw new IllegalArgumentException("zoom level out of range: " + z);
+    }
+    if (!isTile(z, x, y)) {
+      throw new IllegalArgumentException(
+          "tile out of range at zoom level " + z + ": " + x + ", " + y);
+    }
+    var scale = Math.scalb(1.0, -z);
+    return viewport(-1.0 + (2 * x + 1) * scale, 1.0 - (2 * y + 1) * scale, scale);
+  }
+
+  /**
+   * Whether {@link #tile(int, long, long)} accepts tile <code>(x, y)</code> at zoom level <code>z
+   * </code>.
+   */
+  public static boolean isTile(int z, long x, long y) {
+    if (z < 0 || z > MAX_ZOOM) {
+      return false;
+    }
+    var limit = 1L << (z + MAX_PAN_BITS);
+    return -limit <= x && x <= limit && -limit <= y && y <= limit;
+  }
+
+  // Engineering note: this is the one place that says where each pixel of an image is, and every
+  // renderer goes through it. With the DEFAULT viewport, the center is zero and the scale is one,
+  // so x() and y() come out exactly as -1 + 2 * column / width and 1 - 2 * row / height, which is
+  // what we rendered before there were viewports, bit for bit.
+
+  /**
+   * The x-coordinate of the given column of pixels of an image <code>width</code> pixels wide. A
+   * fractional column is that far across from the pixel's top left corner, as when supersampling.
+   */
+  public double x(double column, int width) {
+    return centerX + scale * (-1.0 + 2.0 * column / (double) width);
+  }
+
+  /**
+   * The y-coordinate of the given row of pixels of an image <code>height</code> pixels high. A
+   * fractional row is that far down from the pixel's top left corner.
+   */
+  public double y(double row, int height) {
+    return centerY + scale * (1.0 - 2.0 * row / (double) height);
+  }
+
+  /**
+   * The column of an image <code>width</code> pixels wide that's at the given x-coordinate, the
+   * inverse of {@link #x(double, int)}, which is fractional between columns.
+   */
+  public double column(double x, int width) {
+    return ((x - centerX) / scale + 1.0) * width / 2.0;
+  }
+
+  /**
+   * The row of an image <code>height</code> pixels high that's at the given y-coordinate, the
+   * inverse of {@link #y(double, int)}, which is fractional between rows.
+   */
+  public double row(double y, int height) {
+    return (1.0 - (y - centerY) / scale) * height / 2.0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Viewport(%g, %g, %g)", centerX, centerY, scale);
+  }
+}